@@ -0,0 +1,173 @@
+package sbrt.preppy.benchmarks;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.server.ChatProperties;
+import sbrt.preppy.server.GrpcProfileService;
+import sbrt.preppy.server.ProfileServiceBinding;
+import sbrt.preppy.server.cluster.MessageBus;
+import sbrt.preppy.server.database.journal.JournalMessageStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Доставка широковещательного сообщения от вызова sendBroadcastMsg до получения последним подписчиком.
+ * Сервер и клиенты соединены транспортом gRPC в памяти процесса, так что измеряется весь путь сообщения:
+ * вызов, публикация, кодирование кадра, очереди потоков и разбор сообщения клиентом, без сети.
+ * Результат - время доставки одного сообщения всем подписчикам.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastDeliveryBenchmark {
+    private static final String TEXT = "benchmark message to everyone in the chat";
+    private static final String PROBE = "probe";
+    /**
+     * Время, за которое все подписчики должны получить сообщение, иначе итерация считается проваленной
+     */
+    private static final long DELIVERY_TIMEOUT_MS = 10_000;
+
+    @Param({"1", "100", "1000"})
+    private int subscribers;
+
+    private Path journalDirectory;
+    private JournalMessageStore store;
+    private GrpcProfileService service;
+    private Server server;
+    private ManagedChannel channel;
+    private ProfileServiceGrpc.ProfileServiceBlockingStub blockingStub;
+    private ProfileDescriptorOuterClass.MessageText message;
+    /**
+     * Получения измеряемого сообщения, которых еще ждет бенчмарк
+     */
+    private volatile CountDownLatch pending = new CountDownLatch(0);
+    /**
+     * Подписчики, получившие хотя бы одно сообщение
+     */
+    private final AtomicInteger ready = new AtomicInteger();
+    /**
+     * Первая ошибка потока подписчика
+     */
+    private volatile Throwable failure;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        journalDirectory = Files.createTempDirectory("broadcast-benchmark");
+        store = new JournalMessageStore(journalDirectory, 64 * 1024 * 1024, 64, false);
+        // репозиторий используется только без отдельного хранилища
+        service = new GrpcProfileService(null, new ChatProperties(), store, MessageBus.NONE);
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(new ProfileServiceBinding(service)).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
+        ProfileServiceGrpc.ProfileServiceStub asyncStub = ProfileServiceGrpc.newStub(channel);
+
+        blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("sender").build());
+        for (int i = 0; i < subscribers; i++) {
+            String username = "user" + i;
+            blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(username).build());
+            asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName(username).build(),
+                    new Subscriber());
+        }
+        message = ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("sender").setText(TEXT).build();
+
+        // потоки открываются асинхронно: пробные сообщения шлются, пока все подписчики не получат хотя бы одно,
+        // поток каждого клиента упорядочен, так что пробные сообщения не смешиваются с измеряемыми
+        ProfileDescriptorOuterClass.MessageText probe = message.toBuilder().setText(PROBE).build();
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (ready.get() < subscribers) {
+            checkFailure();
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + ready.get() + " of " + subscribers
+                        + " streams opened in " + DELIVERY_TIMEOUT_MS + " ms");
+            }
+            blockingStub.sendBroadcastMsg(probe);
+            Thread.sleep(10);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(subscribers);
+        pending = latch;
+        blockingStub.sendBroadcastMsg(message);
+        if (!latch.await(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+            throw new IllegalStateException(latch.getCount() + " of " + subscribers
+                    + " subscribers did not receive the message in " + DELIVERY_TIMEOUT_MS + " ms");
+        }
+    }
+
+    /**
+     * Провал итерации, если поток одного из подписчиков закрылся с ошибкой
+     */
+    private void checkFailure() {
+        Throwable t = failure;
+        if (t != null) {
+            throw new IllegalStateException("A subscriber stream failed", t);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        service.shutdown();
+        store.close();
+        BenchmarkFiles.delete(journalDirectory);
+    }
+
+    /**
+     * Поток сообщений одного клиента
+     */
+    private final class Subscriber implements StreamObserver<ProfileDescriptorOuterClass.ChatMessage> {
+        private boolean received;
+
+        @Override
+        public void onNext(ProfileDescriptorOuterClass.ChatMessage chatMessage) {
+            // сообщения сервера о подключении клиентов не считаются
+            if (chatMessage.getText().equals(TEXT)) {
+                pending.countDown();
+            } else if (chatMessage.getText().equals(PROBE) && !received) {
+                received = true;
+                ready.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            failure = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            failure = new IllegalStateException("A subscriber stream was closed by the server");
+        }
+    }
+}
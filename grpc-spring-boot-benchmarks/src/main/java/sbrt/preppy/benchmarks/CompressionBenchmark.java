@@ -0,0 +1,104 @@
+package sbrt.preppy.benchmarks;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Codec;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.compression.DeflateCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение байтов на проводе и времени CPU без сжатия, с gzip и с быстрым deflate на типичном трафике чата:
+ * одна строка чата, страница истории из 50 сообщений и догоняющая пачка из 500 сообщений.
+ * Результат - время сжатия одного сообщения и счетчик wireBytes (размер сжатого сообщения на проводе).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String[] WORDS = {"hi", "hello", "how", "are", "you", "ok", "see", "the", "new", "build",
+            "is", "green", "deploy", "at", "five", "thanks", "lunch", "?", "meeting", "moved", "to", "room", "b"};
+
+    /**
+     * Сообщений в сжимаемом ответе: 1 - строка чата, 50 - страница истории, 500 - догоняющая пачка
+     */
+    @Param({"1", "50", "500"})
+    private int messages;
+
+    @Param({"identity", "gzip", DeflateCodec.NAME})
+    private String codecName;
+
+    private Codec codec;
+    private MessageLite message;
+    private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+    /**
+     * Размер последнего сжатого сообщения
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long wireBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = switch (codecName) {
+            case "gzip" -> new Codec.Gzip();
+            case DeflateCodec.NAME -> new DeflateCodec();
+            default -> Codec.Identity.NONE;
+        };
+        Random random = new Random(42);
+        message = messages == 1 ? line(random, 1) : page(random, messages);
+    }
+
+    @Benchmark
+    public void compress(Wire result) throws IOException {
+        wire.reset();
+        try (OutputStream out = codec.compress(wire)) {
+            message.writeTo(out);
+        }
+        result.wireBytes = wire.size();
+    }
+
+    private static ProfileDescriptorOuterClass.HistoryPage page(Random random, int size) {
+        ProfileDescriptorOuterClass.HistoryPage.Builder page = ProfileDescriptorOuterClass.HistoryPage.newBuilder();
+        for (int i = 0; i < size; i++) {
+            page.addMessages(line(random, i + 1));
+        }
+        return page.build();
+    }
+
+    private static ProfileDescriptorOuterClass.ChatMessage line(Random random, long seq) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 3 + random.nextInt(10); i > 0; i--) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return ProfileDescriptorOuterClass.ChatMessage.newBuilder()
+                .setSender("user" + random.nextInt(20))
+                .setText(text.toString().trim())
+                .setTimestamp(1_700_000_000_000L + seq * 1_500)
+                .setSeq(seq)
+                .build();
+    }
+}
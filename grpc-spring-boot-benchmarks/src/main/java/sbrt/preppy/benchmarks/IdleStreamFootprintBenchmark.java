@@ -0,0 +1,158 @@
+package sbrt.preppy.benchmarks;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.server.ChatProperties;
+import sbrt.preppy.server.GrpcProfileService;
+import sbrt.preppy.server.ProfileServiceBinding;
+import sbrt.preppy.server.cluster.MessageBus;
+import sbrt.preppy.server.database.journal.JournalMessageStore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Цена открытых, но молчащих потоков syncMessages: сколько потоков JVM и сколько памяти кучи
+ * добавляет открытие заданного числа потоков через транспорт gRPC в памяти процесса.
+ * Обработчик потока только регистрирует подписку и возвращается, поэтому число потоков не должно расти с числом клиентов.
+ * Результат - счетчики threads (прирост живых потоков) и heapBytesPerStream (прирост занятой кучи после GC на один поток),
+ * время одного открытия всех потоков выводится как основной результат.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IdleStreamFootprintBenchmark {
+    private static final String PROBE = "probe";
+    private static final long OPEN_TIMEOUT_MS = 30_000;
+
+    @Param({"2000"})
+    private int streams;
+
+    private Path journalDirectory;
+    private JournalMessageStore store;
+    private GrpcProfileService service;
+    private Server server;
+    private ManagedChannel channel;
+    private ProfileServiceGrpc.ProfileServiceBlockingStub blockingStub;
+    /**
+     * Потоки, получившие пробное сообщение
+     */
+    private final AtomicInteger ready = new AtomicInteger();
+
+    /**
+     * Прирост потоков и памяти за одно открытие всех потоков
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long threads;
+        public long heapBytesPerStream;
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        journalDirectory = Files.createTempDirectory("footprint-benchmark");
+        store = new JournalMessageStore(journalDirectory, 64 * 1024 * 1024, 64, false);
+        service = new GrpcProfileService(null, new ChatProperties(), store, MessageBus.NONE);
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(new ProfileServiceBinding(service)).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
+        blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("sender").build());
+        for (int i = 0; i < streams; i++) {
+            blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("user" + i).build());
+        }
+        ready.set(0);
+    }
+
+    @Benchmark
+    public void openIdleStreams(Footprint footprint) throws InterruptedException {
+        long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        ProfileServiceGrpc.ProfileServiceStub asyncStub = ProfileServiceGrpc.newStub(channel);
+        for (int i = 0; i < streams; i++) {
+            asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("user" + i).build(),
+                    new Subscriber());
+        }
+        // потоки открываются асинхронно: пробные сообщения шлются, пока каждый поток не получит хотя бы одно
+        ProfileDescriptorOuterClass.MessageText probe = ProfileDescriptorOuterClass.MessageText.newBuilder()
+                .setSender("sender").setText(PROBE).build();
+        long deadline = System.currentTimeMillis() + OPEN_TIMEOUT_MS;
+        while (ready.get() < streams) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + ready.get() + " of " + streams + " streams are open");
+            }
+            blockingStub.sendBroadcastMsg(probe);
+            Thread.sleep(10);
+        }
+
+        footprint.threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        footprint.heapBytesPerStream = (usedHeap() - heapBefore) / streams;
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException, InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        service.shutdown();
+        store.close();
+        BenchmarkFiles.delete(journalDirectory);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Молчащий поток сообщений одного клиента, отмечается при получении первого пробного сообщения
+     */
+    private final class Subscriber implements StreamObserver<ProfileDescriptorOuterClass.ChatMessage> {
+        private boolean received;
+
+        @Override
+        public void onNext(ProfileDescriptorOuterClass.ChatMessage chatMessage) {
+            if (chatMessage.getText().equals(PROBE) && !received) {
+                received = true;
+                ready.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
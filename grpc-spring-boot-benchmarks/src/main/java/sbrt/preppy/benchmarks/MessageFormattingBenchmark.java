@@ -0,0 +1,82 @@
+package sbrt.preppy.benchmarks;
+
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.server.dispatch.MessageFrames;
+import sbrt.preppy.server.dispatch.OutboundFrame;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подготовка сообщения к отправке клиентам: сборка типизированного ChatMessage, построение кадра сообщения
+ * при первой доставке и запись сообщения в поток одного подписчика - новым proto, как до общих кадров,
+ * и общим, один раз закодированным кадром.
+ * Результат - время одной операции.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageFormattingBenchmark {
+    private static final MethodDescriptor.Marshaller<ProfileDescriptorOuterClass.ChatMessage> PROTO_MARSHALLER =
+            ProtoUtils.marshaller(ProfileDescriptorOuterClass.ChatMessage.getDefaultInstance());
+
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        message = new Message(new User("bench"), MessageType.PRIVATE, "benchmark message number 42", "receiver");
+        message.setSeq(42);
+        MessageFrames.of(message).getMessageFrame();
+    }
+
+    @Benchmark
+    public ProfileDescriptorOuterClass.ChatMessage chatMessage() {
+        return MessageFrames.toChatMessage(message).build();
+    }
+
+    @Benchmark
+    public OutboundFrame publishFrames() {
+        return new MessageFrames(message).getMessageFrame();
+    }
+
+    @Benchmark
+    public void perSubscriberEncoding() throws IOException {
+        drain(PROTO_MARSHALLER.stream(MessageFrames.toChatMessage(message).build()));
+    }
+
+    @Benchmark
+    public void sharedFrame() throws IOException {
+        drain(OutboundFrame.MARSHALLER.stream(MessageFrames.of(message).getMessageFrame()));
+    }
+
+    /**
+     * Передача потока в транспорт, как это делает gRPC
+     */
+    private static void drain(InputStream stream) throws IOException {
+        try (stream) {
+            ((Drainable) stream).drainTo(OutputStream.nullOutputStream());
+        }
+    }
+}
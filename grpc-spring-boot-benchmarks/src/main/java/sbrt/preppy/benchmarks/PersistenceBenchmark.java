@@ -0,0 +1,129 @@
+package sbrt.preppy.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import sbrt.preppy.server.GrpcSpringBootServerApplication;
+import sbrt.preppy.server.database.DBController;
+import sbrt.preppy.server.database.JdbcMessageBatchSink;
+import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.database.MessageBatchSink;
+import sbrt.preppy.server.database.MessageRepository;
+import sbrt.preppy.server.database.journal.JournalMessageStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение скорости записи сообщений: MessageRepository.save по одному сообщению
+ * и пачки JdbcMessageBatchSink (хранилище JPA), DBController.saveAll (хранилище JDBC) и JournalMessageStore.saveAll.
+ * Таблицы H2 в памяти и журнал очищаются перед каждой итерацией, чтобы их рост не влиял на результат.
+ * Результат - строк в секунду.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final int BATCH_SIZE = 256;
+
+    private ConfigurableApplicationContext context;
+    private JdbcTemplate jdbcTemplate;
+    private MessageRepository repository;
+    private MessageBatchSink jdbcBatch;
+    private DBController dbController;
+    private Path journalDirectory;
+    private JournalMessageStore journal;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(GrpcSpringBootServerApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("grpc.server.port=-1", "spring.jpa.show-sql=false", "logging.level.root=WARN")
+                .run();
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+        repository = context.getBean(MessageRepository.class);
+        jdbcBatch = new JdbcMessageBatchSink(jdbcTemplate, context.getBean(PlatformTransactionManager.class));
+        dbController = context.getBean(DBController.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() throws IOException {
+        jdbcTemplate.execute("TRUNCATE TABLE messagebd");
+        jdbcTemplate.execute("TRUNCATE TABLE MESSAGES");
+        journalDirectory = Files.createTempDirectory("journal-benchmark");
+        journal = new JournalMessageStore(journalDirectory, 64 * 1024 * 1024, 64, false);
+    }
+
+    @Benchmark
+    public void repositorySave() {
+        repository.save(row());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void jdbcBatchInsert() {
+        jdbcBatch.saveAll(batch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void dbControllerSaveAll() {
+        dbController.saveAll(batch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void journalSaveAll() {
+        journal.saveAll(batch());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeJournal() throws IOException {
+        journal.close();
+        BenchmarkFiles.delete(journalDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    private List<MessageBD> batch() {
+        List<MessageBD> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(row());
+        }
+        return batch;
+    }
+
+    private MessageBD row() {
+        seq++;
+        MessageBD row = new MessageBD(new Timestamp(System.currentTimeMillis()), "bench", "null", "BROADCAST", "message " + seq);
+        row.setSeq(seq);
+        return row;
+    }
+}
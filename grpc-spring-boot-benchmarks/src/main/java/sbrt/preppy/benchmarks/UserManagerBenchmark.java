@@ -0,0 +1,89 @@
+package sbrt.preppy.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sbrt.preppy.server.exception.DuplicateUsernameException;
+import sbrt.preppy.server.exception.UserNotFoundException;
+import sbrt.preppy.server.users.User;
+import sbrt.preppy.server.users.UserManager;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Список клиентов под конкурентной нагрузкой: в одной группе потоков клиенты подключаются и отключаются,
+ * ищутся по имени при отправке сообщений и список онлайн-клиентов читается целиком.
+ * Результат - время каждой операции, пока остальные потоки группы работают с тем же списком.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserManagerBenchmark {
+    @Param({"100", "10000"})
+    private int online;
+
+    private UserManager userManager;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws DuplicateUsernameException {
+        userManager = new UserManager();
+        for (int i = 0; i < online; i++) {
+            userManager.connectUser("user" + i);
+        }
+    }
+
+    /**
+     * Имена клиентов, которые подключает и отключает один поток
+     */
+    @State(Scope.Thread)
+    public static class Connecting {
+        private String prefix;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(UserManagerBenchmark benchmark) {
+            prefix = "connecting" + benchmark.threads.incrementAndGet() + "-";
+        }
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(1)
+    public void connectDisconnect(Connecting connecting) throws DuplicateUsernameException, UserNotFoundException {
+        String username = connecting.prefix + connecting.next++;
+        userManager.connectUser(username);
+        userManager.disconnectUser(username);
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(4)
+    public User find() throws UserNotFoundException {
+        return userManager.findUserByName("user" + ThreadLocalRandom.current().nextInt(online));
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(1)
+    public List<String> list() {
+        return userManager.getOnlineUsers();
+    }
+}
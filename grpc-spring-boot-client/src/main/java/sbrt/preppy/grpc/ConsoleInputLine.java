@@ -0,0 +1,73 @@
+package sbrt.preppy.grpc;
+
+import jline.Terminal;
+import jline.console.ConsoleReader;
+import sbrt.preppy.grpc.clientlog.InputLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author preppy
+ * Console of the client that lets another thread write the chat messages above the line being typed.
+ * The console reader is not safe for concurrent use, so reading a line and writing above it share one lock.
+ * The reading thread holds the lock while it handles a key and echoes it, and lets it go only while it waits for the next key.
+ */
+public class ConsoleInputLine extends ConsoleReader implements InputLine {
+    /**
+     * Carriage return and erasing of the input line
+     */
+    private static final String CLEAR_LINE = "\r\u001b[2K";
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public ConsoleInputLine() throws IOException {
+        super();
+    }
+
+    ConsoleInputLine(InputStream in, OutputStream out, Terminal terminal) throws IOException {
+        super(in, out, terminal);
+    }
+
+    @Override
+    public String readLine(String prompt) throws IOException {
+        lock.lock();
+        try {
+            return super.readLine(prompt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waiting for a key without the lock, so the messages are written while the client thinks
+     */
+    @Override
+    public int readCharacter(boolean checkForAltKeyCombo) throws IOException {
+        int holds = lock.getHoldCount();
+        for (int i = 0; i < holds; i++) {
+            lock.unlock();
+        }
+        try {
+            return super.readCharacter(checkForAltKeyCombo);
+        } finally {
+            for (int i = 0; i < holds; i++) {
+                lock.lock();
+            }
+        }
+    }
+
+    @Override
+    public void printAbove(String text) throws IOException {
+        lock.lock();
+        try {
+            print((getTerminal().isAnsiSupported() ? CLEAR_LINE : "\r") + text);
+            drawLine();
+            flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
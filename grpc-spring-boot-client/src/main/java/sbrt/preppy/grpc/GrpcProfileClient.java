@@ -1,10 +1,12 @@
 package sbrt.preppy.grpc;
 
 import io.grpc.ManagedChannel;
+import sbrt.preppy.ProfileDescriptorOuterClass;
 import sbrt.preppy.grpc.exceptions.DuplicateUsernameException;
 import sbrt.preppy.grpc.exceptions.UserNotFoundException;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author preppy
@@ -21,8 +23,22 @@ public interface GrpcProfileClient {
 
     void sendPrivateMsg(String text) throws UserNotFoundException;
 
+    void sendRoomMsg(String room, String text) throws UserNotFoundException;
+
+    CompletableFuture<ProfileDescriptorOuterClass.SendAck> sendBroadcastAsync(String text);
+
+    CompletableFuture<ProfileDescriptorOuterClass.SendAck> sendPrivateAsync(String receiver, String text);
+
+    void joinRoom(String room);
+
+    void leaveRoom(String room);
+
+    void listRooms();
+
     void syncMessages();
 
     void syncUserList();
 
+    void openChat();
+
 }
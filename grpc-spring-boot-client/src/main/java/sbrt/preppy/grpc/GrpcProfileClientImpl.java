@@ -1,6 +1,8 @@
 package sbrt.preppy.grpc;
 
 import io.grpc.*;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.springframework.stereotype.Component;
 import sbrt.preppy.ProfileDescriptorOuterClass;
@@ -8,13 +10,25 @@ import sbrt.preppy.ProfileServiceGrpc;
 
 import jline.console.ConsoleReader;
 import sbrt.preppy.grpc.clientlog.MessageCreator;
-import sbrt.preppy.grpc.clientlog.MessageHandler;
+import sbrt.preppy.grpc.clientlog.FramedMessageRenderer;
+import sbrt.preppy.compression.DeflateCodec;
 import sbrt.preppy.grpc.exceptions.DuplicateUsernameException;
 import sbrt.preppy.grpc.exceptions.UserNotFoundException;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author preppy
@@ -36,18 +50,34 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
      */
     private static final String TARGET = HOST + ":" + PORT;
     /**
-     *
+     * Console commands for the chat rooms
      */
-    public static final String PRIVATE_MESSAGE_ID = "PRIVATE";
+    private static final String JOIN_COMMAND = "#join ";
+    private static final String LEAVE_COMMAND = "#leave ";
+    private static final String ROOM_COMMAND = "#room ";
+    private static final String ROOMS_COMMAND = "#rooms";
     /**
-     *
+     * Messages sent through the chat stream that may wait for their ack at once
      */
-    public static final String PUBLIC_MESSAGE_ID = "PUBLIC";
+    static final int MAX_IN_FLIGHT = 256;
     /**
-     *
+     * Ceilings of the delay between the attempts to reconnect, the first one and the largest one
      */
-    public static final String MESSAGE_TYPE_REGEX = ": ";
-
+    private static final long RECONNECT_INITIAL_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    /**
+     * How long the connection has to stay up before the delays start again from the first one
+     */
+    private static final long RECONNECT_STABLE_MS = 10_000;
+    /**
+     * Codes of a stream failure that go away by themselves, the client reconnects only after them
+     */
+    private static final Set<Status.Code> TRANSIENT_CODES =
+            EnumSet.of(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED, Status.Code.ABORTED);
+    /**
+     * How long one attempt to register the client again may take
+     */
+    private static final long RECONNECT_TIMEOUT_SECONDS = 5;
     /**
      * Blocking stub for calling service methods
      */
@@ -66,6 +96,67 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
      *
      */
     private static User user;
+    /**
+     * Sequence number of the last message received from the server, the message stream is resumed after it
+     */
+    private volatile long lastSeq;
+    /**
+     * Online clients, kept up to date by the presence stream
+     */
+    private final Set<String> onlineUsers = new LinkedHashSet<>();
+    /**
+     * Version of the online user list received last
+     */
+    private long presenceVersion;
+    /**
+     * Client side of the chat stream, null while the client uses the unary calls
+     */
+    private volatile ChatCall chatCall;
+    /**
+     * Number of the last event sent through the chat stream
+     */
+    private final AtomicLong requestIds = new AtomicLong();
+    /**
+     * Delays between the attempts to reconnect
+     */
+    private final ReconnectBackoff backoff;
+    /**
+     * Thread making the attempts to reconnect
+     */
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Streams failed with the connection and reopened once the client is registered again, guarded by itself
+     */
+    private final Set<ServerStream> lostStreams = EnumSet.noneOf(ServerStream.class);
+    /**
+     * Moment the connection was lost, in nanoseconds
+     */
+    private long offlineSince;
+    /**
+     * Attempts to reconnect made since the connection was lost
+     */
+    private int outageAttempts;
+    /**
+     * Rooms the client joined, joined again after the server registered the client anew
+     */
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    /**
+     * Set while the rooms still have to be joined again, used only by the reconnect thread
+     */
+    private boolean rejoinRooms;
+    /**
+     * Successful reconnects and the time the client spent without a connection
+     */
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong downtimeNanos = new AtomicLong();
+    /**
+     * Set when the client leaves, the streams ended after that are not reopened
+     */
+    private volatile boolean closing;
     /**
      * Creating messages/log for the client
      */
@@ -73,34 +164,70 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
 
     /**
      *A constructor in which a channel is created for the client's work.
-     * A blocking and asynchronous stub for the channel are also being created
+     * A blocking and asynchronous stub for the channel are also being created.
+     * The messages are drawn in frames above the input line, so a busy chat does not slow down the streams.
+     * The channel accepts gzip and the fast deflate codec, so the server can compress history pages and long messages.
      */
     public GrpcProfileClientImpl() {
-        channel = ManagedChannelBuilder.forTarget(HOST + ":" + PORT)
+        this(ManagedChannelBuilder.forTarget(HOST + ":" + PORT)
                 .usePlaintext()
-                .build();
+                .decompressorRegistry(DecompressorRegistry.getDefaultInstance().with(new DeflateCodec(), true))
+                .build());
+    }
+
+    /**
+     * A client working over the given channel
+     * @param channel channel to the server
+     */
+    GrpcProfileClientImpl(ManagedChannel channel) {
+        this(channel, new ReconnectBackoff(RECONNECT_INITIAL_MS, RECONNECT_MAX_MS, RECONNECT_STABLE_MS));
+    }
+
+    /**
+     * A client working over the given channel and reconnecting with the given delays
+     * @param channel channel to the server
+     * @param backoff delays between the attempts to reconnect
+     */
+    GrpcProfileClientImpl(ManagedChannel channel, ReconnectBackoff backoff) {
+        this.channel = channel;
+        this.backoff = backoff;
         blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
         asyncStub = ProfileServiceGrpc.newStub(channel);
-        messageCreator = new MessageHandler();
+        messageCreator = new FramedMessageRenderer();
     }
 
     /**
-     * The method that starts the client's work
+     * The method that starts the client's work.
+     * Besides broadcast and private messages the console accepts the room commands:
+     * "#join name", "#leave name", "#rooms" and "#room name text" for a message to a room
      */
     public void start() {
-        try (ConsoleReader console = new ConsoleReader()) {
+        try (ConsoleInputLine console = new ConsoleInputLine()) {
             String author;
             String message;
 
             author = console.readLine(" Set your name: ");
             boolean running = connectUser(author);
 
-            syncUserList();
-            syncMessages();
+            messageCreator.setInputLine(console);
+            openChat();
 
             while (running) {
                 message = console.readLine(">");
-                if (message.contains("@")) {
+                if (message.startsWith(JOIN_COMMAND)) {
+                    joinRoom(message.substring(JOIN_COMMAND.length()).trim());
+                } else if (message.startsWith(LEAVE_COMMAND)) {
+                    leaveRoom(message.substring(LEAVE_COMMAND.length()).trim());
+                } else if (message.equals(ROOMS_COMMAND)) {
+                    listRooms();
+                } else if (message.startsWith(ROOM_COMMAND)) {
+                    String[] roomAndText = message.substring(ROOM_COMMAND.length()).trim().split("\\s+", 2);
+                    if (roomAndText.length < 2) {
+                        messageCreator.printWrongMessageBody();
+                    } else {
+                        sendRoomMsg(roomAndText[0], roomAndText[1]);
+                    }
+                } else if (message.contains("@")) {
                     sendPrivateMsg(message);
                 } else if (message.equals("exit")) {
                     running = false;
@@ -110,9 +237,13 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
                     sendBroadcastMsg(message);
                 }
             }
+            closing = true;
+            messageCreator.setInputLine(null);
+            closeChat();
             if (disconnectUser(channel)) {
                 console.getTerminal().restore();
             }
+            messageCreator.flush();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -165,10 +296,12 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
     public boolean disconnectUser(ManagedChannel channel) {
         ProfileDescriptorOuterClass.UserInfo userInfo = ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(user.getName()).build();
         ProfileDescriptorOuterClass.DisconnectMessage response;
+        closing = true;
         try {
             response = blockingStub.disconnectUser(userInfo);
             if (response.getIsDisconnected()) {
                 messageCreator.printSuccessFullyDisconnect();
+                reconnector.shutdownNow();
                 channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
                 return true;
             } else {
@@ -192,6 +325,10 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
     public void sendBroadcastMsg(String text) throws UserNotFoundException {
         if (user != null) {
             ProfileDescriptorOuterClass.MessageText messageText = ProfileDescriptorOuterClass.MessageText.newBuilder().setText(text).setSender(user.getName()).build();
+            if (chatCall != null) {
+                sendMessage(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setBroadcast(messageText));
+                return;
+            }
             try {
                 blockingStub.sendBroadcastMsg(messageText);
             } catch (StatusRuntimeException e) {
@@ -209,11 +346,16 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
      */
     @Override
     public void sendPrivateMsg(String text) throws UserNotFoundException {
-        int client_count = text.indexOf("@");
+        int client_count = text.lastIndexOf("@");
         String toClientName = text.substring(client_count + 1);
+        String body = text.substring(0, client_count).trim();
         if (user != null) {
-            ProfileDescriptorOuterClass.MessageText messageText = ProfileDescriptorOuterClass.MessageText.newBuilder().setText(text).setSender(user.getName()).build();
+            ProfileDescriptorOuterClass.MessageText messageText = ProfileDescriptorOuterClass.MessageText.newBuilder().setText(body).setSender(user.getName()).build();
             ProfileDescriptorOuterClass.PrivateMessageText privateMessageText = ProfileDescriptorOuterClass.PrivateMessageText.newBuilder().setMessageText(messageText).setReceiver(toClientName).build();
+            if (chatCall != null) {
+                sendMessage(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setPrivateMessage(privateMessageText));
+                return;
+            }
             try {
                 blockingStub.sendPrivateMsg(privateMessageText);
             } catch (StatusRuntimeException e) {
@@ -225,79 +367,516 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
     }
 
     /**
-     * Opening a stream to synchronize messages received from the server
+     * Sending a message to the members of a room, the client must have joined the room
+     * @param room name of the room
+     * @param text the text of the message
+     * @throws UserNotFoundException the chat client was not created
+     */
+    @Override
+    public void sendRoomMsg(String room, String text) throws UserNotFoundException {
+        if (user != null) {
+            ProfileDescriptorOuterClass.MessageText messageText = ProfileDescriptorOuterClass.MessageText.newBuilder()
+                    .setText(text).setSender(user.getName()).setRoom(room).build();
+            if (chatCall != null) {
+                sendMessage(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setBroadcast(messageText));
+                return;
+            }
+            try {
+                blockingStub.sendBroadcastMsg(messageText);
+            } catch (StatusRuntimeException e) {
+                messageCreator.printFailedMessage();
+            }
+        } else {
+            throw new UserNotFoundException("Could not find user");
+        }
+    }
+
+    /**
+     * Joining a room, its messages are received from now on
+     * @param room name of the room
+     */
+    @Override
+    public void joinRoom(String room) {
+        try {
+            ProfileDescriptorOuterClass.RoomInfo info = blockingStub.joinRoom(roomRequest(room));
+            joinedRooms.add(info.getRoom());
+            messageCreator.printMessage(" Joined room " + info.getRoom() + ", members: " + String.join(" ", info.getMembersList()));
+        } catch (StatusRuntimeException e) {
+            messageCreator.printMessage(" Could not join room " + room + ": " + e.getStatus().getDescription());
+        }
+    }
+
+    /**
+     * Leaving a room
+     * @param room name of the room
+     */
+    @Override
+    public void leaveRoom(String room) {
+        try {
+            blockingStub.leaveRoom(roomRequest(room));
+            joinedRooms.remove(room);
+            messageCreator.printMessage(" Left room " + room);
+        } catch (StatusRuntimeException e) {
+            messageCreator.printMessage(" Could not leave room " + room + ": " + e.getStatus().getDescription());
+        }
+    }
+
+    private ProfileDescriptorOuterClass.RoomRequest roomRequest(String room) {
+        return ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName(user.getName()).setRoom(room).build();
+    }
+
+    /**
+     * Displaying the rooms of the server with their number of members
+     */
+    @Override
+    public void listRooms() {
+        try {
+            ProfileDescriptorOuterClass.RoomList rooms = blockingStub.listRooms(ProfileDescriptorOuterClass.Empty.getDefaultInstance());
+            StringBuilder result = new StringBuilder(" Rooms :");
+            for (ProfileDescriptorOuterClass.RoomInfo room : rooms.getRoomsList()) {
+                result.append(' ').append(room.getRoom()).append('(').append(room.getMemberCount()).append(')');
+            }
+            messageCreator.printMessage(result.toString());
+        } catch (StatusRuntimeException e) {
+            messageCreator.printFailedMessage();
+        }
+    }
+
+    /**
+     * Opening a stream to synchronize messages received from the server.
+     * If the client has already received messages, the server resends the ones it missed after the last of them.
+     * When the server dropped messages because the client fell behind, the stream is reopened after the last received message.
+     * When the connection to the server is lost, the stream is reopened once the client is registered again.
      */
     @Override
     public void syncMessages() {
-        StreamObserver<ProfileDescriptorOuterClass.MessageText> observer = new StreamObserver<>() {
+        ClientResponseObserver<ProfileDescriptorOuterClass.SyncRequest, ProfileDescriptorOuterClass.ChatMessage> observer = new ClientResponseObserver<>() {
+            private ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> call;
+            /**
+             * Set when the stream is replaced, its remaining messages come again on the new stream
+             */
+            private boolean resyncing;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> call) {
+                this.call = call;
+            }
+
             @Override
-            public void onNext(ProfileDescriptorOuterClass.MessageText messageText) {
-                try {
-                    placeInRightMessageList(messageText.getText(), messageText.getSender());
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+            public void onNext(ProfileDescriptorOuterClass.ChatMessage message) {
+                if (isGap(message)) {
+                    resyncing = true;
+                    call.cancel("Resync after a gap", null);
+                    syncMessages();
+                } else if (!resyncing) {
+                    onMessage(message);
                 }
             }
             @Override
             public void onError(Throwable t) {
-                messageCreator.printMessage(" Server-side error.");
-                System.exit(1);
+                if (resyncing) {
+                    return;
+                }
+                if (isSlowConsumer(t)) {
+                    syncMessages();
+                    return;
+                }
+                connectionLost(ServerStream.MESSAGES, t);
             }
 
             @Override
             public void onCompleted() {      }
         };
         try {
-            asyncStub.syncMessages(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(user.getName()).build(), observer);
+            asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder()
+                    .setName(user.getName())
+                    .setResumeAfterSeq(lastSeq).build(), observer);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
     }
 
     /**
-     * Distribution of the received message for display as private or broadcast
+     * Opening the chat stream: one stream carrying the client's messages and the server's acks, messages and presence.
+     * The stream starts with the client's name and the cursor of the last received message.
+     * When the server dropped messages because the client fell behind, the stream is reopened after the last received message.
+     * The acks of a replaced stream are still received, so the messages sent through it are completed.
+     * When the connection to the server is lost, the messages waiting for their ack fail with MessageOutcomeUnknownException,
+     * since the server may have published them, and the stream is reopened once the client is registered again.
+     */
+    @Override
+    public void openChat() {
+        SendWindow window = new SendWindow(MAX_IN_FLIGHT);
+        StreamObserver<ProfileDescriptorOuterClass.ServerEvent> observer = new StreamObserver<>() {
+            /**
+             * Set when the stream is replaced, its remaining messages come again on the new stream
+             */
+            private boolean resyncing;
+
+            @Override
+            public void onNext(ProfileDescriptorOuterClass.ServerEvent event) {
+                if (event.getEventCase() == ProfileDescriptorOuterClass.ServerEvent.EventCase.ACK) {
+                    window.complete(event.getAck());
+                    if (!event.getAck().getAccepted()) {
+                        messageCreator.printFailedMessage();
+                    }
+                    return;
+                }
+                if (resyncing) {
+                    return;
+                }
+                switch (event.getEventCase()) {
+                    case MESSAGE -> {
+                        if (isGap(event.getMessage())) {
+                            resyncing = true;
+                            closeChat();
+                            openChat();
+                        } else {
+                            onMessage(event.getMessage());
+                        }
+                    }
+                    case PRESENCE -> onPresence(event.getPresence());
+                    default -> {
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                window.close(t);
+                if (resyncing) {
+                    return;
+                }
+                chatCall = null;
+                if (isSlowConsumer(t)) {
+                    openChat();
+                    return;
+                }
+                connectionLost(ServerStream.CHAT, t);
+            }
+
+            @Override
+            public void onCompleted() {
+                window.close(new IllegalStateException("The chat stream is closed"));
+                if (!resyncing) {
+                    chatCall = null;
+                }
+            }
+        };
+        ChatCall call = new ChatCall(asyncStub.chat(observer), window);
+        chatCall = call;
+        sendEvent(call, ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                .setSubscribe(ProfileDescriptorOuterClass.SyncRequest.newBuilder()
+                        .setName(user.getName())
+                        .setResumeAfterSeq(lastSeq)));
+    }
+
+    /**
+     * Closing the chat stream, later messages are sent by the unary calls.
+     * The messages already sent are completed by their acks.
+     */
+    public void closeChat() {
+        ChatCall call = chatCall;
+        chatCall = null;
+        if (call != null) {
+            synchronized (call.stream()) {
+                call.stream().onCompleted();
+            }
+        }
+    }
+
+    /**
+     * Sending a broadcast message through the chat stream without waiting for the server.
+     * Up to MAX_IN_FLIGHT messages wait for their ack at once, when the window is full the call waits for a free place,
+     * so it must not be made on a thread of the gRPC callbacks. Messages sent by one thread are published in order.
      * @param text the text of the message
-     * @param sender sender of message
+     * @return future completed with the ack of the server, or failed with MessageOutcomeUnknownException
+     * if the stream ends after the message was written and before its ack
      */
-    private void placeInRightMessageList(String text, String sender) throws InterruptedException {
+    @Override
+    public CompletableFuture<ProfileDescriptorOuterClass.SendAck> sendBroadcastAsync(String text) {
+        if (user == null) {
+            return CompletableFuture.failedFuture(new UserNotFoundException("Could not find user"));
+        }
+        return sendMessage(ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setText(text).setSender(user.getName())));
+    }
 
-        String[] split = text.split(MESSAGE_TYPE_REGEX);
-        String MESSAGE_ID = split[0];
-        String send = split[1];
-        String content = split[2];
+    /**
+     * Sending a private message through the chat stream without waiting for the server, like sendBroadcastAsync
+     * @param receiver name of the receiver
+     * @param text     the text of the message
+     * @return future completed with the ack of the server, or failed if the stream ends before the ack
+     */
+    @Override
+    public CompletableFuture<ProfileDescriptorOuterClass.SendAck> sendPrivateAsync(String receiver, String text) {
+        if (user == null) {
+            return CompletableFuture.failedFuture(new UserNotFoundException("Could not find user"));
+        }
+        return sendMessage(ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                .setPrivateMessage(ProfileDescriptorOuterClass.PrivateMessageText.newBuilder()
+                        .setMessageText(ProfileDescriptorOuterClass.MessageText.newBuilder().setText(text).setSender(user.getName()))
+                        .setReceiver(receiver)));
+    }
 
-        switch (MESSAGE_ID) {
-            case PRIVATE_MESSAGE_ID:
-                String message = content.substring(0, content.indexOf("@"));
-                if (!sender.equals(user.getName())) {
-                    messageCreator.printMessage("[Private message] " + send + ":" + message);
+    /**
+     * Writing a message to the chat stream once it has a place in the send window
+     * @param event message event without its number
+     * @return future completed with the ack of the message
+     */
+    private CompletableFuture<ProfileDescriptorOuterClass.SendAck> sendMessage(ProfileDescriptorOuterClass.ClientEvent.Builder event) {
+        ChatCall call = chatCall;
+        if (call == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The chat stream is not open"));
+        }
+        long requestId = requestIds.incrementAndGet();
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> ack;
+        try {
+            ack = call.window().register(requestId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            synchronized (call.stream()) {
+                call.stream().onNext(event.setRequestId(requestId).build());
+            }
+        } catch (RuntimeException e) {
+            call.window().fail(requestId, e);
+            messageCreator.printFailedMessage();
+        }
+        return ack;
+    }
+
+    /**
+     * Writing an event to the chat stream, the stream is not safe for concurrent writes
+     * @param call  the chat stream
+     * @param event event without its number
+     */
+    private void sendEvent(ChatCall call, ProfileDescriptorOuterClass.ClientEvent.Builder event) {
+        try {
+            synchronized (call.stream()) {
+                call.stream().onNext(event.setRequestId(requestIds.incrementAndGet()).build());
+            }
+        } catch (RuntimeException e) {
+            messageCreator.printFailedMessage();
+        }
+    }
+
+    /**
+     * An open chat stream and the messages sent through it waiting for their ack
+     */
+    private record ChatCall(StreamObserver<ProfileDescriptorOuterClass.ClientEvent> stream, SendWindow window) {
+    }
+
+    /**
+     * Streams of the server that the client keeps open
+     */
+    private enum ServerStream {
+        CHAT, MESSAGES, PRESENCE
+    }
+
+    /**
+     * A stream failed with the connection: the first lost stream schedules an attempt to reconnect,
+     * the streams lost meanwhile are reopened by the same reconnect.
+     * A stream closed by the server with an error that does not go away by itself, like a refused request, is not reopened.
+     * @param stream the failed stream
+     * @param t      error of the stream
+     */
+    private void connectionLost(ServerStream stream, Throwable t) {
+        if (closing) {
+            return;
+        }
+        Status status = Status.fromThrowable(t);
+        if (!TRANSIENT_CODES.contains(status.getCode())) {
+            messageCreator.printMessage(" The server closed the " + stream.name().toLowerCase() + " stream ("
+                    + status.getCode() + ": " + status.getDescription() + "), it is not reopened.");
+            return;
+        }
+        synchronized (lostStreams) {
+            boolean reconnecting = !lostStreams.isEmpty();
+            lostStreams.add(stream);
+            if (reconnecting) {
+                return;
+            }
+            offlineSince = System.nanoTime();
+            outageAttempts = 0;
+        }
+        messageCreator.printMessage(" Connection to the server lost (" + status.getCode() + "), reconnecting.");
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        reconnector.schedule(this::reconnect, backoff.nextDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registering the client again, joining its rooms again and reopening the lost streams after the last received message.
+     * The server keeps the client registered with its rooms while only the streams broke, then it answers that the name is taken
+     * and only the streams are reopened. The protocol does not tell this client from another one that took the name meanwhile,
+     * so the answer is taken as the registration of this client.
+     * When the server registered the client anew, it lost the rooms of the client, they are joined before the streams resume,
+     * so the resumed stream replays the missed room messages.
+     * An attempt failed with the connection schedules the next one, any other error stops reconnecting.
+     */
+    private void reconnect() {
+        if (closing) {
+            return;
+        }
+        synchronized (lostStreams) {
+            outageAttempts++;
+        }
+        // the channel has its own backoff, the attempts of the client decide when to try again
+        channel.resetConnectBackoff();
+        ProfileDescriptorOuterClass.UserInfo userInfo = ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(user.getName()).build();
+        try {
+            if (blockingStub.withDeadlineAfter(RECONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS).connectUser(userInfo).getIsConnected()) {
+                rejoinRooms = true;
+            } else if (!rejoinRooms) {
+                messageCreator.printMessage(" The server still holds the name " + user.getName()
+                        + ", the streams of the registered client are reopened.");
+            }
+            if (rejoinRooms) {
+                rejoinRooms();
+                rejoinRooms = false;
+            }
+        } catch (StatusRuntimeException e) {
+            if (TRANSIENT_CODES.contains(e.getStatus().getCode())) {
+                scheduleReconnect();
+            } else {
+                giveUpReconnect(e.getStatus());
+            }
+            return;
+        }
+        Set<ServerStream> streams;
+        long downtime;
+        int attempts;
+        synchronized (lostStreams) {
+            streams = EnumSet.copyOf(lostStreams);
+            lostStreams.clear();
+            downtime = System.nanoTime() - offlineSince;
+            attempts = outageAttempts;
+        }
+        downtimeNanos.addAndGet(downtime);
+        backoff.connected();
+        messageCreator.printMessage(" Reconnected after " + attempts + " attempt(s), offline for "
+                + TimeUnit.NANOSECONDS.toMillis(downtime) + " ms, reconnects: " + reconnects.incrementAndGet() + ".");
+        for (ServerStream stream : streams) {
+            switch (stream) {
+                case CHAT -> openChat();
+                case MESSAGES -> syncMessages();
+                case PRESENCE -> syncUserList();
+            }
+        }
+    }
+
+    /**
+     * Joining again the rooms of the client, a room the server refuses is forgotten
+     * @throws StatusRuntimeException the connection was lost again, the rooms are joined by the next attempt
+     */
+    private void rejoinRooms() {
+        for (String room : List.copyOf(joinedRooms)) {
+            try {
+                blockingStub.withDeadlineAfter(RECONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS).joinRoom(roomRequest(room));
+            } catch (StatusRuntimeException e) {
+                if (TRANSIENT_CODES.contains(e.getStatus().getCode())) {
+                    throw e;
                 }
+                joinedRooms.remove(room);
+                messageCreator.printMessage(" Could not join room " + room + " again: " + e.getStatus().getDescription());
+            }
+        }
+    }
+
+    /**
+     * The server refused the client for a reason that does not go away by itself, the lost streams stay closed
+     * @param status error of the server
+     */
+    private void giveUpReconnect(Status status) {
+        synchronized (lostStreams) {
+            lostStreams.clear();
+        }
+        messageCreator.printMessage(" Could not reconnect (" + status.getCode() + ": " + status.getDescription()
+                + "), the client stays offline.");
+    }
+
+    /**
+     * Getting the number of successful reconnects
+     */
+    long getReconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * Getting the time the client spent without a connection to the server
+     */
+    Duration getDowntime() {
+        return Duration.ofNanos(downtimeNanos.get());
+    }
+
+    /**
+     * Checking for the marker of messages dropped by the server, it does not move the cursor of the client
+     */
+    private static boolean isGap(ProfileDescriptorOuterClass.ChatMessage message) {
+        return message.getType() == ProfileDescriptorOuterClass.ChatMessage.Type.GAP;
+    }
+
+    /**
+     * Checking whether the server closed the stream, because the client did not keep up with the messages
+     */
+    private static boolean isSlowConsumer(Throwable t) {
+        return Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED;
+    }
+
+    /**
+     * Displaying a message received from the server and remembering its sequence number
+     * @param message received message
+     */
+    private void onMessage(ProfileDescriptorOuterClass.ChatMessage message) {
+        lastSeq = message.getSeq();
+        placeInRightMessageList(message);
+    }
+
+    /**
+     * Distribution of the received message for display as private, room or broadcast
+     * @param message received message, its own messages are not shown to the sender
+     */
+    private void placeInRightMessageList(ProfileDescriptorOuterClass.ChatMessage message) {
+        String sender = message.getSender();
+        if (sender.equals(user.getName())) {
+            return;
+        }
+        switch (message.getType()) {
+            case PRIVATE -> {
                 if (sender.equals("Server")) {
-                    messageCreator.printMessage(message);
-                }
-                break;
-            case PUBLIC_MESSAGE_ID:
-                if (!sender.equals(user.getName())) {
-                    messageCreator.printMessage(" " + send + ":" + content);
+                    messageCreator.printMessage(message.getText());
+                } else {
+                    messageCreator.printMessage("[Private message] " + sender + ":" + message.getText());
                 }
-                break;
+            }
+            case ROOM -> messageCreator.printMessage("[" + message.getReceiver() + "] " + sender + ":" + message.getText());
+            case BROADCAST -> messageCreator.printMessage(" " + sender + ":" + message.getText());
+            default -> {
+            }
         }
     }
 
     /**
-     * Stream for displaying the current list of on-line clients
+     * Stream for displaying the current list of on-line clients.
+     * The server sends the whole list once, then only the clients joining and leaving.
+     * When the connection to the server is lost, the stream is reopened and starts with a new list.
      */
     @Override
     public void syncUserList() {
-        StreamObserver<ProfileDescriptorOuterClass.UserInfo> observer = new StreamObserver<>() {
+        StreamObserver<ProfileDescriptorOuterClass.PresenceEvent> observer = new StreamObserver<>() {
             @Override
-            public void onNext(ProfileDescriptorOuterClass.UserInfo value) {
-                System.out.println("Online users : " + value.getName());
+            public void onNext(ProfileDescriptorOuterClass.PresenceEvent value) {
+                onPresence(value);
             }
 
             @Override
             public void onError(Throwable t) {
-                System.out.println(" Server error.");
+                connectionLost(ServerStream.PRESENCE, t);
             }
 
             @Override
@@ -305,12 +884,50 @@ public class GrpcProfileClientImpl implements GrpcProfileClient {
             }
         };
         try {
-            asyncStub.syncUserList(ProfileDescriptorOuterClass.Empty.newBuilder().build(), observer);
+            asyncStub.syncPresence(ProfileDescriptorOuterClass.Empty.newBuilder().build(), observer);
         } catch (Exception e) {
             messageCreator.printMessage(e.getMessage());
         }
     }
 
+    /**
+     * Applying a presence event to the local list of online clients
+     * @param event snapshot or delta of the online clients
+     */
+    synchronized void onPresence(ProfileDescriptorOuterClass.PresenceEvent event) {
+        boolean delta = event.getKind() != ProfileDescriptorOuterClass.PresenceEvent.Kind.SNAPSHOT;
+        if (delta && event.getVersion() <= presenceVersion) {
+            // a delta written before a newer snapshot
+            return;
+        }
+        switch (event.getKind()) {
+            case SNAPSHOT -> {
+                onlineUsers.clear();
+                onlineUsers.addAll(event.getUsersList());
+                messageCreator.printMessage("Online users : " + String.join(" ", onlineUsers));
+            }
+            case JOINED -> {
+                onlineUsers.addAll(event.getUsersList());
+                messageCreator.printMessage("Joined : " + String.join(" ", event.getUsersList()));
+            }
+            case LEFT -> {
+                event.getUsersList().forEach(onlineUsers::remove);
+                messageCreator.printMessage("Left : " + String.join(" ", event.getUsersList()));
+            }
+            default -> {
+                return;
+            }
+        }
+        presenceVersion = event.getVersion();
+    }
+
+    /**
+     * Getting the online clients known to the client
+     */
+    synchronized List<String> getOnlineUsers() {
+        return new ArrayList<>(onlineUsers);
+    }
+
     /**
      * Installing a blocking plug. It is necessary for testing
      * @param blockingStub
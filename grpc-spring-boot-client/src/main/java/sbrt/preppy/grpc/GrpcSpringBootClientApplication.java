@@ -3,13 +3,23 @@ package sbrt.preppy.grpc;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ApplicationContext;
+import sbrt.preppy.grpc.clientlog.MessageCreator;
+import sbrt.preppy.grpc.clientlog.MessageHandler;
 import sbrt.preppy.grpc.exceptions.UserNotFoundException;
+import sbrt.preppy.grpc.load.LoadGenerator;
+import sbrt.preppy.grpc.load.LoadProperties;
 
 @SpringBootApplication
 public class GrpcSpringBootClientApplication {
 
     public static void main(String[] args) throws UserNotFoundException, InterruptedException {
         ApplicationContext context = SpringApplication.run(GrpcSpringBootClientApplication.class, args);
+        LoadProperties load = context.getBean(LoadProperties.class);
+        if (load.isEnabled()) {
+            MessageCreator messageCreator = new MessageHandler();
+            messageCreator.printMessage(new LoadGenerator(load, messageCreator).run().format());
+            System.exit(SpringApplication.exit(context));
+        }
         GrpcProfileClient client = context.getBean(GrpcProfileClientImpl.class);
         client.start();
     }
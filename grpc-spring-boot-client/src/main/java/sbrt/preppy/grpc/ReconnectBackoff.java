@@ -0,0 +1,87 @@
+package sbrt.preppy.grpc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * @author preppy
+ * Delays between the attempts to reconnect to the server.
+ * The ceiling of the delay doubles with every failed attempt up to the maximum, the delay itself is random below the ceiling,
+ * so the clients dropped by a restart of the server do not all come back at the same moment.
+ * The ceiling falls back to the initial delay only after the connection stayed up for the stable period,
+ * so a server that accepts the client and drops it again at once is not hammered with quick attempts.
+ */
+public class ReconnectBackoff {
+    private final long initialMillis;
+    private final long maxMillis;
+    private final long stableMillis;
+    private final LongSupplier clock;
+    /**
+     * Attempts made since the connection was last stable
+     */
+    private int attempts;
+    /**
+     * Moment of the last successful reconnect in milliseconds, -1 while the client is not connected
+     */
+    private long connectedAt = -1;
+
+    /**
+     * @param initialMillis ceiling of the delay before the first attempt
+     * @param maxMillis     largest ceiling of the delay
+     * @param stableMillis  time the connection has to stay up before the ceiling falls back to the initial delay
+     */
+    public ReconnectBackoff(long initialMillis, long maxMillis, long stableMillis) {
+        this(initialMillis, maxMillis, stableMillis, System::currentTimeMillis);
+    }
+
+    ReconnectBackoff(long initialMillis, long maxMillis, long stableMillis, LongSupplier clock) {
+        if (initialMillis <= 0 || maxMillis < initialMillis || stableMillis < 0) {
+            throw new IllegalArgumentException("Wrong reconnect delays: " + initialMillis + " ms, " + maxMillis + " ms, "
+                    + stableMillis + " ms");
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.stableMillis = stableMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Getting the delay before the next attempt and counting the attempt
+     * @return delay in milliseconds, between 0 and the current ceiling
+     */
+    public synchronized long nextDelayMillis() {
+        if (connectedAt >= 0 && clock.getAsLong() - connectedAt >= stableMillis) {
+            attempts = 0;
+        }
+        connectedAt = -1;
+        long ceiling = initialMillis << Math.min(attempts, 30);
+        if (ceiling <= 0 || ceiling > maxMillis) {
+            ceiling = maxMillis;
+        }
+        attempts++;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Getting the number of attempts made since the last reset
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * The client is connected again: if the connection stays up for the stable period,
+     * the next loss of the connection starts from the initial delay
+     */
+    public synchronized void connected() {
+        connectedAt = clock.getAsLong();
+    }
+
+    /**
+     * Starting from the initial delay right away
+     */
+    public synchronized void reset() {
+        attempts = 0;
+        connectedAt = -1;
+    }
+}
@@ -0,0 +1,110 @@
+package sbrt.preppy.grpc;
+
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.grpc.exceptions.MessageOutcomeUnknownException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @author preppy
+ * Messages sent through one chat stream and waiting for their ack.
+ * At most capacity messages are in flight: a sender waits for a free place, so a fast sender cannot queue
+ * an unbounded number of messages in the stream. The server publishes the messages of a stream in the order they were sent.
+ * When the stream ends, the messages already written without an ack fail with MessageOutcomeUnknownException,
+ * because the server may have published them, while the messages registered after the end fail with the error of the stream.
+ */
+public class SendWindow {
+    private final int capacity;
+    /**
+     * Free places of the window
+     */
+    private final Semaphore places;
+    /**
+     * Futures of the sent messages by request id
+     */
+    private final Map<Long, CompletableFuture<ProfileDescriptorOuterClass.SendAck>> pending = new ConcurrentHashMap<>();
+    /**
+     * Cause of the end of the stream, null while it is open
+     */
+    private volatile Throwable closed;
+
+    public SendWindow(int capacity) {
+        this.capacity = capacity;
+        this.places = new Semaphore(capacity);
+    }
+
+    /**
+     * Taking a place for a message, waiting while the window is full
+     * @param requestId number of the message in the stream
+     * @return future completed with the ack of the message
+     * @throws InterruptedException the sender was interrupted while waiting
+     */
+    public CompletableFuture<ProfileDescriptorOuterClass.SendAck> register(long requestId) throws InterruptedException {
+        places.acquire();
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> future = new CompletableFuture<>();
+        Throwable cause = closed;
+        if (cause != null) {
+            places.release();
+            future.completeExceptionally(cause);
+            return future;
+        }
+        pending.put(requestId, future);
+        // the stream may have been closed before the future was added, the message is not written then
+        cause = closed;
+        if (cause != null) {
+            fail(requestId, cause);
+        }
+        return future;
+    }
+
+    /**
+     * Completing the message answered by the server and freeing its place
+     * @param ack ack of the server, acks of unknown messages are ignored
+     */
+    public void complete(ProfileDescriptorOuterClass.SendAck ack) {
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> future = pending.remove(ack.getRequestId());
+        if (future != null) {
+            places.release();
+            future.complete(ack);
+        }
+    }
+
+    /**
+     * Failing a message that could not be sent and freeing its place
+     * @param requestId number of the message
+     * @param cause     error of the stream
+     */
+    public void fail(long requestId, Throwable cause) {
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> future = pending.remove(requestId);
+        if (future != null) {
+            places.release();
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * The stream ended: the messages without an ack fail with an unknown outcome and the senders waiting for a place are released
+     * @param cause error of the stream
+     */
+    public void close(Throwable cause) {
+        if (closed != null) {
+            return;
+        }
+        closed = cause;
+        for (Long requestId : pending.keySet()) {
+            fail(requestId, new MessageOutcomeUnknownException(requestId, cause));
+        }
+        // wakes up every waiting sender, each of them sees the window closed
+        places.release(capacity);
+    }
+
+    /**
+     * Getting the number of messages waiting for their ack
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+}
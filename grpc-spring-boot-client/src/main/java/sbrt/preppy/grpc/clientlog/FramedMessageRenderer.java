@@ -0,0 +1,134 @@
+package sbrt.preppy.grpc.clientlog;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author preppy
+ * Output of the client drawn in frames: printMessage only queues the line, so the gRPC callback threads never wait for the terminal.
+ * A separate thread writes the queued lines at most once per frame with one write.
+ * When more lines arrived than a frame shows, only the newest are shown after a line with the number of the skipped ones.
+ * While the client types the lines are written above its input line, which draws the prompt with the typed text again.
+ */
+public class FramedMessageRenderer extends MessageHandler {
+    /**
+     * Time between two frames
+     */
+    private static final long FRAME_MS = 50;
+    /**
+     * Lines shown in one frame
+     */
+    private static final int MAX_LINES_PER_FRAME = 40;
+    /**
+     * Lines waiting for a frame, the oldest are skipped beyond it
+     */
+    private static final int MAX_QUEUED = 10_000;
+
+    private final PrintStream out;
+    private final int maxLinesPerFrame;
+    private final int maxQueued;
+    private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    /**
+     * Lines skipped because the queue was full, reported with the next frame
+     */
+    private final AtomicLong skipped = new AtomicLong();
+    private final ScheduledExecutorService frames = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Input line of the client, null while the client does not type
+     */
+    private volatile InputLine inputLine;
+
+    /**
+     * Renderer writing to the standard output 20 times per second
+     */
+    public FramedMessageRenderer() {
+        this(System.out, FRAME_MS, MAX_LINES_PER_FRAME, MAX_QUEUED);
+    }
+
+    FramedMessageRenderer(PrintStream out, long frameMillis, int maxLinesPerFrame, int maxQueued) {
+        this.out = out;
+        this.maxLinesPerFrame = maxLinesPerFrame;
+        this.maxQueued = maxQueued;
+        frames.scheduleWithFixedDelay(this::flush, frameMillis, frameMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queuing a line for the next frame
+     * @param message text of message
+     */
+    @Override
+    public void printMessage(String message) {
+        lines.add(message);
+        if (queued.incrementAndGet() > maxQueued && lines.poll() != null) {
+            queued.decrementAndGet();
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * The lines queued before are written first, so they are not drawn above a prompt that is not read anymore
+     * @param inputLine input line of the client, null when the client stops typing
+     */
+    @Override
+    public void setInputLine(InputLine inputLine) {
+        flush();
+        this.inputLine = inputLine;
+    }
+
+    /**
+     * Writing the queued lines as one frame
+     */
+    @Override
+    public synchronized void flush() {
+        List<String> frame = new ArrayList<>();
+        String line;
+        while ((line = lines.poll()) != null) {
+            queued.decrementAndGet();
+            frame.add(line);
+        }
+        long more = skipped.getAndSet(0);
+        if (frame.size() > maxLinesPerFrame) {
+            more += frame.size() - maxLinesPerFrame;
+            frame = frame.subList(frame.size() - maxLinesPerFrame, frame.size());
+        }
+        if (frame.isEmpty() && more == 0) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        if (more > 0) {
+            text.append(" +").append(more).append(" more messages").append(System.lineSeparator());
+        }
+        for (String shown : frame) {
+            text.append(shown).append(System.lineSeparator());
+        }
+        write(text.toString());
+    }
+
+    private void write(String text) {
+        InputLine current = inputLine;
+        if (current != null) {
+            try {
+                current.printAbove(text);
+                return;
+            } catch (IOException e) {
+                inputLine = null;
+            }
+        }
+        out.print(text);
+        out.flush();
+    }
+}
@@ -0,0 +1,16 @@
+package sbrt.preppy.grpc.clientlog;
+
+import java.io.IOException;
+
+/**
+ * @author preppy
+ * The line the client types in while the chat messages arrive.
+ */
+public interface InputLine {
+    /**
+     * Writing lines above the input line and drawing the prompt with the typed text again
+     * @param text lines to write, each ending with a line separator
+     * @throws IOException the terminal cannot be written anymore
+     */
+    void printAbove(String text) throws IOException;
+}
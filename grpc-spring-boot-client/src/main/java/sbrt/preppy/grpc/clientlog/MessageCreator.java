@@ -11,4 +11,17 @@ public interface MessageCreator {
      void printSuccessFullyDisconnect();
      void printFailedDisconnect();
      void printFailedMessage();
+
+     /**
+      * Showing the messages above the input line while the client types
+      * @param inputLine input line of the client, null when the client stops typing
+      */
+     default void setInputLine(InputLine inputLine) {
+     }
+
+     /**
+      * Writing out the messages that are still waiting to be shown
+      */
+     default void flush() {
+     }
 }
@@ -5,7 +5,8 @@ import io.grpc.ManagedChannel;
 /**
  * @author preppy
  * A class containing the main system messages for the client.
- * So using logging in the client module is unnecessary. The creation of messages is placed in this class
+ * So using logging in the client module is unnecessary. The creation of messages is placed in this class.
+ * Every message goes through printMessage, so a subclass decides how the lines reach the terminal.
  */
 public class MessageHandler implements MessageCreator{
 
@@ -24,7 +25,7 @@ public class MessageHandler implements MessageCreator{
      */
     @Override
     public void printWrongSymbol() {
-        System.out.println(" !Неверный символ: нельзя использовать @");
+        printMessage(" !Неверный символ: нельзя использовать @");
     }
 
     /**
@@ -33,10 +34,10 @@ public class MessageHandler implements MessageCreator{
      */
     @Override
     public void printWrongMessageBody() {
-        System.out.println("-----Введите сообщение для отправки всем----");
-        System.out.println("-----Для приватного сообщения в конце текста укажите получателя " +
+        printMessage("-----Введите сообщение для отправки всем----");
+        printMessage("-----Для приватного сообщения в конце текста укажите получателя " +
                 "Пример: text @username -----");
-        System.out.println("-----Для выведения списка on-line пользователей введите команду #online----");
+        printMessage("-----Для выведения списка on-line пользователей введите команду #online----");
     }
 
     /**
@@ -45,7 +46,7 @@ public class MessageHandler implements MessageCreator{
      */
     @Override
     public void printSuccessFullyDisconnect() {
-        System.out.println("Successfully disconnected from server.");
+        printMessage("Successfully disconnected from server.");
     }
 
     /**
@@ -54,7 +55,7 @@ public class MessageHandler implements MessageCreator{
      */
     @Override
     public void printFailedDisconnect() {
-        System.out.println("Failed to disconnect from server");
+        printMessage("Failed to disconnect from server");
     }
 
     /**
@@ -62,7 +63,7 @@ public class MessageHandler implements MessageCreator{
      */
     @Override
     public void printFailedMessage() {
-        System.out.println("Could not connect with server. Try again.");
+        printMessage("Could not connect with server. Try again.");
     }
 
 }
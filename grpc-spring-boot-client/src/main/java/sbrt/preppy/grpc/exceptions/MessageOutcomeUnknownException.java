@@ -0,0 +1,25 @@
+package sbrt.preppy.grpc.exceptions;
+
+/**
+ * The exception is about a message that was written to the chat stream, but the stream ended before its ack.
+ * The server may have published the message already, so sending it again may show it twice.
+ */
+public class MessageOutcomeUnknownException extends Exception {
+    private final long requestId;
+
+    /**
+     * @param requestId number of the message in the stream
+     * @param cause     error that ended the stream
+     */
+    public MessageOutcomeUnknownException(long requestId, Throwable cause) {
+        super("The chat stream ended before the ack of message " + requestId + ", it may have been published", cause);
+        this.requestId = requestId;
+    }
+
+    /**
+     * Getting the number of the message in the stream
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+}
@@ -0,0 +1,272 @@
+package sbrt.preppy.grpc.load;
+
+import io.grpc.DecompressorRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.grpc.clientlog.MessageCreator;
+import sbrt.preppy.compression.DeflateCodec;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * @author preppy
+ * Headless load generator: simulated users sharing a few channels send broadcast and private messages
+ * at a fixed rate and measure how long the server takes to deliver them to the other simulated users.
+ * The messages are sent on schedule whatever the server does, the latency is measured from the moment a message was due,
+ * so a stalled server shows in the latency instead of slowing down the load.
+ * Every message carries the time it was due, messages of other clients and of the server are not counted.
+ */
+public class LoadGenerator implements SimulatedUser.Receiver {
+    /**
+     * Start of the text of the messages sent by the generator, followed by the time the message was due
+     */
+    static final String MARKER = "load:";
+    /**
+     * Text of the messages checking that the streams of all users are open
+     */
+    private static final String PROBE = MARKER + "probe";
+    private static final long PROBE_INTERVAL_MS = 50;
+    private static final long PROBE_TIMEOUT_MS = 10_000;
+
+    private final LoadProperties properties;
+    private final Supplier<ManagedChannel> channelFactory;
+    private final MessageCreator messageCreator;
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<SimulatedUser> users = new ArrayList<>();
+    /**
+     * Users whose stream received a probe
+     */
+    private final AtomicInteger ready = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    /**
+     * Sends not yet answered by the server
+     */
+    private final LongAdder inFlight = new LongAdder();
+    /**
+     * Delivery latency in microseconds
+     */
+    private final Histogram latency = new ConcurrentHistogram(3);
+
+    /**
+     * Load generator connecting to the server of the settings
+     * @param properties     settings of the run
+     * @param messageCreator output of the progress and the report
+     */
+    public LoadGenerator(LoadProperties properties, MessageCreator messageCreator) {
+        this(properties, () -> ManagedChannelBuilder.forTarget(properties.getTarget())
+                .usePlaintext()
+                .decompressorRegistry(DecompressorRegistry.getDefaultInstance().with(new DeflateCodec(), true))
+                .build(), messageCreator);
+    }
+
+    LoadGenerator(LoadProperties properties, Supplier<ManagedChannel> channelFactory, MessageCreator messageCreator) {
+        this.properties = properties;
+        this.channelFactory = channelFactory;
+        this.messageCreator = messageCreator;
+    }
+
+    /**
+     * Running the load: connecting the users, sending for the configured duration,
+     * waiting for the messages still on the way and disconnecting the users
+     * @return result of the run
+     * @throws InterruptedException the run was interrupted
+     */
+    public LoadReport run() throws InterruptedException {
+        int userCount = properties.getUsers();
+        int channelCount = Math.max(1, Math.min(properties.getChannels(), userCount));
+        if (userCount < 2) {
+            throw new IllegalArgumentException("The load needs at least 2 users, got " + userCount);
+        }
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                channels.add(channelFactory.get());
+            }
+            for (int i = 0; i < userCount; i++) {
+                SimulatedUser user = new SimulatedUser(properties.getUserPrefix() + i, channels.get(i % channelCount), this);
+                if (!user.connect()) {
+                    throw new IllegalStateException(user.getName() + " is already connected to the server");
+                }
+                users.add(user);
+                user.subscribe();
+            }
+            awaitStreams();
+            messageCreator.printMessage("Load: " + userCount + " users connected over " + channelCount
+                    + " channels, sending " + properties.getRate() + " msg/s for " + properties.getDuration().toSeconds() + " s.");
+
+            long start = System.nanoTime();
+            send(start, start + properties.getDuration().toNanos());
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            drain();
+            return new LoadReport(userCount, channelCount, elapsed, sent.sum(), failed.sum(), expected.sum(),
+                    delivered.sum(), resyncs.sum(), latency.copy());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * The streams are opened asynchronously: probes are broadcast until every user received one,
+     * the stream of a user is ordered, so the probes are not mixed with the measured messages
+     */
+    private void awaitStreams() throws InterruptedException {
+        SimulatedUser prober = users.get(0);
+        long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+        while (ready.get() < users.size()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + ready.get() + " of " + users.size() + " message streams are open");
+            }
+            prober.getAsyncStub().sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder()
+                    .setSender(prober.getName()).setText(PROBE).build(), result(() -> { }, () -> { }));
+            Thread.sleep(PROBE_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Sending the messages on schedule, the users take turns as senders
+     * @param start time the first message is due
+     * @param end   no message is due after this time
+     */
+    private void send(long start, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, properties.getRate());
+        // the marker and the due time take about 25 characters of the text
+        String padding = "x".repeat(Math.max(0, properties.getMessageSize() - MARKER.length() - 20));
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due >= end) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            SimulatedUser sender = users.get((int) (i % users.size()));
+            String text = MARKER + due + " " + padding;
+            if (ThreadLocalRandom.current().nextDouble() < properties.getPrivateRatio()) {
+                sendPrivate(sender, text);
+            } else {
+                sendBroadcast(sender, text);
+            }
+        }
+    }
+
+    private void sendBroadcast(SimulatedUser sender, String text) {
+        inFlight.increment();
+        sender.getAsyncStub().sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder()
+                .setSender(sender.getName()).setText(text).build(), result(() -> accepted(users.size() - 1), this::rejected));
+    }
+
+    private void sendPrivate(SimulatedUser sender, String text) {
+        SimulatedUser receiver;
+        do {
+            receiver = users.get(ThreadLocalRandom.current().nextInt(users.size()));
+        } while (receiver == sender);
+        inFlight.increment();
+        sender.getAsyncStub().sendPrivateMsg(ProfileDescriptorOuterClass.PrivateMessageText.newBuilder()
+                .setMessageText(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender(sender.getName()).setText(text))
+                .setReceiver(receiver.getName()).build(), result(() -> accepted(1), this::rejected));
+    }
+
+    private void accepted(int receivers) {
+        sent.increment();
+        expected.add(receivers);
+        inFlight.decrement();
+    }
+
+    private void rejected() {
+        failed.increment();
+        inFlight.decrement();
+    }
+
+    /**
+     * Waiting until the server answered every send and every expected delivery arrived, at most the drain timeout
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + properties.getDrainTimeout().toMillis();
+        while ((inFlight.sum() > 0 || delivered.sum() < expected.sum()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Override
+    public void onMessage(SimulatedUser user, ProfileDescriptorOuterClass.ChatMessage message) {
+        String text = message.getText();
+        if (text.equals(PROBE)) {
+            if (user.markReady()) {
+                ready.incrementAndGet();
+            }
+            return;
+        }
+        if (!text.startsWith(MARKER) || message.getSender().equals(user.getName())) {
+            return;
+        }
+        int end = text.indexOf(' ', MARKER.length());
+        long due = Long.parseLong(end < 0 ? text.substring(MARKER.length()) : text.substring(MARKER.length(), end));
+        latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due)));
+        delivered.increment();
+    }
+
+    @Override
+    public void onResync() {
+        resyncs.increment();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        messageCreator.printMessage("Load: a message stream failed: " + t.getMessage());
+    }
+
+    /**
+     * Disconnecting the users and closing the channels
+     */
+    private void close() throws InterruptedException {
+        for (SimulatedUser user : users) {
+            try {
+                user.disconnect();
+            } catch (StatusRuntimeException e) {
+                messageCreator.printMessage("Load: could not disconnect " + user.getName() + ": " + e.getStatus());
+            }
+        }
+        for (ManagedChannel channel : channels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Observer of a unary call, used only for its outcome
+     */
+    private static <T> StreamObserver<T> result(Runnable onSuccess, Runnable onFailure) {
+        return new StreamObserver<>() {
+            @Override
+            public void onNext(T value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                onFailure.run();
+            }
+
+            @Override
+            public void onCompleted() {
+                onSuccess.run();
+            }
+        };
+    }
+}
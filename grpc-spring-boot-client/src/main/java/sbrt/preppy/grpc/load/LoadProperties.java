@@ -0,0 +1,59 @@
+package sbrt.preppy.grpc.load;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * @author preppy
+ * Settings of the headless load generator, read from the "chat.load" prefix of application.yml
+ */
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "chat.load")
+public class LoadProperties {
+    /**
+     * The client runs the load generator instead of the console
+     */
+    private boolean enabled = false;
+    /**
+     * Server address, host:port
+     */
+    private String target = "localhost:9090";
+    /**
+     * Number of simulated users
+     */
+    private int users = 100;
+    /**
+     * Number of gRPC channels shared by the simulated users
+     */
+    private int channels = 4;
+    /**
+     * Messages sent per second by all users together
+     */
+    private int rate = 1000;
+    /**
+     * Share of private messages among the sent messages, the rest are broadcast
+     */
+    private double privateRatio = 0.2;
+    /**
+     * Length of the text of a message in characters
+     */
+    private int messageSize = 64;
+    /**
+     * How long the messages are sent
+     */
+    private Duration duration = Duration.ofSeconds(30);
+    /**
+     * How long the messages still on the way are waited for after the last one was sent
+     */
+    private Duration drainTimeout = Duration.ofSeconds(5);
+    /**
+     * Prefix of the names of the simulated users
+     */
+    private String userPrefix = "load";
+}
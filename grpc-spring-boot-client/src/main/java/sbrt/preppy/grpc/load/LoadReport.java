@@ -0,0 +1,86 @@
+package sbrt.preppy.grpc.load;
+
+import lombok.Getter;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * @author preppy
+ * Result of a load run: throughput of the sent and delivered messages, lost messages
+ * and the end-to-end delivery latency from the moment a message was due to be sent until a receiver got it.
+ */
+@Getter
+public class LoadReport {
+    private final int users;
+    private final int channels;
+    /**
+     * Time the messages were sent
+     */
+    private final Duration elapsed;
+    /**
+     * Messages accepted by the server
+     */
+    private final long sent;
+    /**
+     * Messages the server failed to accept
+     */
+    private final long failed;
+    /**
+     * Deliveries the accepted messages should have made to the simulated users
+     */
+    private final long expected;
+    /**
+     * Deliveries received by the simulated users
+     */
+    private final long delivered;
+    /**
+     * Streams resumed after the server dropped messages
+     */
+    private final long resyncs;
+    /**
+     * Delivery latency in microseconds
+     */
+    private final Histogram latency;
+
+    public LoadReport(int users, int channels, Duration elapsed, long sent, long failed, long expected, long delivered,
+                      long resyncs, Histogram latency) {
+        this.users = users;
+        this.channels = channels;
+        this.elapsed = elapsed;
+        this.sent = sent;
+        this.failed = failed;
+        this.expected = expected;
+        this.delivered = delivered;
+        this.resyncs = resyncs;
+        this.latency = latency;
+    }
+
+    /**
+     * Getting the deliveries that never arrived
+     */
+    public long getLost() {
+        return Math.max(0, expected - delivered);
+    }
+
+    /**
+     * Summary printed at the end of a run
+     */
+    public String format() {
+        double seconds = Math.max(elapsed.toMillis(), 1) / 1000.0;
+        return String.format(Locale.ROOT,
+                "Load run: %d users over %d channels for %.1f s%n" +
+                        "Sent: %d messages (%.1f msg/s), failed %d%n" +
+                        "Delivered: %d of %d expected (%.1f msg/s), lost %d, resyncs %d%n" +
+                        "Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                users, channels, seconds,
+                sent, sent / seconds, failed,
+                delivered, expected, delivered / seconds, getLost(), resyncs,
+                percentile(50), percentile(90), percentile(99), percentile(99.9), latency.getMaxValue() / 1000.0);
+    }
+
+    private double percentile(double percentile) {
+        return latency.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
@@ -0,0 +1,164 @@
+package sbrt.preppy.grpc.load;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lombok.Getter;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author preppy
+ * One user of the load generator: a connected client with an open message stream.
+ * The stream is resumed after the last received message when the server dropped messages or closed it as too slow,
+ * like the console client does.
+ */
+class SimulatedUser {
+    @Getter
+    private final String name;
+    private final ProfileServiceGrpc.ProfileServiceBlockingStub blockingStub;
+    @Getter
+    private final ProfileServiceGrpc.ProfileServiceStub asyncStub;
+    /**
+     * Receiver of the messages of the stream
+     */
+    private final Receiver receiver;
+    /**
+     * Sequence number of the last received message
+     */
+    private volatile long lastSeq;
+    /**
+     * Current message stream
+     */
+    private volatile ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> stream;
+    /**
+     * Set once the stream of the user delivered a message
+     */
+    private final AtomicBoolean ready = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /**
+     * Receiver of the messages of a simulated user
+     */
+    interface Receiver {
+        /**
+         * Receiving a message of the stream
+         * @param user    receiving user
+         * @param message the message
+         */
+        void onMessage(SimulatedUser user, ProfileDescriptorOuterClass.ChatMessage message);
+
+        /**
+         * The stream of the user is resumed after a gap
+         */
+        void onResync();
+
+        /**
+         * The stream of the user failed and is not resumed
+         * @param t cause
+         */
+        void onError(Throwable t);
+    }
+
+    SimulatedUser(String name, ManagedChannel channel, Receiver receiver) {
+        this.name = name;
+        this.blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
+        this.asyncStub = ProfileServiceGrpc.newStub(channel);
+        this.receiver = receiver;
+    }
+
+    /**
+     * Connecting the user to the server
+     * @return false if a client with the name is already connected
+     */
+    boolean connect() {
+        return blockingStub.connectUser(userInfo()).getIsConnected();
+    }
+
+    /**
+     * Opening the message stream, after the last received message if there is one
+     */
+    void subscribe() {
+        asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder()
+                .setName(name)
+                .setResumeAfterSeq(lastSeq).build(), new StreamReceiver());
+    }
+
+    /**
+     * Marking the stream of the user as open
+     * @return true only the first time
+     */
+    boolean markReady() {
+        return ready.compareAndSet(false, true);
+    }
+
+    /**
+     * Closing the message stream and disconnecting the user
+     */
+    void disconnect() {
+        closed = true;
+        ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> current = stream;
+        if (current != null) {
+            current.cancel("Load run is over", null);
+        }
+        blockingStub.disconnectUser(userInfo());
+    }
+
+    private ProfileDescriptorOuterClass.UserInfo userInfo() {
+        return ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(name).build();
+    }
+
+    /**
+     * One message stream of the user
+     */
+    private final class StreamReceiver implements ClientResponseObserver<ProfileDescriptorOuterClass.SyncRequest,
+            ProfileDescriptorOuterClass.ChatMessage> {
+        private ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> call;
+        /**
+         * Set when the stream is replaced, its remaining messages come again on the new stream
+         */
+        private boolean resyncing;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ProfileDescriptorOuterClass.SyncRequest> call) {
+            this.call = call;
+            stream = call;
+        }
+
+        @Override
+        public void onNext(ProfileDescriptorOuterClass.ChatMessage message) {
+            if (resyncing) {
+                return;
+            }
+            if (message.getType() == ProfileDescriptorOuterClass.ChatMessage.Type.GAP) {
+                resyncing = true;
+                call.cancel("Resync after a gap", null);
+                receiver.onResync();
+                subscribe();
+                return;
+            }
+            lastSeq = message.getSeq();
+            receiver.onMessage(SimulatedUser.this, message);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (resyncing || closed) {
+                return;
+            }
+            if (Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+                receiver.onResync();
+                subscribe();
+                return;
+            }
+            receiver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
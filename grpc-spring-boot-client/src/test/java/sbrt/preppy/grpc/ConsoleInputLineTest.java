@@ -0,0 +1,49 @@
+package sbrt.preppy.grpc;
+
+import jline.UnsupportedTerminal;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsoleInputLineTest {
+
+    //Пока клиент ждет ввода, сообщения пишутся над строкой ввода, а набранный после этого текст читается целиком
+    @Test
+    void linesAreWrittenWhileTheReaderWaitsForAKey() throws Exception {
+        PipedOutputStream keys = new PipedOutputStream();
+        ByteArrayOutputStream screen = new ByteArrayOutputStream();
+        try (ConsoleInputLine console = new ConsoleInputLine(new PipedInputStream(keys), screen, new UnsupportedTerminal())) {
+            CompletableFuture<String> line = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return console.readLine(">");
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            keys.write("he".getBytes(StandardCharsets.UTF_8));
+            keys.flush();
+            Thread.sleep(100);
+
+            CompletableFuture.runAsync(() -> {
+                try {
+                    console.printAbove("message" + System.lineSeparator());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertTrue(screen.toString(StandardCharsets.UTF_8).contains("message"));
+            assertFalse(line.isDone());
+
+            keys.write("llo\n".getBytes(StandardCharsets.UTF_8));
+            keys.flush();
+            assertEquals("hello", line.get(5, TimeUnit.SECONDS));
+        }
+    }
+}
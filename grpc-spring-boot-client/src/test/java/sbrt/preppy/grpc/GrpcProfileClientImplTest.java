@@ -4,6 +4,12 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
@@ -15,6 +21,13 @@ import sbrt.preppy.grpc.exceptions.DuplicateUsernameException;
 import sbrt.preppy.grpc.exceptions.UserNotFoundException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 
 import static org.mockito.Mockito.when;
@@ -81,6 +94,274 @@ class GrpcProfileClientImplTest {
         String text = "Some private message @receiver";
         grpcProfileClient.setBlockingStub(blockingStub);
         grpcProfileClient.sendPrivateMsg(text);
-        verify(blockingStub).sendPrivateMsg(any(ProfileDescriptorOuterClass.PrivateMessageText.class));
+        verify(blockingStub).sendPrivateMsg(argThat(m -> m.getReceiver().equals("receiver")
+                && m.getMessageText().getText().equals("Some private message")));
+    }
+
+    //Сообщение в комнату уходит широковещательным вызовом с названием комнаты
+    @Test
+    public void testSendRoomMsg() throws UserNotFoundException, IOException {
+        grpcProfileClient.setBlockingStub(blockingStub);
+        when(blockingStub.connectUser(any(ProfileDescriptorOuterClass.UserInfo.class)))
+                .thenReturn(ProfileDescriptorOuterClass.ConnectMessage.newBuilder().setIsConnected(true).build());
+        grpcProfileClient.connectUser("testUser");
+
+        grpcProfileClient.sendRoomMsg("java", "Hello room");
+
+        verify(blockingStub).sendBroadcastMsg(argThat(m -> m.getRoom().equals("java") && m.getText().equals("Hello room")
+                && m.getSender().equals("testUser")));
+    }
+
+    //Снимок заменяет список онлайн, дельты добавляют и удаляют, а устаревшая дельта пропускается
+    @Test
+    void presenceEventsUpdateOnlineUsers() {
+        grpcProfileClient.onPresence(ProfileDescriptorOuterClass.PresenceEvent.newBuilder()
+                .setKind(ProfileDescriptorOuterClass.PresenceEvent.Kind.SNAPSHOT).setVersion(5).addUsers("alice").addUsers("bob").build());
+        grpcProfileClient.onPresence(ProfileDescriptorOuterClass.PresenceEvent.newBuilder()
+                .setKind(ProfileDescriptorOuterClass.PresenceEvent.Kind.LEFT).setVersion(4).addUsers("alice").build());
+        grpcProfileClient.onPresence(ProfileDescriptorOuterClass.PresenceEvent.newBuilder()
+                .setKind(ProfileDescriptorOuterClass.PresenceEvent.Kind.JOINED).setVersion(6).addUsers("carol").build());
+        grpcProfileClient.onPresence(ProfileDescriptorOuterClass.PresenceEvent.newBuilder()
+                .setKind(ProfileDescriptorOuterClass.PresenceEvent.Kind.LEFT).setVersion(7).addUsers("bob").build());
+
+        assertEquals(List.of("alice", "carol"), grpcProfileClient.getOnlineUsers());
+    }
+
+    //Асинхронные отправки идут по потоку чата без ожидания ответа, не больше окна за раз и в порядке отправки
+    @Test
+    void asyncSendsArePipelinedWithinTheWindow() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        WindowedChatService service = new WindowedChatService(GrpcProfileClientImpl.MAX_IN_FLIGHT);
+        Server server = InProcessServerBuilder.forName(name).addService(service).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        GrpcProfileClientImpl client = new GrpcProfileClientImpl(channel);
+        int messages = GrpcProfileClientImpl.MAX_IN_FLIGHT + 10;
+        try {
+            assertTrue(client.connectUser("bot"));
+            client.openChat();
+            List<CompletableFuture<ProfileDescriptorOuterClass.SendAck>> acks = new ArrayList<>();
+            for (int i = 0; i < messages; i++) {
+                acks.add(client.sendBroadcastAsync("message " + i));
+            }
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            assertTrue(acks.stream().allMatch(ack -> ack.join().getAccepted()));
+            assertEquals(GrpcProfileClientImpl.MAX_IN_FLIGHT, service.receivedWhileFull);
+            assertEquals(IntStream.range(0, messages).mapToObj(i -> "message " + i).toList(), service.texts);
+        } finally {
+            client.closeChat();
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    //После перезапуска сервера клиент сам подключается снова, заново входит в свои комнаты
+    //и только потом продолжает поток чата после последнего полученного сообщения
+    @Test
+    void reconnectsAfterServerRestartAndResumesTheChat() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        RestartedChatService before = new RestartedChatService(5);
+        Server server = InProcessServerBuilder.forName(name).addService(before).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        GrpcProfileClientImpl client = new GrpcProfileClientImpl(channel, new ReconnectBackoff(10, 50, 1000));
+        RestartedChatService after = new RestartedChatService(0);
+        Server restarted = null;
+        try {
+            assertTrue(client.connectUser("bot"));
+            client.joinRoom("team");
+            client.joinRoom("lunch");
+            client.leaveRoom("lunch");
+            client.openChat();
+            assertEquals(0L, before.resumedAfter.get(5, TimeUnit.SECONDS).longValue());
+            before.delivered.get(5, TimeUnit.SECONDS);
+
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            restarted = InProcessServerBuilder.forName(name).addService(after).build().start();
+
+            assertEquals(5L, after.resumedAfter.get(5, TimeUnit.SECONDS).longValue());
+            assertEquals(1, after.connects.get());
+            assertEquals(List.of("connect", "join team", "resume 5"), after.calls);
+            assertEquals(1, client.getReconnects());
+            assertTrue(client.getDowntime().toMillis() >= 100);
+        } finally {
+            client.closeChat();
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            if (restarted != null) {
+                restarted.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    //Поток, закрытый сервером с ошибкой, которая не проходит сама, не открывается заново
+    @Test
+    void refusedStreamIsNotReopened() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        RestartedChatService service = new RestartedChatService(0, Status.PERMISSION_DENIED);
+        Server server = InProcessServerBuilder.forName(name).addService(service).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        GrpcProfileClientImpl client = new GrpcProfileClientImpl(channel, new ReconnectBackoff(10, 50, 1000));
+        try {
+            assertTrue(client.connectUser("bot"));
+            client.openChat();
+            service.resumedAfter.get(5, TimeUnit.SECONDS);
+            Thread.sleep(300);
+            assertEquals(1, service.connects.get());
+            assertEquals(0, client.getReconnects());
+        } finally {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Сервер, который после подписки на чат отправляет одно сообщение с заданным номером или закрывает поток с ошибкой
+     */
+    private static final class RestartedChatService extends ProfileServiceGrpc.ProfileServiceImplBase {
+        private final long seq;
+        private final Status refusal;
+        /**
+         * Вызовы клиента по порядку
+         */
+        private final List<String> calls = new CopyOnWriteArrayList<>();
+        private final AtomicInteger connects = new AtomicInteger();
+        private final CompletableFuture<Long> resumedAfter = new CompletableFuture<>();
+        private final CompletableFuture<Void> delivered = new CompletableFuture<>();
+
+        private RestartedChatService(long seq) {
+            this(seq, null);
+        }
+
+        private RestartedChatService(long seq, Status refusal) {
+            this.seq = seq;
+            this.refusal = refusal;
+        }
+
+        @Override
+        public void connectUser(ProfileDescriptorOuterClass.UserInfo request,
+                                StreamObserver<ProfileDescriptorOuterClass.ConnectMessage> responseObserver) {
+            connects.incrementAndGet();
+            calls.add("connect");
+            responseObserver.onNext(ProfileDescriptorOuterClass.ConnectMessage.newBuilder().setIsConnected(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void joinRoom(ProfileDescriptorOuterClass.RoomRequest request,
+                             StreamObserver<ProfileDescriptorOuterClass.RoomInfo> responseObserver) {
+            calls.add("join " + request.getRoom());
+            responseObserver.onNext(ProfileDescriptorOuterClass.RoomInfo.newBuilder().setRoom(request.getRoom()).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void leaveRoom(ProfileDescriptorOuterClass.RoomRequest request,
+                              StreamObserver<ProfileDescriptorOuterClass.RoomInfo> responseObserver) {
+            calls.add("leave " + request.getRoom());
+            responseObserver.onNext(ProfileDescriptorOuterClass.RoomInfo.newBuilder().setRoom(request.getRoom()).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat(
+                StreamObserver<ProfileDescriptorOuterClass.ServerEvent> responseObserver) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(ProfileDescriptorOuterClass.ClientEvent event) {
+                    if (!event.hasSubscribe()) {
+                        return;
+                    }
+                    calls.add("resume " + event.getSubscribe().getResumeAfterSeq());
+                    resumedAfter.complete(event.getSubscribe().getResumeAfterSeq());
+                    if (refusal != null) {
+                        responseObserver.onError(refusal.asRuntimeException());
+                        return;
+                    }
+                    if (seq > 0) {
+                        responseObserver.onNext(ProfileDescriptorOuterClass.ServerEvent.newBuilder()
+                                .setMessage(ProfileDescriptorOuterClass.ChatMessage.newBuilder()
+                                        .setSeq(seq).setSender("other").setText("before the restart")
+                                        .setType(ProfileDescriptorOuterClass.ChatMessage.Type.BROADCAST)).build());
+                    }
+                    delivered.complete(null);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+
+    /**
+     * Сервер, который отвечает на сообщения чата только после того, как получил их целое окно
+     */
+    private static final class WindowedChatService extends ProfileServiceGrpc.ProfileServiceImplBase {
+        private final int window;
+        private final List<String> texts = new ArrayList<>();
+        private final List<Long> unanswered = new ArrayList<>();
+        private volatile int receivedWhileFull;
+        private boolean released;
+
+        private WindowedChatService(int window) {
+            this.window = window;
+        }
+
+        @Override
+        public void connectUser(ProfileDescriptorOuterClass.UserInfo request,
+                                StreamObserver<ProfileDescriptorOuterClass.ConnectMessage> responseObserver) {
+            responseObserver.onNext(ProfileDescriptorOuterClass.ConnectMessage.newBuilder().setIsConnected(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat(
+                StreamObserver<ProfileDescriptorOuterClass.ServerEvent> responseObserver) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(ProfileDescriptorOuterClass.ClientEvent event) {
+                    if (!event.hasBroadcast()) {
+                        return;
+                    }
+                    synchronized (WindowedChatService.this) {
+                        texts.add(event.getBroadcast().getText());
+                        unanswered.add(event.getRequestId());
+                        if (released) {
+                            answer(responseObserver);
+                        } else if (texts.size() == window) {
+                            CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS).execute(() -> {
+                                synchronized (WindowedChatService.this) {
+                                    receivedWhileFull = texts.size();
+                                    released = true;
+                                    answer(responseObserver);
+                                }
+                            });
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        private void answer(StreamObserver<ProfileDescriptorOuterClass.ServerEvent> responseObserver) {
+            for (long requestId : unanswered) {
+                responseObserver.onNext(ProfileDescriptorOuterClass.ServerEvent.newBuilder()
+                        .setAck(ProfileDescriptorOuterClass.SendAck.newBuilder().setRequestId(requestId).setAccepted(true)).build());
+            }
+            unanswered.clear();
+        }
     }
 }
@@ -0,0 +1,45 @@
+package sbrt.preppy.grpc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconnectBackoffTest {
+
+    //Задержка случайна, но не превышает потолок, который удваивается с каждой попыткой до максимума и сбрасывается после подключения
+    @Test
+    void delayStaysBelowTheDoublingCeiling() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, 0);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= 0 && delay <= ceiling, delay + " > " + ceiling);
+        }
+        assertEquals(ceilings.length, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+
+    //Потолок сбрасывается, только если соединение продержалось стабильный период, а при быстром обрыве продолжает расти
+    @Test
+    void ceilingFallsBackOnlyAfterAStableConnection() {
+        AtomicLong now = new AtomicLong();
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, 5000, now::get);
+        backoff.nextDelayMillis();
+        backoff.nextDelayMillis();
+        backoff.connected();
+
+        now.addAndGet(4999);
+        backoff.nextDelayMillis();
+        assertEquals(3, backoff.getAttempts());
+
+        backoff.connected();
+        now.addAndGet(5000);
+        assertTrue(backoff.nextDelayMillis() <= 100);
+        assertEquals(1, backoff.getAttempts());
+    }
+}
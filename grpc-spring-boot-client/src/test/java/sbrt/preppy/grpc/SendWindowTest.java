@@ -0,0 +1,55 @@
+package sbrt.preppy.grpc;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.grpc.exceptions.MessageOutcomeUnknownException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SendWindowTest {
+
+    //Отправитель ждет свободного места в полном окне, а закрытие потока завершает отправленные без ответа сообщения
+    //ошибкой с неизвестным исходом, а сообщения, не попавшие в поток, - ошибкой потока
+    @Test
+    void fullWindowWaitsForAnAckAndCloseFailsPendingMessages() throws Exception {
+        SendWindow window = new SendWindow(2);
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> first = window.register(1);
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> second = window.register(2);
+        CompletableFuture<CompletableFuture<ProfileDescriptorOuterClass.SendAck>> third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return window.register(3);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+
+        window.complete(ProfileDescriptorOuterClass.SendAck.newBuilder().setRequestId(1).setAccepted(true).setSeq(7).build());
+        assertEquals(7, first.get().getSeq());
+        CompletableFuture<ProfileDescriptorOuterClass.SendAck> registered = third.get(1, TimeUnit.SECONDS);
+        assertEquals(2, window.getInFlight());
+
+        CompletableFuture<CompletableFuture<ProfileDescriptorOuterClass.SendAck>> fourth = CompletableFuture.supplyAsync(() -> {
+            try {
+                return window.register(4);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        IllegalStateException closed = new IllegalStateException("closed");
+        window.close(closed);
+        ExecutionException unknown = assertThrows(ExecutionException.class, second::get);
+        assertInstanceOf(MessageOutcomeUnknownException.class, unknown.getCause());
+        assertEquals(2, ((MessageOutcomeUnknownException) unknown.getCause()).getRequestId());
+        assertSame(closed, unknown.getCause().getCause());
+        assertInstanceOf(MessageOutcomeUnknownException.class,
+                assertThrows(ExecutionException.class, registered::get).getCause());
+        assertSame(closed, assertThrows(ExecutionException.class, () -> fourth.get(1, TimeUnit.SECONDS).get()).getCause());
+        assertEquals(0, window.getInFlight());
+    }
+}
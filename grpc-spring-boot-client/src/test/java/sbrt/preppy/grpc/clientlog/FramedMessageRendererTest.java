@@ -0,0 +1,35 @@
+package sbrt.preppy.grpc.clientlog;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FramedMessageRendererTest {
+
+    //Сообщения выводятся только кадром, при всплеске показываются последние строки и число пропущенных
+    @Test
+    void burstIsCollapsedIntoOneFrame() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FramedMessageRenderer renderer = new FramedMessageRenderer(new PrintStream(output, true, StandardCharsets.UTF_8),
+                3_600_000, 10, 50);
+        IntStream.range(0, 100).forEach(i -> renderer.printMessage("line " + i));
+        assertEquals(0, output.size());
+
+        renderer.flush();
+        List<String> frame = output.toString(StandardCharsets.UTF_8).lines().toList();
+        assertEquals(" +90 more messages", frame.get(0));
+        assertEquals(IntStream.range(90, 100).mapToObj(i -> "line " + i).toList(), frame.subList(1, frame.size()));
+
+        output.reset();
+        renderer.printWrongSymbol();
+        renderer.flush();
+        renderer.flush();
+        assertEquals(List.of(" !Неверный символ: нельзя использовать @"), output.toString(StandardCharsets.UTF_8).lines().toList());
+    }
+}
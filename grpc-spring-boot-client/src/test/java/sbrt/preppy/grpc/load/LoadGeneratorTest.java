@@ -0,0 +1,107 @@
+package sbrt.preppy.grpc.load;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.grpc.clientlog.MessageCreator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class LoadGeneratorTest {
+
+    //Широковещательные сообщения доходят до всех остальных пользователей, потерянные сервером личные сообщения считаются потерянными
+    @Test
+    void countsDeliveriesAndLostMessages() throws IOException, InterruptedException {
+        String name = InProcessServerBuilder.generateName();
+        DroppingPrivateService service = new DroppingPrivateService();
+        Server server = InProcessServerBuilder.forName(name).addService(service).build().start();
+        LoadProperties properties = new LoadProperties();
+        properties.setUsers(5);
+        properties.setChannels(2);
+        properties.setRate(500);
+        properties.setPrivateRatio(0.5);
+        properties.setDuration(Duration.ofMillis(300));
+        properties.setDrainTimeout(Duration.ofMillis(500));
+        try {
+            LoadReport report = new LoadGenerator(properties, () -> InProcessChannelBuilder.forName(name).build(),
+                    mock(MessageCreator.class)).run();
+
+            long broadcasts = service.broadcasts.get();
+            long privates = service.privates.get();
+            assertTrue(broadcasts > 0 && privates > 0);
+            assertEquals(broadcasts + privates, report.getSent());
+            assertEquals(broadcasts * 4 + privates, report.getExpected());
+            assertEquals(broadcasts * 4, report.getDelivered());
+            assertEquals(privates, report.getLost());
+            assertEquals(report.getDelivered(), report.getLatency().getTotalCount());
+            assertTrue(service.streams.isEmpty());
+        } finally {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Сервер, рассылающий широковещательные сообщения и теряющий личные
+     */
+    private static final class DroppingPrivateService extends ProfileServiceGrpc.ProfileServiceImplBase {
+        private final Map<String, StreamObserver<ProfileDescriptorOuterClass.ChatMessage>> streams = new ConcurrentHashMap<>();
+        private final AtomicLong seq = new AtomicLong();
+        private final AtomicLong broadcasts = new AtomicLong();
+        private final AtomicLong privates = new AtomicLong();
+
+        @Override
+        public void connectUser(ProfileDescriptorOuterClass.UserInfo request,
+                                StreamObserver<ProfileDescriptorOuterClass.ConnectMessage> responseObserver) {
+            responseObserver.onNext(ProfileDescriptorOuterClass.ConnectMessage.newBuilder()
+                    .setUsername(request.getName()).setIsConnected(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void disconnectUser(ProfileDescriptorOuterClass.UserInfo request,
+                                   StreamObserver<ProfileDescriptorOuterClass.DisconnectMessage> responseObserver) {
+            streams.remove(request.getName());
+            responseObserver.onNext(ProfileDescriptorOuterClass.DisconnectMessage.newBuilder().setIsDisconnected(true).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void syncMessages(ProfileDescriptorOuterClass.SyncRequest request,
+                                 StreamObserver<ProfileDescriptorOuterClass.ChatMessage> responseObserver) {
+            streams.put(request.getName(), responseObserver);
+        }
+
+        @Override
+        public synchronized void sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText request,
+                                                  StreamObserver<ProfileDescriptorOuterClass.Empty> responseObserver) {
+            if (!request.getText().endsWith("probe")) {
+                broadcasts.incrementAndGet();
+            }
+            ProfileDescriptorOuterClass.ChatMessage message = ProfileDescriptorOuterClass.ChatMessage.newBuilder()
+                    .setSender(request.getSender()).setText(request.getText()).setSeq(seq.incrementAndGet()).build();
+            streams.values().forEach(stream -> stream.onNext(message));
+            responseObserver.onNext(ProfileDescriptorOuterClass.Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void sendPrivateMsg(ProfileDescriptorOuterClass.PrivateMessageText request,
+                                   StreamObserver<ProfileDescriptorOuterClass.Empty> responseObserver) {
+            privates.incrementAndGet();
+            responseObserver.onNext(ProfileDescriptorOuterClass.Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+    }
+}
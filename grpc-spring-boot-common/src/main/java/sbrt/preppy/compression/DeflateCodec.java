@@ -0,0 +1,45 @@
+package sbrt.preppy.compression;
+
+import io.grpc.Codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author preppy
+ * The "deflate" message encoding of gRPC tuned for speed.
+ * It compresses at the fastest deflate level, so it costs a fraction of the CPU of gzip
+ * for a slightly larger output, which suits chat traffic replayed to many clients.
+ */
+public class DeflateCodec implements Codec {
+    public static final String NAME = "deflate";
+
+    @Override
+    public String getMessageEncoding() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DeflaterOutputStream(os, deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        return new InflaterInputStream(is);
+    }
+}
@@ -0,0 +1,213 @@
+package sbrt.preppy.server;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import sbrt.preppy.compression.DeflateCodec;
+import sbrt.preppy.server.cluster.MessageBusType;
+import sbrt.preppy.server.database.MessageStoreType;
+import sbrt.preppy.server.dispatch.ExecutionMode;
+import sbrt.preppy.server.dispatch.SlowConsumerPolicy;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * @author preppy
+ * Chat server settings, read from the "chat" prefix of application.properties
+ */
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "chat")
+public class ChatProperties {
+    /**
+     * Settings of the message and user list streams
+     */
+    private final Stream stream = new Stream();
+    /**
+     * Settings of the write-behind message persistence
+     */
+    private final Persistence persistence = new Persistence();
+    /**
+     * Settings of the recent history cache
+     */
+    private final Cache cache = new Cache();
+    /**
+     * Settings of the online user list stream
+     */
+    private final Presence presence = new Presence();
+    /**
+     * Settings of the response compression
+     */
+    private final Compression compression = new Compression();
+    /**
+     * Settings of the server cluster
+     */
+    private final Cluster cluster = new Cluster();
+
+    @Getter
+    @Setter
+    public static class Stream {
+        /**
+         * How the open streams are written to
+         */
+        private ExecutionMode executionMode = ExecutionMode.POOLED;
+        /**
+         * Number of delivery threads of the POOLED mode
+         */
+        private int poolSize = Runtime.getRuntime().availableProcessors();
+        /**
+         * Messages queued for one stream after which the slow consumer policy is applied, zero for no bound
+         */
+        private int maxBacklog = 4096;
+        /**
+         * What happens to a stream whose client does not keep up
+         */
+        private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.GAP_MARKER;
+    }
+
+    @Getter
+    @Setter
+    public static class Presence {
+        /**
+         * Number of queued deltas after which a slow stream gets a fresh snapshot instead
+         */
+        private int maxLag = 256;
+        /**
+         * Interval of publishing the collected joins and leaves, zero publishes every change at once
+         */
+        private Duration tick = Duration.ofMillis(100);
+        /**
+         * More clients joining or leaving in one tick are announced in the chat by one summary message,
+         * zero announces every client
+         */
+        private int noticeSummaryThreshold = 5;
+    }
+
+    @Getter
+    @Setter
+    public static class Cluster {
+        /**
+         * Bus connecting the servers, NONE runs a single server
+         */
+        private MessageBusType bus = MessageBusType.NONE;
+        /**
+         * Id of this server in the cluster, generated when empty
+         */
+        private String nodeId = "";
+        /**
+         * Address the TCP bus listens on for the other servers, the loopback address unless the servers are on other hosts
+         */
+        private String address = "127.0.0.1";
+        /**
+         * Port accepting the connections of the other servers of the TCP bus
+         */
+        private int port = 9190;
+        /**
+         * Secret shared by all servers of the TCP bus, a server connecting to this one has to prove it knows it
+         */
+        private String secret = "";
+        /**
+         * Addresses host:port of all other servers of the TCP bus
+         */
+        private List<String> peers = List.of();
+        /**
+         * Pause before connecting again to an unreachable server
+         */
+        private Duration reconnectDelay = Duration.ofSeconds(1);
+        /**
+         * Silence after which a server with nothing to send sends a heartbeat to the others
+         */
+        private Duration heartbeatInterval = Duration.ofSeconds(1);
+        /**
+         * Silence after which a server is considered down and its clients leave
+         */
+        private Duration heartbeatTimeout = Duration.ofSeconds(5);
+        /**
+         * Number of events waiting for a slow server, further events to it are dropped
+         */
+        private int queueCapacity = 65536;
+    }
+
+    @Getter
+    @Setter
+    public static class Compression {
+        /**
+         * Message encodings offered to the clients in the order of preference, empty to send everything uncompressed
+         */
+        private List<String> codecs = List.of(DeflateCodec.NAME, "gzip");
+        /**
+         * Smallest encoded response message in bytes that is compressed
+         */
+        private int threshold = 512;
+    }
+
+    @Getter
+    @Setter
+    public static class Cache {
+        /**
+         * Number of last broadcast messages kept in memory
+         */
+        private int broadcastSize = 1024;
+        /**
+         * Number of last messages kept in memory for every private conversation
+         */
+        private int conversationSize = 64;
+        /**
+         * Number of private conversations kept in memory
+         */
+        private int maxConversations = 10000;
+        /**
+         * A private conversation not used for this time is dropped from memory
+         */
+        private Duration idleTimeout = Duration.ofMinutes(30);
+    }
+
+    @Getter
+    @Setter
+    public static class Persistence {
+        /**
+         * Storage used for chat messages
+         */
+        private MessageStoreType store = MessageStoreType.JPA;
+        /**
+         * Number of sent messages waiting to be stored, a full queue blocks sending
+         */
+        private int queueCapacity = 65536;
+        /**
+         * Maximum number of messages stored in one batch
+         */
+        private int batchSize = 256;
+        /**
+         * Maximum time the oldest message waits for its batch to fill up
+         */
+        private long maxLingerMs = 20;
+        /**
+         * Settings of the JOURNAL store
+         */
+        private final Journal journal = new Journal();
+    }
+
+    @Getter
+    @Setter
+    public static class Journal {
+        /**
+         * Directory of the journal segment files
+         */
+        private String directory = "journal";
+        /**
+         * Size of one segment file in bytes
+         */
+        private int segmentSize = 64 * 1024 * 1024;
+        /**
+         * Every indexInterval-th message is put in the in-memory index
+         */
+        private int indexInterval = 64;
+        /**
+         * Flushing the mapped pages to disk after every stored batch
+         */
+        private boolean forceOnWrite = false;
+    }
+}
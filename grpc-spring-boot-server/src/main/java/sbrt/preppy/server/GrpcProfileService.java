@@ -1,51 +1,266 @@
 package sbrt.preppy.server;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import jakarta.annotation.PreDestroy;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
 import sbrt.preppy.ProfileDescriptorOuterClass;
 import sbrt.preppy.ProfileServiceGrpc;
 import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.cluster.ClusterNode;
+import sbrt.preppy.server.cluster.MessageBus;
+import sbrt.preppy.server.database.JpaMessageStore;
 import sbrt.preppy.server.database.MessageRepository;
+import sbrt.preppy.server.database.MessageStore;
+import sbrt.preppy.server.database.MessageWriteBehind;
+import sbrt.preppy.server.database.PersistenceConfiguration;
+import sbrt.preppy.server.database.PagedHistory;
+import sbrt.preppy.server.dispatch.BacklogLimit;
+import sbrt.preppy.server.dispatch.MessageDispatcher;
+import sbrt.preppy.server.dispatch.MessageFrames;
+import sbrt.preppy.server.dispatch.OutboundFrame;
+import sbrt.preppy.server.dispatch.OutboundStream;
+import sbrt.preppy.server.dispatch.RecentHistoryCache;
+import sbrt.preppy.server.dispatch.Subscription;
 import sbrt.preppy.server.exception.DuplicateUsernameException;
 import sbrt.preppy.server.exception.UserNotFoundException;
 import sbrt.preppy.server.messages.Message;
 import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.metrics.ChatMetrics;
+import sbrt.preppy.server.users.PresenceFeed;
 import sbrt.preppy.server.users.User;
 import sbrt.preppy.server.users.UserManager;
 
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * @author preppy
  * Service for connecting and running the gRPC server
  */
 @Slf4j
-@GrpcService
+@Service
 public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBase {
-    private static UserManager userManager;
-    private static final Object MSG_MUTEX = new Object();
-    private static final Object USER_MUTEX = new Object();
-    private static boolean isRunning;
+    /**
+     * Page size of getHistory, when the client does not set it, and the largest allowed page size
+     */
+    private static final int DEFAULT_HISTORY_PAGE = 50;
+    private static final int MAX_HISTORY_PAGE = 500;
+    /**
+     * Date bound of a history page cut only by seq: later than any stored message
+     */
+    private static final Timestamp NEWEST_PAGE_DATE = Timestamp.valueOf("9999-12-31 00:00:00");
+    /**
+     * Name of the sender of the server's own notices, they are not sent to the other nodes
+     */
+    private static final String SERVER = "Server";
+    /**
+     * Status of a stream closed by the DISCONNECT slow consumer policy
+     */
+    private static final Status SLOW_CONSUMER = Status.RESOURCE_EXHAUSTED.withDescription("Client does not keep up with the messages");
+    /**
+     * Status of a call that could not read the stored messages
+     */
+    private static final Status HISTORY_UNAVAILABLE = Status.UNAVAILABLE.withDescription("Message history is not available");
+    /**
+     * Status of a bulk stream whose batch could not be published, the batches before it are published
+     */
+    private static final Status BULK_UNAVAILABLE = Status.UNAVAILABLE.withDescription("Messages could not be published");
+    /**
+     * Status of a request for the history of a room the client is not a member of
+     */
+    private static final Status NOT_ROOM_MEMBER = Status.PERMISSION_DENIED.withDescription("Only members of the room read its history");
+    /**
+     * Online clients of the whole cluster
+     */
+    private final UserManager userManager;
+    /**
+     * Fan-out of published messages to the open message streams
+     */
+    private final MessageDispatcher dispatcher;
+    /**
+     * Versioned stream of the online user list
+     */
+    private final PresenceFeed presence;
+    /**
+     * Sharing of the messages and the online clients with the other servers of the cluster
+     */
+    private final ClusterNode cluster;
     /**
      * Database repository
      */
     final MessageRepository repository;
+    /**
+     * Batched storing of sent messages in the background
+     */
+    final MessageWriteBehind writer;
+    /**
+     * The writer was created by this service and is closed by its shutdown, the Spring bean is closed by the context
+     */
+    private final boolean ownsWriter;
+    /**
+     * Paged reading of the stored history
+     */
+    final PagedHistory pages;
+    /**
+     * More clients joining or leaving in one tick are announced by one summary message
+     */
+    private final int noticeSummaryThreshold;
+    /**
+     * Number of messages of a bulk stream published at once, no more than the write-behind queue holds
+     */
+    private final int bulkBatchSize;
 
     public GrpcProfileService(MessageRepository repository) {
+        this(repository, new ChatProperties(), new JpaMessageStore(repository, repository::saveAll), MessageBus.NONE);
+    }
+
+    public GrpcProfileService(MessageRepository repository, ChatProperties properties, MessageStore store, MessageBus bus) {
+        this(repository, properties, store, bus, new SimpleMeterRegistry());
+    }
+
+    private GrpcProfileService(MessageRepository repository, ChatProperties properties, MessageStore store, MessageBus bus,
+                               MeterRegistry registry) {
+        this(repository, properties, store, PersistenceConfiguration.writeBehind(store, properties, registry), true, bus, registry);
+    }
+
+    @Autowired
+    public GrpcProfileService(MessageRepository repository, ChatProperties properties, MessageStore store,
+                              MessageWriteBehind writer, MessageBus bus, MeterRegistry registry) {
+        this(repository, properties, store, writer, false, bus, registry);
+    }
+
+    private GrpcProfileService(MessageRepository repository, ChatProperties properties, MessageStore store,
+                               MessageWriteBehind writer, boolean ownsWriter, MessageBus bus, MeterRegistry registry) {
         this.repository = repository;
-        if (userManager == null)
-            userManager = new UserManager();
-        isRunning = true;
+        this.pages = store;
+        this.writer = writer;
+        this.ownsWriter = ownsWriter;
+        ChatMetrics metrics = new ChatMetrics(registry);
+        ChatProperties.Persistence persistence = properties.getPersistence();
+        this.userManager = new UserManager();
+        ChatProperties.Stream stream = properties.getStream();
+        ChatProperties.Cache cache = properties.getCache();
+        RecentHistoryCache recent = new RecentHistoryCache(cache.getBroadcastSize(), cache.getConversationSize(),
+                cache.getMaxConversations(), cache.getIdleTimeout());
+        this.dispatcher = new MessageDispatcher(stream.getExecutionMode().createExecutor(stream.getPoolSize()), userManager,
+                recent, writer, new BacklogLimit(stream.getMaxBacklog(), stream.getSlowConsumerPolicy()));
+        log.info("GrpcProfileService: streams are written in " + stream.getExecutionMode() + " mode.");
+        this.noticeSummaryThreshold = properties.getPresence().getNoticeSummaryThreshold();
+        this.bulkBatchSize = Math.min(persistence.getBatchSize(), writer.getQueueCapacity());
+        this.presence = new PresenceFeed(dispatcher.getExecutor(), properties.getPresence().getMaxLag(),
+                properties.getPresence().getTick());
+        presence.setListener(this::announce);
+        dispatcher.setMetrics(metrics);
+        metrics.bindUsers(userManager);
+        metrics.bindDispatcher(dispatcher);
+        metrics.bindPresence(presence);
+        metrics.bindWriter(writer);
+        String nodeId = properties.getCluster().getNodeId().isEmpty()
+                ? "node-" + UUID.randomUUID().toString().substring(0, 8) : properties.getCluster().getNodeId();
+        this.cluster = new ClusterNode(nodeId, bus, userManager, presence, this::publishRemote);
+        cluster.start();
+    }
+
+    /**
+     * Leaving the cluster and, when the service created its writer, storing the messages still waiting in its queue
+     */
+    @PreDestroy
+    public void shutdown() {
+        cluster.close();
+        presence.close();
+        if (ownsWriter) {
+            writer.close();
+        }
+        RecentHistoryCache recent = dispatcher.getRecentCache();
+        log.info("shutdown: recent history cache hits " + recent.getHits() + ", misses " + recent.getMisses()
+                + ", evictions " + recent.getEvictions() + ".");
+        BacklogLimit limit = dispatcher.getBacklogLimit();
+        log.info("shutdown: slow streams dropped " + limit.getDroppedCount() + " messages, got " + limit.getGapCount()
+                + " gap markers, " + limit.getDisconnectCount() + " were disconnected.");
+    }
+
+    /**
+     * Publishing a message of this server with a place reserved in the write-behind queue
+     * @param msg message to deliver
+     * @return sequence number of the message
+     */
+    private long publish(Message msg) {
+        return publishReserved(1, this::share, store -> dispatcher.publish(msg, store));
+    }
+
+    /**
+     * Publishing a batch of messages of this server with places reserved in the write-behind queue
+     * @param messages messages to deliver
+     * @return sequence number of the last message
+     */
+    private long publishAll(List<Message> messages) {
+        return publishReserved(messages.size(), this::share, store -> dispatcher.publishAll(messages, store));
+    }
+
+    /**
+     * Publishing a message of another node of the cluster to the local streams and storing it under the local sequence number,
+     * so the history and the resumes of this node hold the messages of the whole cluster
+     * @param msg message of another node, dated by its node
+     */
+    private void publishRemote(Message msg) {
+        publishReserved(1, stored -> {}, store -> dispatcher.publishDated(msg, store));
+    }
+
+    /**
+     * Publishing with places reserved in the write-behind queue, the published messages are stored in sequence order.
+     * The wait for a full queue happens before the dispatcher lock, so a slow store does not stall the other publishers.
+     * When the dispatcher or the store fails, the places no stored message took are given back to the writer.
+     * @param rows        number of messages published
+     * @param then        called with every message handed to the writer
+     * @param publication publishing through the dispatcher with the given store of the numbered messages
+     * @return sequence number of the last message
+     */
+    private long publishReserved(int rows, Consumer<Message> then, ToLongFunction<Consumer<Message>> publication) {
+        writer.reserve(rows);
+        AtomicInteger stored = new AtomicInteger();
+        try {
+            return publication.applyAsLong(msg -> {
+                writer.enqueueReserved(new MessageBD(msg));
+                stored.incrementAndGet();
+                then.accept(msg);
+            });
+        } finally {
+            writer.release(rows - stored.get());
+        }
+    }
+
+    /**
+     * Sending a stored message published on this server to the other nodes of the cluster.
+     * The notices of the server are not sent, every node announces the clients itself.
+     * @param msg numbered message
+     */
+    private void share(Message msg) {
+        if (!SERVER.equals(msg.getSender().getName())) {
+            cluster.replicate(msg);
+        }
     }
 
 
     /**
      * Connecting a new client to the server, creating a response to the client with the connection status.
-     * Upon successful connection, a broadcast message is sent to everyone.
+     * The client is announced to everyone with the next presence tick.
      *
      * @param userInfo         connection request with the client's name
      * @param responseObserver response with client connection status
@@ -57,19 +272,12 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
             log.info("connectUser: " + userInfo.getName() + " is connecting to server.");
             userManager.connectUser(userInfo.getName());
 
-            synchronized (USER_MUTEX) {
-                USER_MUTEX.notifyAll();
-            }
+            presence.joined(userInfo.getName());
+            cluster.joined(userInfo.getName());
 
             responseObserver.onNext(ProfileDescriptorOuterClass.ConnectMessage.newBuilder().setUsername(userInfo.getName()).setIsConnected(true).build());
             responseObserver.onCompleted();
             log.info("ConnectUser: " + userInfo.getName() + " is connected to server.");
-
-            ProfileDescriptorOuterClass.MessageText msg = ProfileDescriptorOuterClass.MessageText.newBuilder().setText(userInfo.getName() + " has entered the chat").setSender("Server").build();
-            sendBroadcastMsgFromServer(msg);
-
-
-
         } catch (DuplicateUsernameException e) {
             responseObserver.onNext(ProfileDescriptorOuterClass.ConnectMessage.newBuilder().setIsConnected(false).build());
             log.info("connectUser: " + userInfo.getName() + " failed to connect to server.");
@@ -80,6 +288,9 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
     /**
      * Disconnecting the client from the server,
      * creating a response message with the shutdown status.
+     * The client leaves all its rooms. A resumed stream replays the missed room messages only of the rooms
+     * the client is a member of when it resumes, so a client coming back rejoins its rooms before resuming;
+     * a stream that only broke, without disconnecting, keeps the rooms.
      *
      * @param userInfo         request for disconnection with the name of the client
      * @param responseObserver response with client shutdown status
@@ -90,11 +301,8 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
         try {
             log.info(userInfo.getName() + " is disconnecting from server.");
             userManager.disconnectUser(userInfo.getName());
-            synchronized (USER_MUTEX) {
-                USER_MUTEX.notifyAll();
-            }
-            ProfileDescriptorOuterClass.MessageText msg = ProfileDescriptorOuterClass.MessageText.newBuilder().setText(userInfo.getName() + " has left the chat").setSender("Server").build();
-            sendBroadcastMsgFromServer(msg);
+            presence.left(userInfo.getName());
+            cluster.left(userInfo.getName());
 
             responseObserver.onNext(ProfileDescriptorOuterClass.DisconnectMessage.newBuilder().setUsername(userInfo.getName()).setIsDisconnected(true).build());
             responseObserver.onCompleted();
@@ -108,7 +316,7 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
 
     /**
      * Sending a broadcast message to clients,
-     * writing the message to the database.
+     * handing the message to the write-behind writer of the database.
      *
      * @param messageText      request with the client's message and the sender's name
      * @param responseObserver an empty response from the server
@@ -116,37 +324,66 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
     @Override
     public void sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText messageText,
                                  StreamObserver<ProfileDescriptorOuterClass.Empty> responseObserver) {
-        User sender;
         try {
-            if(messageText.getText().equals("#online")) {
-                ProfileDescriptorOuterClass.MessageText msg = ProfileDescriptorOuterClass.MessageText.newBuilder().setText("Online users : " + getUsersOnlineString()+"@"+messageText.getSender()).setSender("Server").build();
-                ProfileDescriptorOuterClass.PrivateMessageText prt = ProfileDescriptorOuterClass.PrivateMessageText.newBuilder().setMessageText(msg).setReceiver(messageText.getSender()).build();
-                sendPrivateMsgFromServer(prt);
-            }
-            else {
-                sender = userManager.findUserByName(messageText.getSender());
-                Message msg = new Message(sender, MessageType.BROADCAST, messageText.getText());
-
-                MessageBD messageBD = new MessageBD(msg.getTimestamp(), String.valueOf(msg.getSender()),
-                        String.valueOf(msg.getReceiver()), String.valueOf(msg.getMessageType()), msg.getText());
-
-                synchronized (MSG_MUTEX) {
-                    repository.save(messageBD);
-                    MSG_MUTEX.notifyAll();
-                }
-                log.info("sendBroadcastMsg: " + msg);
-         
-            }
-                   responseObserver.onNext(ProfileDescriptorOuterClass.Empty.newBuilder().build());
-                responseObserver.onCompleted();
+            publishBroadcast(messageText);
+            responseObserver.onNext(ProfileDescriptorOuterClass.Empty.newBuilder().build());
+            responseObserver.onCompleted();
         } catch (UserNotFoundException e) {
             responseObserver.onCompleted();
         }
     }
 
+    /**
+     * Publishing a broadcast message or, when the message names a room, a room message.
+     * The "#online" command is answered by a private message from the server
+     *
+     * @param messageText the client's message, the sender's name and the room
+     * @return sequence number of the published message
+     * @throws UserNotFoundException the sender is not connected or not a member of the room
+     */
+    private long publishBroadcast(ProfileDescriptorOuterClass.MessageText messageText) throws UserNotFoundException {
+        if (messageText.getText().equals("#online")) {
+            ProfileDescriptorOuterClass.MessageText msg = ProfileDescriptorOuterClass.MessageText.newBuilder().setText("Online users : " + getUsersOnlineString()).setSender(SERVER).build();
+            ProfileDescriptorOuterClass.PrivateMessageText prt = ProfileDescriptorOuterClass.PrivateMessageText.newBuilder().setMessageText(msg).setReceiver(messageText.getSender()).build();
+            return publishPrivate(prt);
+        }
+        if (!messageText.getRoom().isEmpty()) {
+            return publishRoom(messageText);
+        }
+        User sender = userManager.findUserByName(messageText.getSender());
+        Message msg = new Message(sender, MessageType.BROADCAST, messageText.getText());
+
+        long seq = publish(msg);
+        log.info("sendBroadcastMsg: " + msg);
+        return seq;
+    }
+
+    /**
+     * Publishing a message to the members of a room
+     *
+     * @param messageText the client's message, the sender's name and the room
+     * @return sequence number of the published message
+     * @throws UserNotFoundException the sender is not connected or not a member of the room
+     */
+    private long publishRoom(ProfileDescriptorOuterClass.MessageText messageText) throws UserNotFoundException {
+        Message msg = new Message(findRoomMember(messageText), MessageType.ROOM, messageText.getText(), messageText.getRoom());
+
+        long seq = publish(msg);
+        log.info("publishRoom: " + msg);
+        return seq;
+    }
+
+    private User findRoomMember(ProfileDescriptorOuterClass.MessageText messageText) throws UserNotFoundException {
+        User sender = userManager.findUserByName(messageText.getSender());
+        if (!userManager.isRoomMember(messageText.getRoom(), sender.getName())) {
+            throw new UserNotFoundException(sender.getName() + " in room " + messageText.getRoom());
+        }
+        return sender;
+    }
+
     /**
      * Sending a private message to clients,
-     * writing the message to the database.
+     * handing the message to the write-behind writer of the database.
      *
      * @param privateMessageText request with the client's message and the receiver's name
      * @param responseObserver   an empty response from the server
@@ -155,20 +392,7 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
     public void sendPrivateMsg(ProfileDescriptorOuterClass.PrivateMessageText privateMessageText,
                                StreamObserver<sbrt.preppy.ProfileDescriptorOuterClass.Empty> responseObserver) {
         try {
-            ProfileDescriptorOuterClass.MessageText mt = privateMessageText.getMessageText();
-            User sender = userManager.findUserByName(mt.getSender());
-            User uReceiver = userManager.findUserByName(privateMessageText.getReceiver());
-            String sReceiver = uReceiver.toString();
-            Message msg = new Message(sender, MessageType.PRIVATE, mt.getText(), sReceiver);
-
-            MessageBD messageBD = new MessageBD(msg.getTimestamp(), String.valueOf(msg.getSender()),
-                    String.valueOf(msg.getReceiver()), String.valueOf(msg.getMessageType()), msg.getText());
-
-            synchronized (MSG_MUTEX) {
-                repository.save(messageBD);
-                MSG_MUTEX.notifyAll();
-            }
-            log.info(msg.toString());
+            publishPrivate(privateMessageText);
             responseObserver.onNext(ProfileDescriptorOuterClass.Empty.newBuilder().build());
             responseObserver.onCompleted();
 
@@ -178,150 +402,594 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
     }
 
     /**
-     * A stream for synchronizing messages for the client
+     * Bulk sending of broadcast, private and room messages, e.g. by bots.
+     * Every message is validated when it arrives, valid ones are published in batches of the persistence batch size,
+     * the summary with the counts of accepted and rejected messages is sent when the client completes the stream.
+     *
+     * @param responseObserver summary of the stream
+     * @return stream of the messages, a message with a receiver is private, a message with a room goes to the room
+     */
+    @Override
+    public StreamObserver<ProfileDescriptorOuterClass.MessageText> sendMessages(StreamObserver<ProfileDescriptorOuterClass.SendSummary> responseObserver) {
+        return new StreamObserver<>() {
+            private final List<Message> batch = new ArrayList<>(bulkBatchSize);
+            private long accepted;
+            private long rejected;
+            private long lastSeq;
+            /**
+             * Set when a batch could not be published, the stream has ended with an error
+             */
+            private boolean failed;
+
+            @Override
+            public void onNext(ProfileDescriptorOuterClass.MessageText messageText) {
+                if (failed) {
+                    return;
+                }
+                if (messageText.getText().isEmpty()) {
+                    rejected++;
+                    return;
+                }
+                try {
+                    batch.add(toMessage(messageText));
+                } catch (UserNotFoundException e) {
+                    rejected++;
+                    return;
+                }
+                if (batch.size() >= bulkBatchSize) {
+                    flush();
+                }
+            }
+
+            /**
+             * Publishing the batch, a batch that could not be published ends the stream with UNAVAILABLE
+             * @return false, when the stream has failed
+             */
+            private boolean flush() {
+                if (!batch.isEmpty()) {
+                    try {
+                        lastSeq = publishAll(batch);
+                    } catch (RuntimeException e) {
+                        log.error("sendMessages: " + batch.size() + " messages could not be published after " + accepted
+                                + " accepted: " + e.getMessage());
+                        failed = true;
+                        batch.clear();
+                        responseObserver.onError(BULK_UNAVAILABLE.withCause(e).asRuntimeException());
+                        return false;
+                    }
+                    accepted += batch.size();
+                    batch.clear();
+                }
+                return true;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.info("sendMessages: stream failed after " + accepted + " messages, " + batch.size() + " are dropped: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed || !flush()) {
+                    return;
+                }
+                responseObserver.onNext(ProfileDescriptorOuterClass.SendSummary.newBuilder()
+                        .setAccepted(accepted).setRejected(rejected).setLastSeq(lastSeq).build());
+                responseObserver.onCompleted();
+                log.info("sendMessages: " + accepted + " messages accepted, " + rejected + " rejected.");
+            }
+        };
+    }
+
+    /**
+     * Validating a message of the bulk stream
+     *
+     * @param messageText message with a connected sender and, for a private message, a connected receiver
+     *                    or, for a room message, a sender who is a member of the room
+     * @return message ready to be published
+     * @throws UserNotFoundException the message is not valid
+     */
+    private Message toMessage(ProfileDescriptorOuterClass.MessageText messageText) throws UserNotFoundException {
+        if (!messageText.getRoom().isEmpty()) {
+            return new Message(findRoomMember(messageText), MessageType.ROOM, messageText.getText(), messageText.getRoom());
+        }
+        User sender = userManager.findUserByName(messageText.getSender());
+        if (messageText.getReceiver().isEmpty()) {
+            return new Message(sender, MessageType.BROADCAST, messageText.getText());
+        }
+        User receiver = userManager.findUserByName(messageText.getReceiver());
+        return new Message(sender, MessageType.PRIVATE, messageText.getText(), receiver.toString());
+    }
+
+    /**
+     * Publishing a private message
+     *
+     * @param privateMessageText the client's message and the receiver's name
+     * @return sequence number of the published message
+     * @throws UserNotFoundException the sender or the receiver is not connected
+     */
+    private long publishPrivate(ProfileDescriptorOuterClass.PrivateMessageText privateMessageText) throws UserNotFoundException {
+        ProfileDescriptorOuterClass.MessageText mt = privateMessageText.getMessageText();
+        User sender = userManager.findUserByName(mt.getSender());
+        User uReceiver = userManager.findUserByName(privateMessageText.getReceiver());
+        String sReceiver = uReceiver.toString();
+        Message msg = new Message(sender, MessageType.PRIVATE, mt.getText(), sReceiver);
+
+        long seq = publish(msg);
+        log.info(msg.toString());
+        return seq;
+    }
+
+    /**
+     * A stream for synchronizing messages for the client.
+     * The handler only registers the stream and returns, messages are pushed by the dispatcher as they are published.
+     * A client resuming after a sequence number first receives the messages it missed.
+     * Messages are written only while the call is ready, a client that does not keep up is handled by the slow consumer policy.
      *
-     * @param userInfo         the request
+     * @param request          the request with the client's name and the resume cursor
      * @param responseObserver a response observer, which is a special interface for the server to call with its response.
      */
     @Override
-    public void syncMessages(ProfileDescriptorOuterClass.UserInfo userInfo,
-                             StreamObserver<sbrt.preppy.ProfileDescriptorOuterClass.MessageText> responseObserver) {
-        while (isRunning) {
-            synchronized (MSG_MUTEX) {
+    public void syncMessages(ProfileDescriptorOuterClass.SyncRequest request,
+                             StreamObserver<ProfileDescriptorOuterClass.ChatMessage> responseObserver) {
+        syncMessages(request, responseObserver, msg -> MessageFrames.of(msg).getChatMessage());
+    }
+
+    /**
+     * The syncMessages stream writing every message as its shared pre-encoded frame
+     *
+     * @param request          the request with the client's name and the resume cursor
+     * @param responseObserver stream of the encoded messages
+     */
+    void syncMessageFrames(ProfileDescriptorOuterClass.SyncRequest request, StreamObserver<OutboundFrame> responseObserver) {
+        syncMessages(request, responseObserver, msg -> MessageFrames.of(msg).getMessageFrame());
+    }
+
+    private <T> void syncMessages(ProfileDescriptorOuterClass.SyncRequest request, StreamObserver<T> responseObserver,
+                                  Function<Message, T> encoder) {
+        Subscription subscription;
+        try {
+            subscription = dispatcher.subscribe(request.getName(), request.getResumeAfterSeq(), msg -> {
+                log.debug("syncMessages: " + "Synchronize... : " + msg);
+                synchronized (responseObserver) {
+                    responseObserver.onNext(encoder.apply(msg));
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("syncMessages: missed messages of " + request.getName() + " could not be loaded: " + e.getMessage());
+            responseObserver.onError(HISTORY_UNAVAILABLE.withCause(e).asRuntimeException());
+            return;
+        }
+        subscription.setOnOverflow(() -> {
+            synchronized (responseObserver) {
+                responseObserver.onError(SLOW_CONSUMER.asRuntimeException());
+            }
+        });
+        if (responseObserver instanceof ServerCallStreamObserver<?> callObserver) {
+            subscription.setReady(callObserver::isReady);
+            callObserver.setOnReadyHandler(subscription::onReady);
+            callObserver.setOnCancelHandler(() -> dispatcher.unsubscribe(subscription));
+        }
+    }
+
+    /**
+     * One long-lived stream of the client carrying its sends and the server's acks, messages and presence events.
+     * The first event of the client subscribes it to messages after its cursor and to the online clients,
+     * every sent message is answered with an ack holding its sequence number.
+     * Messages and presence events are written only while the call is ready.
+     *
+     * @param responseObserver stream of the server events
+     * @return stream of the client events
+     */
+    @Override
+    public StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat(StreamObserver<ProfileDescriptorOuterClass.ServerEvent> responseObserver) {
+        return chat(responseObserver, msg -> MessageFrames.of(msg).getChatEvent(), Function.identity());
+    }
+
+    /**
+     * The chat stream writing every message as its shared pre-encoded frame
+     *
+     * @param responseObserver stream of the encoded server events
+     * @return stream of the client events
+     */
+    StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chatFrames(StreamObserver<OutboundFrame> responseObserver) {
+        return chat(responseObserver, msg -> MessageFrames.of(msg).getChatFrame(), OutboundFrame::of);
+    }
+
+    private <T> StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat(StreamObserver<T> responseObserver,
+                                                                              Function<Message, T> messageEncoder,
+                                                                              Function<ProfileDescriptorOuterClass.ServerEvent, T> eventEncoder) {
+        BooleanSupplier ready = () -> true;
+        if (responseObserver instanceof ServerCallStreamObserver<?> callObserver) {
+            ready = callObserver::isReady;
+        }
+        ChatSession<T> session = new ChatSession<>(responseObserver, messageEncoder, eventEncoder, ready);
+        if (responseObserver instanceof ServerCallStreamObserver<?> callObserver) {
+            callObserver.setOnReadyHandler(session::onReady);
+            callObserver.setOnCancelHandler(session::close);
+        }
+        return session;
+    }
+
+    /**
+     * Server side of a chat stream.
+     * Messages, presence events and acks are written by different threads, so writes to the stream are serialized,
+     * and nothing is written after the stream is closed. Only the subscribed client can send through the stream.
+     *
+     * @param <T> type written to the stream: server events or their encoded frames
+     */
+    private class ChatSession<T> implements StreamObserver<ProfileDescriptorOuterClass.ClientEvent> {
+        private final StreamObserver<T> responseObserver;
+        private final Function<Message, T> messageEncoder;
+        private final Function<ProfileDescriptorOuterClass.ServerEvent, T> eventEncoder;
+        /**
+         * Flow control state of the call
+         */
+        private final BooleanSupplier ready;
+        private Subscription subscription;
+        private OutboundStream<ProfileDescriptorOuterClass.PresenceEvent> presenceStream;
+        /**
+         * Name of the subscribed client, the sender of every message sent through the stream
+         */
+        private volatile String username;
+        private volatile boolean closed;
+
+        private ChatSession(StreamObserver<T> responseObserver, Function<Message, T> messageEncoder,
+                            Function<ProfileDescriptorOuterClass.ServerEvent, T> eventEncoder, BooleanSupplier ready) {
+            this.responseObserver = responseObserver;
+            this.messageEncoder = messageEncoder;
+            this.eventEncoder = eventEncoder;
+            this.ready = ready;
+        }
+
+        @Override
+        public void onNext(ProfileDescriptorOuterClass.ClientEvent event) {
+            switch (event.getEventCase()) {
+                case SUBSCRIBE -> subscribe(event.getSubscribe());
+                case BROADCAST -> send(event.getRequestId(), event.getBroadcast().getSender(),
+                        () -> publishBroadcast(event.getBroadcast()));
+                case PRIVATEMESSAGE -> send(event.getRequestId(), event.getPrivateMessage().getMessageText().getSender(),
+                        () -> publishPrivate(event.getPrivateMessage()));
+                default -> log.info("chat: empty event " + event.getRequestId() + " is ignored.");
+            }
+        }
+
+        private synchronized void subscribe(ProfileDescriptorOuterClass.SyncRequest request) {
+            if (subscription != null || closed) {
+                return;
+            }
+            try {
+                subscription = dispatcher.subscribe(request.getName(), request.getResumeAfterSeq(),
+                        msg -> write(messageEncoder.apply(msg)));
+            } catch (RuntimeException e) {
+                log.error("chat: missed messages of " + request.getName() + " could not be loaded: " + e.getMessage());
+                synchronized (responseObserver) {
+                    closed = true;
+                    responseObserver.onError(HISTORY_UNAVAILABLE.withCause(e).asRuntimeException());
+                }
+                return;
+            }
+            presenceStream = presence.subscribe(
+                    e -> write(eventEncoder.apply(ProfileDescriptorOuterClass.ServerEvent.newBuilder().setPresence(e).build())));
+            subscription.setReady(ready);
+            presenceStream.setReady(ready);
+            OutboundStream<ProfileDescriptorOuterClass.PresenceEvent> presenceOfSession = presenceStream;
+            // runs on the publishing thread, so it does not take the session lock held while subscribing
+            subscription.setOnOverflow(() -> {
+                presence.unsubscribe(presenceOfSession);
+                synchronized (responseObserver) {
+                    closed = true;
+                    responseObserver.onError(SLOW_CONSUMER.asRuntimeException());
+                }
+            });
+            username = request.getName();
+            log.info("chat: " + request.getName() + " opened a chat stream.");
+        }
+
+        /**
+         * Resuming the writes, when the call became ready again
+         */
+        private synchronized void onReady() {
+            if (subscription != null) {
+                subscription.onReady();
+                presenceStream.onReady();
+            }
+        }
+
+        private void send(long requestId, String sender, Publication publication) {
+            ProfileDescriptorOuterClass.SendAck.Builder ack = ProfileDescriptorOuterClass.SendAck.newBuilder().setRequestId(requestId);
+            if (!sender.equals(username)) {
+                ack.setAccepted(false).setError(sender + " is not the client subscribed to the stream");
+            } else {
                 try {
-                    MSG_MUTEX.wait();
-                } catch (Exception e) {
-                    responseObserver.onCompleted();
+                    ack.setAccepted(true).setSeq(publication.publish());
+                } catch (UserNotFoundException e) {
+                    ack.setAccepted(false).setError(e.getMessage());
                 }
             }
+            write(eventEncoder.apply(ProfileDescriptorOuterClass.ServerEvent.newBuilder().setAck(ack).build()));
+        }
 
-            MessageBD messageBD = findLastMessage();
-            Message msg = getLastMessage(messageBD, userInfo.getName());
+        /**
+         * Writing to the stream, events of a closed stream are dropped
+         */
+        private void write(T event) {
+            synchronized (responseObserver) {
+                if (!closed) {
+                    responseObserver.onNext(event);
+                }
+            }
+        }
 
-            if (msg != null) {
-                log.info("syncMessages: " + "Synchronize... : " + msg);
+        @Override
+        public void onError(Throwable t) {
+            log.info("chat: stream failed: " + t.getMessage());
+            close();
+        }
 
-                responseObserver.onNext(
-                        ProfileDescriptorOuterClass.MessageText
-                                .newBuilder()
-                                .setSender(msg.getSender().getName())
-                                .setText(msg.getContent()).build());
+        @Override
+        public void onCompleted() {
+            synchronized (responseObserver) {
+                // a stream already ended by the server is not completed again
+                if (!closed) {
+                    closed = true;
+                    responseObserver.onCompleted();
+                }
+            }
+            close();
+        }
 
+        private synchronized void close() {
+            closed = true;
+            if (subscription != null) {
+                dispatcher.unsubscribe(subscription);
+                presence.unsubscribe(presenceStream);
             }
         }
     }
 
     /**
-     * The steam of sending a list of online clients
+     * Publishing of a message sent through the chat stream
+     */
+    @FunctionalInterface
+    private interface Publication {
+        long publish() throws UserNotFoundException;
+    }
+
+    /**
+     * The stream of the online clients: a snapshot of the list, then the clients joining and leaving.
+     * The handler only registers the stream and returns, deltas are pushed when a client connects or disconnects.
+     *
+     * @param request          an empty request from the client
+     * @param responseObserver snapshot and deltas of the online clients
+     */
+    @Override
+    public void syncPresence(ProfileDescriptorOuterClass.Empty request,
+                             StreamObserver<ProfileDescriptorOuterClass.PresenceEvent> responseObserver) {
+        OutboundStream<ProfileDescriptorOuterClass.PresenceEvent> stream = presence.subscribe(responseObserver::onNext);
+        flowControl(responseObserver, stream);
+    }
+
+    /**
+     * The stream of the online clients in the format of the first versions: after every change
+     * the whole list as one name, the clients separated by spaces.
+     * It reads the presence feed, so it sends a list only when the online clients change.
      *
      * @param request          an empty request from the client
      * @param responseObserver response with a list of online clients
+     * @deprecated use syncPresence, which sends only the clients joining and leaving
      */
     @Override
+    @Deprecated
     public void syncUserList(ProfileDescriptorOuterClass.Empty request,
-                             StreamObserver<sbrt.preppy.ProfileDescriptorOuterClass.UserInfo> responseObserver) {
-        while (isRunning) {
-            synchronized (USER_MUTEX) {
-                try {
-                    USER_MUTEX.wait();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    responseObserver.onCompleted();
+                             StreamObserver<ProfileDescriptorOuterClass.UserInfo> responseObserver) {
+        // written by one drain task at a time, so the list of the stream needs no lock
+        Set<String> online = new LinkedHashSet<>();
+        OutboundStream<ProfileDescriptorOuterClass.PresenceEvent> stream = presence.subscribe(event -> {
+            switch (event.getKind()) {
+                case SNAPSHOT -> {
+                    online.clear();
+                    online.addAll(event.getUsersList());
+                }
+                case JOINED -> online.addAll(event.getUsersList());
+                case LEFT -> event.getUsersList().forEach(online::remove);
+                default -> {
+                    return;
                 }
             }
-
-            List<String> onlineUsers = userManager.getOnlineUsers();
             StringBuilder userString = new StringBuilder();
-
-            for (String s : onlineUsers) {
-                if (!s.equals("Server")) {
-                    userString.append(s).append(" ");
+            for (String username : online) {
+                if (!username.equals(SERVER)) {
+                    userString.append(username).append(" ");
                 }
             }
             responseObserver.onNext(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(userString.toString()).build());
+        });
+        flowControl(responseObserver, stream);
+    }
+
+    /**
+     * Writing a presence stream only while its call is ready for more data and closing it with the call.
+     * The events of a client that does not read wait in the stream, the presence feed replaces too many of them with a snapshot.
+     * @param responseObserver response of the call
+     * @param stream           presence stream of the call
+     */
+    private void flowControl(StreamObserver<?> responseObserver, OutboundStream<ProfileDescriptorOuterClass.PresenceEvent> stream) {
+        if (responseObserver instanceof ServerCallStreamObserver<?> callObserver) {
+            stream.setReady(callObserver::isReady);
+            callObserver.setOnReadyHandler(stream::onReady);
+            callObserver.setOnCancelHandler(() -> presence.unsubscribe(stream));
         }
     }
 
     /**
-     * Sending a broadcast message from the server.
-     * It is used to notify when the client connects and disconnects to the chat.
+     * Joining a room, the client receives the messages of the room from now on.
+     * A room is created by its first member.
      *
-     * @param messageText a message about connecting and disconnecting the client to the chat.
+     * @param request          the client's name and the room
+     * @param responseObserver the room with its members
      */
-    private void sendBroadcastMsgFromServer(ProfileDescriptorOuterClass.MessageText messageText) {
-        sendBroadcastMsg(messageText, new StreamObserver<>() {
-            @Override
-            public void onNext(ProfileDescriptorOuterClass.Empty empty) {
-            }
+    @Override
+    public void joinRoom(ProfileDescriptorOuterClass.RoomRequest request,
+                         StreamObserver<ProfileDescriptorOuterClass.RoomInfo> responseObserver) {
+        changeRoom(request, responseObserver, true);
+    }
 
-            @Override
-            public void onError(Throwable throwable) {
-            }
+    /**
+     * Leaving a room, the room is removed with its last member
+     *
+     * @param request          the client's name and the room
+     * @param responseObserver the room with its remaining members
+     */
+    @Override
+    public void leaveRoom(ProfileDescriptorOuterClass.RoomRequest request,
+                          StreamObserver<ProfileDescriptorOuterClass.RoomInfo> responseObserver) {
+        changeRoom(request, responseObserver, false);
+    }
 
-            @Override
-            public void onCompleted() {
+    private void changeRoom(ProfileDescriptorOuterClass.RoomRequest request,
+                            StreamObserver<ProfileDescriptorOuterClass.RoomInfo> responseObserver, boolean join) {
+        if (request.getRoom().isEmpty()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Room name is empty").asRuntimeException());
+            return;
+        }
+        try {
+            String username = userManager.findUserByName(request.getName()).getName();
+            boolean changed = join ? userManager.joinRoom(request.getRoom(), username)
+                    : userManager.leaveRoom(request.getRoom(), username);
+            List<String> members = new ArrayList<>(userManager.getRoomMembers(request.getRoom()));
+            responseObserver.onNext(ProfileDescriptorOuterClass.RoomInfo.newBuilder().setRoom(request.getRoom())
+                    .setMemberCount(members.size()).addAllMembers(members).build());
+            responseObserver.onCompleted();
+            if (changed) {
+                log.info((join ? "joinRoom: " : "leaveRoom: ") + username + " in room " + request.getRoom() + ", "
+                        + members.size() + " members.");
             }
-        });
+        } catch (UserNotFoundException e) {
+            responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+        }
     }
 
     /**
-     * Sending a private message from the server.
-     * It is used to notify when the client needs online users.
+     * Listing the rooms of this server
      *
-     * @param messageText a message with list of online.
+     * @param request          an empty request from the client
+     * @param responseObserver every room with its number of members
      */
-    private void sendPrivateMsgFromServer(ProfileDescriptorOuterClass.PrivateMessageText messageText) {
-        sendPrivateMsg(messageText, new StreamObserver<>() {
-            @Override
-            public void onNext(ProfileDescriptorOuterClass.Empty empty) {
-            }
+    @Override
+    public void listRooms(ProfileDescriptorOuterClass.Empty request,
+                          StreamObserver<ProfileDescriptorOuterClass.RoomList> responseObserver) {
+        ProfileDescriptorOuterClass.RoomList.Builder result = ProfileDescriptorOuterClass.RoomList.newBuilder();
+        for (Map.Entry<String, Integer> room : userManager.getRooms().entrySet()) {
+            result.addRooms(ProfileDescriptorOuterClass.RoomInfo.newBuilder().setRoom(room.getKey()).setMemberCount(room.getValue()));
+        }
+        responseObserver.onNext(result.build());
+        responseObserver.onCompleted();
+    }
 
-            @Override
-            public void onError(Throwable throwable) {
+    /**
+     * Sending one page of the stored history of the broadcast channel, of a private conversation or of a room.
+     * Messages before the beforeSeq cursor are listed in sequence order from the oldest to the newest,
+     * so the seq of the first message of the page is the cursor of the next one;
+     * without a seq the page starts strictly before beforeDate.
+     * The page is one response message, so it is compressed as a whole.
+     * Pages the recent history cache holds completely are served from it, it pages in sequence order like the store.
+     * The history of a room is sent only to its members.
+     *
+     * @param request          the requesting client, the other side of the conversation or the room and the cursor
+     * @param responseObserver the page
+     */
+    @Override
+    public void getHistory(ProfileDescriptorOuterClass.HistoryRequest request,
+                           StreamObserver<ProfileDescriptorOuterClass.HistoryPage> responseObserver) {
+        if (!request.getRoom().isEmpty() && !userManager.isRoomMember(request.getRoom(), request.getName())) {
+            log.info("getHistory: " + request.getName() + " is not a member of room " + request.getRoom() + ".");
+            responseObserver.onError(NOT_ROOM_MEMBER.asRuntimeException());
+            return;
+        }
+        int pageSize = request.getPageSize() <= 0 ? DEFAULT_HISTORY_PAGE : Math.min(request.getPageSize(), MAX_HISTORY_PAGE);
+        // a seq cursor alone cuts the page, its date would skip the older messages of the same millisecond
+        boolean fromDate = request.getBeforeSeq() == 0 && request.getBeforeDate() != 0;
+        Timestamp beforeDate = fromDate ? new Timestamp(request.getBeforeDate()) : NEWEST_PAGE_DATE;
+        long beforeSeq = request.getBeforeSeq() == 0 ? Long.MAX_VALUE : request.getBeforeSeq();
+        ProfileDescriptorOuterClass.HistoryPage.Builder result = ProfileDescriptorOuterClass.HistoryPage.newBuilder();
+        RecentHistoryCache recent = dispatcher.getRecentCache();
+        List<Message> cached = request.getRoom().isEmpty()
+                ? recent.page(request.getName(), request.getPeer(), beforeDate.getTime(), beforeSeq, pageSize)
+                : recent.roomPage(request.getRoom(), beforeDate.getTime(), beforeSeq, pageSize);
+        if (cached != null) {
+            for (int i = cached.size() - 1; i >= 0; i--) {
+                result.addMessages(MessageFrames.of(cached.get(i)).getChatMessage());
             }
+            responseObserver.onNext(result.build());
+            responseObserver.onCompleted();
+            log.info("getHistory: " + request.getName() + " received " + cached.size() + " cached messages.");
+            return;
+        }
 
-            @Override
-            public void onCompleted() {
+        List<MessageBD> page;
+        try {
+            if (!request.getRoom().isEmpty()) {
+                page = pages.findRoomPage(request.getRoom(), beforeDate, beforeSeq, pageSize);
+            } else if (request.getPeer().isEmpty()) {
+                page = pages.findBroadcastPage(beforeDate, beforeSeq, pageSize);
+            } else {
+                page = pages.findPrivatePage(request.getName(), request.getPeer(), beforeDate, beforeSeq, pageSize);
             }
-        });
+        } catch (RuntimeException e) {
+            log.error("getHistory: history page of " + request.getName() + " could not be read: " + e.getMessage());
+            responseObserver.onError(HISTORY_UNAVAILABLE.withCause(e).asRuntimeException());
+            return;
+        }
+        for (int i = page.size() - 1; i >= 0; i--) {
+            result.addMessages(MessageFrames.toChatMessage(page.get(i).toMessage()).setId(page.get(i).getId()));
+        }
+        responseObserver.onNext(result.build());
+        responseObserver.onCompleted();
+        log.info("getHistory: " + request.getName() + " received " + page.size() + " messages.");
     }
 
     /**
-     * Search for the last message in the in-memory database
+     * Announcing the clients who joined and left the chat during one presence tick
      *
-     * @return message
+     * @param joined clients who connected
+     * @param left   clients who disconnected
      */
-    public MessageBD findLastMessage() {
-        return repository.findTopByOrderByDateDesc();
+    private void announce(List<String> joined, List<String> left) {
+        announce(joined, " has entered the chat", " users joined the chat");
+        announce(left, " has left the chat", " users left the chat");
+    }
+
+    private void announce(List<String> users, String notice, String summary) {
+        if (noticeSummaryThreshold > 0 && users.size() > noticeSummaryThreshold) {
+            sendBroadcastMsgFromServer(ProfileDescriptorOuterClass.MessageText.newBuilder().setText(users.size() + summary).setSender(SERVER).build());
+            return;
+        }
+        for (String username : users) {
+            sendBroadcastMsgFromServer(ProfileDescriptorOuterClass.MessageText.newBuilder().setText(username + notice).setSender(SERVER).build());
+        }
     }
 
     /**
-     * Getting and converting an extreme message from a database
+     * Sending a broadcast message from the server.
+     * It is used to notify when the client connects and disconnects to the chat.
      *
-     * @param userName client's name
-     * @return message or null
+     * @param messageText a message about connecting and disconnecting the client to the chat.
      */
-    public Message getLastMessage(MessageBD messageBD, String userName) {
-        Message msg = new Message();
-        try {
-            msg.setSender(userManager.findUserByName(messageBD.getAuthor()));
-            msg.setReceiver(messageBD.getReceiver());
-            msg.setMessageType(MessageType.valueOf(messageBD.getMessageType()));
-            msg.setTimestamp(messageBD.getDate());
-            msg.setText(messageBD.getMessageText());
-        } catch (UserNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-        boolean isBroadcast = msg.getMessageType() == MessageType.BROADCAST;
-        if (isBroadcast) {
-            return msg;
-        } else {
-            boolean isCorrectUser = msg.getReceiver().contains(userName) || msg.getSender().toString().contains(userName);
-            if (isCorrectUser) {
-                return msg;
+    private void sendBroadcastMsgFromServer(ProfileDescriptorOuterClass.MessageText messageText) {
+        sendBroadcastMsg(messageText, new StreamObserver<>() {
+            @Override
+            public void onNext(ProfileDescriptorOuterClass.Empty empty) {
             }
-        }
-        return null;
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
     }
 
     /**
@@ -332,7 +1000,7 @@ public class GrpcProfileService extends ProfileServiceGrpc.ProfileServiceImplBas
         StringBuilder userString = new StringBuilder();
 
         for (String s : onlineUsers) {
-            if (!s.equals("Server")) {
+            if (!s.equals(SERVER)) {
                 userString.append(s).append(" ");
             }
         }
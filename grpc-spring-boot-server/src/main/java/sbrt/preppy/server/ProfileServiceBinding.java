@@ -0,0 +1,64 @@
+package sbrt.preppy.server;
+
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import net.devh.boot.grpc.server.service.GrpcService;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.server.dispatch.OutboundFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author preppy
+ * Registration of the chat service with the gRPC server.
+ * The message streams are bound with a marshaller writing the pre-encoded frames shared by all subscribers,
+ * the wire format is the same, so the clients use the generated stubs as before.
+ * All other methods are bound as generated.
+ */
+@GrpcService
+public class ProfileServiceBinding implements BindableService {
+    private final GrpcProfileService service;
+
+    public ProfileServiceBinding(GrpcProfileService service) {
+        this.service = service;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        ServerServiceDefinition generated = service.bindService();
+        MethodDescriptor<ProfileDescriptorOuterClass.SyncRequest, OutboundFrame> syncMessages =
+                ProfileServiceGrpc.getSyncMessagesMethod().toBuilder(
+                        ProtoUtils.marshaller(ProfileDescriptorOuterClass.SyncRequest.getDefaultInstance()),
+                        OutboundFrame.MARSHALLER).build();
+        MethodDescriptor<ProfileDescriptorOuterClass.ClientEvent, OutboundFrame> chat =
+                ProfileServiceGrpc.getChatMethod().toBuilder(
+                        ProtoUtils.marshaller(ProfileDescriptorOuterClass.ClientEvent.getDefaultInstance()),
+                        OutboundFrame.MARSHALLER).build();
+
+        ServiceDescriptor generatedDescriptor = generated.getServiceDescriptor();
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(generatedDescriptor.getName())
+                .setSchemaDescriptor(generatedDescriptor.getSchemaDescriptor())
+                .addMethod(syncMessages)
+                .addMethod(chat);
+        List<ServerMethodDefinition<?, ?>> unchanged = new ArrayList<>();
+        for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+            String name = method.getMethodDescriptor().getFullMethodName();
+            if (!name.equals(syncMessages.getFullMethodName()) && !name.equals(chat.getFullMethodName())) {
+                descriptor.addMethod(method.getMethodDescriptor());
+                unchanged.add(method);
+            }
+        }
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build())
+                .addMethod(syncMessages, ServerCalls.asyncServerStreamingCall(service::syncMessageFrames))
+                .addMethod(chat, ServerCalls.asyncBidiStreamingCall(service::chatFrames));
+        unchanged.forEach(builder::addMethod);
+        return builder.build();
+    }
+}
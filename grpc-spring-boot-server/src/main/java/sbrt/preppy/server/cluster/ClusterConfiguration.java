@@ -0,0 +1,27 @@
+package sbrt.preppy.server.cluster;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import sbrt.preppy.server.ChatProperties;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @author preppy
+ * Choosing the bus between the servers by chat.cluster.bus
+ */
+@Configuration
+public class ClusterConfiguration {
+
+    @Bean
+    public MessageBus messageBus(ChatProperties properties) {
+        ChatProperties.Cluster cluster = properties.getCluster();
+        return switch (cluster.getBus()) {
+            case NONE -> MessageBus.NONE;
+            case LOOPBACK -> new LoopbackBus(LoopbackBus.Network.SHARED);
+            case TCP -> new TcpMessageBus(new InetSocketAddress(cluster.getAddress(), cluster.getPort()),
+                    TcpMessageBus.parsePeers(cluster.getPeers()), cluster.getSecret(), cluster.getReconnectDelay(),
+                    cluster.getHeartbeatInterval(), cluster.getHeartbeatTimeout(), cluster.getQueueCapacity());
+        };
+    }
+}
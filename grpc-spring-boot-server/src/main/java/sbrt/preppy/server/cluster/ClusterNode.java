@@ -0,0 +1,152 @@
+package sbrt.preppy.server.cluster;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.ClusterProtocol.NodeEvent;
+import sbrt.preppy.ClusterProtocol.NodeUsers;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.server.dispatch.MessageFrames;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.PresenceFeed;
+import sbrt.preppy.server.users.User;
+import sbrt.preppy.server.users.UserManager;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * @author preppy
+ * The local server as a node of a chat cluster.
+ * Messages published by the local clients and the joins and leaves of the local clients are sent to the other nodes,
+ * messages of the other nodes are published to the local streams, and their clients are added to the online users,
+ * so a client can talk to the clients of any node. Every node numbers and stores every message it publishes itself,
+ * the messages of the other nodes included, so the history and the resumes of a node hold the messages of the whole cluster.
+ * The sequence numbers are local to a node, so every node needs a storage of its own: nodes sharing one database
+ * would store every message once per node under colliding sequence numbers.
+ * Messages of the other nodes keep the date of their node. The cluster shares no state but the bus.
+ * Room membership is not shared: a room message reaches the members of the room on every node.
+ */
+@Slf4j
+public class ClusterNode implements MessageBus.Listener, AutoCloseable {
+    @Getter
+    private final String nodeId;
+    private final MessageBus bus;
+    private final UserManager userManager;
+    private final PresenceFeed presence;
+    /**
+     * Publishing a message of another node to the local streams and storing it under the local sequence number
+     */
+    private final Consumer<Message> deliver;
+
+    public ClusterNode(String nodeId, MessageBus bus, UserManager userManager, PresenceFeed presence, Consumer<Message> deliver) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+        this.userManager = userManager;
+        this.presence = presence;
+        this.deliver = deliver;
+    }
+
+    /**
+     * Joining the cluster
+     */
+    public void start() {
+        bus.start(nodeId, this);
+    }
+
+    /**
+     * Sending a message published by a local client to the other nodes
+     * @param msg numbered message
+     */
+    public void replicate(Message msg) {
+        bus.send(event().setMessage(MessageFrames.of(msg).getChatMessage()).build());
+    }
+
+    /**
+     * Announcing a local client who connected
+     * @param username client's name
+     */
+    public void joined(String username) {
+        bus.send(event().setJoined(username).build());
+    }
+
+    /**
+     * Announcing a local client who disconnected
+     * @param username client's name
+     */
+    public void left(String username) {
+        bus.send(event().setLeft(username).build());
+    }
+
+    private NodeEvent.Builder event() {
+        return NodeEvent.newBuilder().setNode(nodeId);
+    }
+
+    @Override
+    public void onEvent(NodeEvent event) {
+        String node = event.getNode();
+        switch (event.getEventCase()) {
+            case MESSAGE -> deliver.accept(toMessage(event.getMessage()));
+            case USERS -> replaceUsers(node, event.getUsers().getUsersList());
+            case JOINED -> addUser(node, event.getJoined());
+            case LEFT -> removeUser(node, event.getLeft());
+            default -> log.warn("onEvent: unknown event of node " + node + ".");
+        }
+    }
+
+    @Override
+    public void onPeerConnected() {
+        bus.send(event().setUsers(NodeUsers.newBuilder().addAllUsers(userManager.getLocalUsers())).build());
+    }
+
+    @Override
+    public void onPeerDown(String node) {
+        List<String> users = userManager.removeNode(node);
+        users.forEach(presence::left);
+        log.info("onPeerDown: node " + node + " is down, " + users.size() + " of its users left.");
+    }
+
+    private void replaceUsers(String node, List<String> users) {
+        Set<String> known = userManager.getUsersOf(node);
+        for (String username : users) {
+            if (!known.remove(username)) {
+                addUser(node, username);
+            }
+        }
+        for (String username : known) {
+            removeUser(node, username);
+        }
+    }
+
+    private void addUser(String node, String username) {
+        if (userManager.addRemoteUser(username, node)) {
+            presence.joined(username);
+        } else {
+            log.warn("addUser: " + username + " of node " + node + " is already connected.");
+        }
+    }
+
+    private void removeUser(String node, String username) {
+        if (userManager.removeRemoteUser(username, node)) {
+            presence.left(username);
+        }
+    }
+
+    private static Message toMessage(ProfileDescriptorOuterClass.ChatMessage chatMessage) {
+        User sender = new User(chatMessage.getSender());
+        Message msg = switch (chatMessage.getType()) {
+            case PRIVATE -> new Message(sender, MessageType.PRIVATE, chatMessage.getText(), chatMessage.getReceiver());
+            case ROOM -> new Message(sender, MessageType.ROOM, chatMessage.getText(), chatMessage.getReceiver());
+            default -> new Message(sender, MessageType.BROADCAST, chatMessage.getText());
+        };
+        msg.setTimestamp(new Timestamp(chatMessage.getTimestamp()));
+        return msg;
+    }
+
+    @Override
+    public void close() {
+        bus.close();
+    }
+}
@@ -0,0 +1,79 @@
+package sbrt.preppy.server.cluster;
+
+import sbrt.preppy.ClusterProtocol.NodeEvent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author preppy
+ * Bus between nodes running in the same JVM.
+ * Every node receives the events on its own thread, so a node sending an event never runs the code of another node.
+ */
+public class LoopbackBus implements MessageBus {
+    private final Network network;
+    private String nodeId;
+    private Listener listener;
+    private ExecutorService inbound;
+
+    /**
+     * Nodes connected to each other
+     */
+    public static final class Network {
+        /**
+         * Network of the servers started with the LOOPBACK bus
+         */
+        public static final Network SHARED = new Network();
+
+        private final Set<LoopbackBus> nodes = ConcurrentHashMap.newKeySet();
+    }
+
+    public LoopbackBus(Network network) {
+        this.network = network;
+    }
+
+    @Override
+    public void start(String nodeId, Listener listener) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        this.inbound = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chat-bus-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        network.nodes.add(this);
+        for (LoopbackBus node : network.nodes) {
+            node.deliver(node.listener::onPeerConnected);
+        }
+    }
+
+    @Override
+    public void send(NodeEvent event) {
+        for (LoopbackBus node : network.nodes) {
+            if (node != this) {
+                node.deliver(() -> node.listener.onEvent(event));
+            }
+        }
+    }
+
+    private void deliver(Runnable task) {
+        try {
+            inbound.execute(task);
+        } catch (RuntimeException e) {
+            // the node is closing
+        }
+    }
+
+    @Override
+    public void close() {
+        if (inbound == null || !network.nodes.remove(this)) {
+            return;
+        }
+        inbound.shutdown();
+        for (LoopbackBus node : network.nodes) {
+            node.deliver(() -> node.listener.onPeerDown(nodeId));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package sbrt.preppy.server.cluster;
+
+import sbrt.preppy.ClusterProtocol.NodeEvent;
+
+/**
+ * @author preppy
+ * Channel between the nodes of a chat cluster.
+ * Every event sent by a node is received once by every other node, events of one node arrive in the order they were sent.
+ * Events sent while a peer is unreachable are not replayed to it.
+ */
+public interface MessageBus extends AutoCloseable {
+    /**
+     * Bus of a single server: nothing is sent and nothing is received
+     */
+    MessageBus NONE = new MessageBus() {
+        @Override
+        public void start(String nodeId, Listener listener) {
+        }
+
+        @Override
+        public void send(NodeEvent event) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Joining the cluster
+     * @param nodeId   id of the local node
+     * @param listener receiver of the events of the other nodes
+     */
+    void start(String nodeId, Listener listener);
+
+    /**
+     * Sending an event to all other nodes, the call does not wait for the network
+     * @param event event of the local node
+     */
+    void send(NodeEvent event);
+
+    /**
+     * Leaving the cluster, the other nodes see the node as down
+     */
+    @Override
+    void close();
+
+    /**
+     * Receiver of the events of the other nodes.
+     * Events of one node are received on one thread at a time.
+     */
+    interface Listener {
+        /**
+         * Receiving an event of another node
+         * @param event the event
+         */
+        void onEvent(NodeEvent event);
+
+        /**
+         * A peer connected, it has to learn the state of the local node
+         */
+        void onPeerConnected();
+
+        /**
+         * A peer left or became unreachable
+         * @param nodeId id of the peer
+         */
+        void onPeerDown(String nodeId);
+    }
+}
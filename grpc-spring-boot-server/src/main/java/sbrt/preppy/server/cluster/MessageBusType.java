@@ -0,0 +1,20 @@
+package sbrt.preppy.server.cluster;
+
+/**
+ * @author preppy
+ * Bus connecting the chat servers into a cluster
+ */
+public enum MessageBusType {
+    /**
+     * A single server without a cluster
+     */
+    NONE,
+    /**
+     * Servers running in the same JVM, e.g. in tests
+     */
+    LOOPBACK,
+    /**
+     * Servers connected peer to peer over TCP
+     */
+    TCP
+}
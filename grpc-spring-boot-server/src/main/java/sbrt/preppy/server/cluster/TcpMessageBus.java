@@ -0,0 +1,345 @@
+package sbrt.preppy.server.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.ClusterProtocol.NodeEvent;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author preppy
+ * Peer-to-peer bus between nodes over TCP.
+ * Every node lists all other nodes as peers: it sends its events over its own connection to every peer
+ * and receives the events of the peers over the connections they opened to it.
+ * Events are length-delimited NodeEvent messages. A lost connection is reopened after the reconnect delay,
+ * a peer whose connection to this node closes or stays silent for the heartbeat timeout is reported as down,
+ * an idle node sends heartbeats so its peers keep it.
+ * The bus listens only on the configured address, and the nodes of a connection authenticate each other before any event:
+ * each sends a random challenge and the other answers with its HMAC-SHA256 under the shared secret of the cluster,
+ * tagged with its side of the connection, so an answer of one side is never valid for the other.
+ * The events themselves are not encrypted, the nodes are expected to talk over a private network.
+ * A peer reconnecting before its old connection timed out is reported as down only when its current connection closes.
+ */
+@Slf4j
+public class TcpMessageBus implements MessageBus {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_LENGTH = 32;
+    /**
+     * Side of the connection the MAC of an answer is tagged with
+     */
+    private static final byte CONNECTING = 1;
+    private static final byte ACCEPTING = 2;
+
+    private final InetSocketAddress address;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec secret;
+    private final Duration reconnectDelay;
+    private final Duration heartbeatInterval;
+    private final Duration heartbeatTimeout;
+    private final int queueCapacity;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Peer> outbound = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    /**
+     * The latest connection of every peer that sent an event
+     */
+    private final Map<String, Socket> peerSockets = new ConcurrentHashMap<>();
+    private ServerSocket serverSocket;
+    private String nodeId;
+    private Listener listener;
+    private volatile boolean closed;
+
+    /**
+     * @param address           address and port accepting the connections of the peers
+     * @param peers             addresses of the other nodes
+     * @param secret            shared secret of the cluster, proving to a node that a connecting peer belongs to it
+     * @param reconnectDelay    pause before connecting again to an unreachable peer
+     * @param heartbeatInterval silence after which an idle node sends a heartbeat to its peers
+     * @param heartbeatTimeout  silence after which a peer is reported as down, longer than the heartbeat interval
+     * @param queueCapacity     number of events waiting for a slow peer, further events to it are dropped
+     */
+    public TcpMessageBus(InetSocketAddress address, List<InetSocketAddress> peers, String secret, Duration reconnectDelay,
+                         Duration heartbeatInterval, Duration heartbeatTimeout, int queueCapacity) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The TCP bus needs the shared secret of the cluster");
+        }
+        if (heartbeatTimeout.compareTo(heartbeatInterval) <= 0) {
+            throw new IllegalArgumentException("Heartbeat timeout " + heartbeatTimeout
+                    + " must be longer than the heartbeat interval " + heartbeatInterval);
+        }
+        this.address = address;
+        this.peers = peers;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.reconnectDelay = reconnectDelay;
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatTimeout = heartbeatTimeout;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Parsing a peer list of the form host:port,host:port
+     * @param peers configured peers
+     * @return addresses of the peers
+     */
+    public static List<InetSocketAddress> parsePeers(List<String> peers) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            result.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                    Integer.parseInt(peer.substring(colon + 1).trim())));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void start(String nodeId, Listener listener) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not listen for cluster peers on " + address, e);
+        }
+        startThread("chat-bus-accept", this::accept);
+        for (InetSocketAddress peerAddress : peers) {
+            Peer peer = new Peer(peerAddress);
+            outbound.add(peer);
+            startThread("chat-bus-" + peerAddress, peer::run);
+        }
+        log.info("start: node " + nodeId + " listens on " + address + ", peers " + peers + ".");
+    }
+
+    @Override
+    public void send(NodeEvent event) {
+        for (Peer peer : outbound) {
+            peer.offer(event);
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                inbound.add(socket);
+                startThread("chat-bus-in-" + socket.getRemoteSocketAddress(), () -> receive(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("accept: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reading the events of one peer until its connection closes or the peer stays silent for the heartbeat timeout
+     */
+    private void receive(Socket socket) {
+        String peerId = null;
+        try (socket; InputStream in = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout((int) heartbeatTimeout.toMillis());
+            if (!challenge(socket, in)) {
+                log.warn("receive: " + socket.getRemoteSocketAddress() + " failed the challenge, the connection is closed.");
+                return;
+            }
+            NodeEvent event;
+            while ((event = NodeEvent.parseDelimitedFrom(in)) != null) {
+                if (peerId == null) {
+                    peerId = event.getNode();
+                    peerSockets.put(peerId, socket);
+                }
+                if (event.getEventCase() != NodeEvent.EventCase.HEARTBEAT) {
+                    listener.onEvent(event);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            log.warn("receive: " + peerId + " sent nothing for " + heartbeatTimeout + ", it is considered down.");
+        } catch (IOException e) {
+            log.info("receive: connection of " + peerId + " is lost: " + e.getMessage());
+        } finally {
+            inbound.remove(socket);
+            // a peer already reconnected on a newer connection is not down
+            if (peerId != null && peerSockets.remove(peerId, socket) && !closed) {
+                listener.onPeerDown(peerId);
+            }
+        }
+    }
+
+    /**
+     * Checking that a connecting peer knows the shared secret and proving to it that this node knows it too
+     * @return true, when the peer answered the random challenge with its MAC
+     */
+    private boolean challenge(Socket socket, InputStream in) throws IOException {
+        byte[] challenge = newChallenge();
+        OutputStream out = socket.getOutputStream();
+        out.write(challenge);
+        out.flush();
+        byte[] expected = mac(CONNECTING, challenge);
+        if (!MessageDigest.isEqual(expected, in.readNBytes(expected.length))) {
+            return false;
+        }
+        byte[] peerChallenge = readChallenge(socket, in);
+        out.write(mac(ACCEPTING, peerChallenge));
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Answering the challenge of a peer this node connects to and checking that the peer knows the shared secret,
+     * before this node writes any event to it
+     * @throws IOException when the connection closes or the peer does not answer the challenge of this node with its MAC
+     */
+    private void answer(Socket socket, InputStream in, OutputStream out) throws IOException {
+        byte[] peerChallenge = readChallenge(socket, in);
+        byte[] challenge = newChallenge();
+        out.write(mac(CONNECTING, peerChallenge));
+        out.write(challenge);
+        out.flush();
+        byte[] expected = mac(ACCEPTING, challenge);
+        if (!MessageDigest.isEqual(expected, in.readNBytes(expected.length))) {
+            throw new IOException("peer " + socket.getRemoteSocketAddress() + " failed the challenge");
+        }
+    }
+
+    private byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    private static byte[] readChallenge(Socket socket, InputStream in) throws IOException {
+        byte[] challenge = in.readNBytes(CHALLENGE_LENGTH);
+        if (challenge.length < CHALLENGE_LENGTH) {
+            throw new IOException("peer " + socket.getRemoteSocketAddress() + " closed the connection before the challenge");
+        }
+        return challenge;
+    }
+
+    private byte[] mac(byte side, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(side);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket socket : inbound) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.info("close: " + e.getMessage());
+        }
+        outbound.forEach(Peer::close);
+    }
+
+    /**
+     * Connection of this node to one peer, written by its own thread
+     */
+    private class Peer {
+        private final InetSocketAddress address;
+        private final BlockingQueue<NodeEvent> queue = new LinkedBlockingQueue<>(queueCapacity);
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private void offer(NodeEvent event) {
+            if (connected && !queue.offer(event)) {
+                log.warn("offer: peer " + address + " is too slow, an event is dropped.");
+            }
+        }
+
+        private void run() {
+            NodeEvent heartbeat = NodeEvent.newBuilder().setNode(nodeId).setHeartbeat(true).build();
+            while (!closed) {
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.setTcpNoDelay(true);
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), 5_000);
+                    s.setSoTimeout((int) heartbeatTimeout.toMillis());
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                    answer(s, s.getInputStream(), out);
+                    connected = true;
+                    log.info("run: connected to peer " + address + ".");
+                    listener.onPeerConnected();
+                    while (!closed) {
+                        NodeEvent event = queue.poll(heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+                        (event == null ? heartbeat : event).writeDelimitedTo(out);
+                        while ((event = queue.poll()) != null) {
+                            event.writeDelimitedTo(out);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    log.debug("run: peer " + address + " is unreachable: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    connected = false;
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(reconnectDelay.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    log.info("close: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package sbrt.preppy.server.compression;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import sbrt.preppy.compression.DeflateCodec;
+import sbrt.preppy.server.ChatProperties;
+
+/**
+ * @author preppy
+ * Registering the deflate codec with the gRPC server and negotiating the compression of the responses
+ * by chat.compression
+ */
+@Configuration
+public class CompressionConfiguration {
+
+    /**
+     * Registries used by the gRPC server, they replace the default ones of the starter,
+     * which would overwrite registries set on the server builder
+     */
+    @Bean
+    public CompressorRegistry compressorRegistry() {
+        CompressorRegistry compressors = CompressorRegistry.newEmptyInstance();
+        compressors.register(new Codec.Gzip());
+        compressors.register(new DeflateCodec());
+        return compressors;
+    }
+
+    @Bean
+    public DecompressorRegistry decompressorRegistry() {
+        return DecompressorRegistry.getDefaultInstance().with(new DeflateCodec(), true);
+    }
+
+    @GrpcGlobalServerInterceptor
+    public CompressionInterceptor compressionInterceptor(ChatProperties properties) {
+        ChatProperties.Compression compression = properties.getCompression();
+        return new CompressionInterceptor(compression.getCodecs(), compression.getThreshold());
+    }
+}
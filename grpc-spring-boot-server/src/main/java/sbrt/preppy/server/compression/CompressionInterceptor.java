@@ -0,0 +1,81 @@
+package sbrt.preppy.server.compression;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import sbrt.preppy.server.dispatch.OutboundFrame;
+
+import java.util.List;
+
+/**
+ * @author preppy
+ * Negotiating the compression of the server's responses.
+ * The first codec of the server's preference list that the client accepts is chosen for the call,
+ * and only messages of at least the threshold size are compressed with it:
+ * short chat lines go as they are, history pages and long messages are compressed.
+ */
+public class CompressionInterceptor implements ServerInterceptor {
+    static final Metadata.Key<String> ACCEPT_ENCODING = Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * Message encodings in the order of preference
+     */
+    private final List<String> codecs;
+    /**
+     * Smallest encoded message size in bytes that is compressed
+     */
+    private final int threshold;
+
+    public CompressionInterceptor(List<String> codecs, int threshold) {
+        this.codecs = codecs;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String codec = choose(headers.get(ACCEPT_ENCODING));
+        if (codec == null) {
+            return next.startCall(call, headers);
+        }
+        call.setCompression(codec);
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                super.setMessageCompression(sizeOf(message) >= threshold);
+                super.sendMessage(message);
+            }
+        }, headers);
+    }
+
+    /**
+     * Choosing the codec of the call
+     * @param acceptEncoding comma-separated encodings the client can decompress
+     * @return the preferred codec accepted by the client, null to send the responses uncompressed
+     */
+    String choose(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        List<String> accepted = List.of(acceptEncoding.split("\\s*,\\s*"));
+        for (String codec : codecs) {
+            if (accepted.contains(codec)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static int sizeOf(Object message) {
+        if (message instanceof OutboundFrame frame) {
+            return frame.size();
+        }
+        if (message instanceof MessageLite proto) {
+            return proto.getSerializedSize();
+        }
+        return Integer.MAX_VALUE;
+    }
+}
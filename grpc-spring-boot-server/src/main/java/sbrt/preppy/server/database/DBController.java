@@ -1,65 +1,89 @@
 package sbrt.preppy.server.database;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import sbrt.preppy.server.messages.Message;
 
+import javax.sql.DataSource;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Работа базы данных в режиме in-memory.
- * Основные методы: запись сообщений и показать крайнее сообщение.
+ * Хранилище сообщений на чистом JDBC.
+ * Соединения берутся из пула DataSource, запись идёт пачками через одно выделенное соединение
+ * с заранее подготовленным INSERT, чтение - диапазонами по id, времени и порядковому номеру
+ * и страницами истории по ключу (_data, _id).
+ * Может использоваться вместо MessageRepository (chat.persistence.store=JDBC).
  */
 @Slf4j
 @Component
-public class DBController {
-    private static final String DB_DRIVER = "org.h2.Driver";
-    private static final String DB_CONNECTION = "jdbc:h2:mem:test;DB_CLOSE_DELAY=-1";
-    private static final String DB_USER = "";
-    private static final String DB_PASSWORD = "";
-    Connection connection;
+public class DBController implements MessageStore {
+    private static final String CREATE_QUERY = "CREATE TABLE IF NOT EXISTS MESSAGES (" +
+            "_id BIGINT NOT NULL AUTO_INCREMENT," +
+            "_seq BIGINT," +
+            "_data TIMESTAMP NOT NULL," +
+            "_author varchar(255) NOT NULL," +
+            "_receiver varchar(255)," +
+            "_messageType varchar(255) NOT NULL," +
+            "_text varchar(4096) NOT NULL," +
+            "PRIMARY KEY(_id))";
+    /**
+     * Индексы под чтение диапазонами: по номеру, по времени, и страницы по номеру для типа, участников переписки и комнаты
+     */
+    private static final String[] INDEX_QUERIES = {
+            "CREATE INDEX IF NOT EXISTS MESSAGES_SEQ ON MESSAGES(_seq)",
+            "CREATE INDEX IF NOT EXISTS MESSAGES_DATA_ID ON MESSAGES(_data, _id)",
+            "CREATE INDEX IF NOT EXISTS MESSAGES_TYPE_SEQ ON MESSAGES(_messagetype, _seq)",
+            "CREATE INDEX IF NOT EXISTS MESSAGES_PAIR_SEQ ON MESSAGES(_author, _receiver, _seq)",
+            "CREATE INDEX IF NOT EXISTS MESSAGES_ROOM_SEQ ON MESSAGES(_messagetype, _receiver, _seq)"
+    };
+    private static final String INSERT_QUERY = "INSERT INTO MESSAGES (_seq, _data, _author, _receiver, _messagetype, _text) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String COLUMNS = "SELECT _id, _seq, _data, _author, _receiver, _messagetype, _text FROM MESSAGES ";
+    private static final String SELECT_BY_ID_QUERY = COLUMNS + "WHERE _id BETWEEN ? AND ? ORDER BY _id";
+    private static final String SELECT_BY_TIME_QUERY = COLUMNS + "WHERE _data >= ? AND _data < ? ORDER BY _data, _id LIMIT ?";
+    private static final String SELECT_BY_SEQ_QUERY = COLUMNS + "WHERE _seq > ? AND _seq <= ? ORDER BY _seq";
+    /**
+     * Страница в порядке номеров до номера курсора: H2 читает диапазон по _seq на составном индексе,
+     * дата отсекает сообщения не старше даты, когда страница начинается с даты без номера
+     */
+    private static final String KEYSET = "AND _seq < ? AND _data < ? ORDER BY _seq DESC LIMIT ?";
+    static final String SELECT_BROADCAST_PAGE_QUERY = COLUMNS + "WHERE _messagetype = 'BROADCAST' " + KEYSET;
+    static final String SELECT_PRIVATE_PAGE_QUERY = COLUMNS + "WHERE _messagetype = 'PRIVATE' " +
+            "AND ((_author = ? AND _receiver = ?) OR (_author = ? AND _receiver = ?)) " + KEYSET;
+    static final String SELECT_ROOM_PAGE_QUERY = COLUMNS + "WHERE _messagetype = 'ROOM' AND _receiver = ? " + KEYSET;
+    private static final String SELECT_LAST_QUERY = COLUMNS + "ORDER BY _id DESC LIMIT ?";
+    private static final String SELECT_LAST_SEQ_QUERY = "SELECT MAX(_seq) FROM MESSAGES";
 
     /**
-     * Подключение к базе данных H2 in-memory
-     *
-     * @return
+     * Пул соединений с базой данных
      */
-    private Connection getDBConnection() {
-        Connection dbConnection = null;
-        try {
-            Class.forName(DB_DRIVER);
-        } catch (ClassNotFoundException e) {
-            log.info(e.getMessage());
-        }
-        try {
-            dbConnection = DriverManager.getConnection(DB_CONNECTION, DB_USER, DB_PASSWORD);
-            return dbConnection;
-        } catch (SQLException e) {
-            log.info(e.getMessage());
-        }
-        return dbConnection;
+    private final DataSource dataSource;
+    /**
+     * Выделенное соединение для записи и подготовленный на нём INSERT.
+     * Запись идёт из одного потока write-behind, доступ синхронизирован на this
+     */
+    private Connection writeConnection;
+    private PreparedStatement insertStatement;
+
+    public DBController(DataSource dataSource) {
+        this.dataSource = dataSource;
     }
 
     /**
-     * Подключается к in-memory базе данных и
-     * создает таблицу для хранения всех сообщений сессии
+     * Создает таблицу для хранения всех сообщений сессии и индексы к ней
      */
+    @PostConstruct
     public void createTableMessages() {
-        connection = getDBConnection();
-        PreparedStatement createPreparedStatement = null;
-        String CreateQuery = "CREATE TABLE IF NOT EXISTS MESSAGES (\n" +
-                "_id int NOT NULL AUTO_INCREMENT," +
-                "_data TIMESTAMP NOT NULL," +
-                "_author varchar(255) NOT NULL," +
-                "_messageType varchar(255) NOT NULL," +
-                "_text varchar(255)NOT NULL," +
-                "PRIMARY KEY(_id))";
-        try {
-            connection.setAutoCommit(false);
-            createPreparedStatement = connection.prepareStatement(CreateQuery);
-            createPreparedStatement.executeUpdate();
-            createPreparedStatement.close();
-            connection.commit();
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate(CREATE_QUERY);
+            for (String indexQuery : INDEX_QUERIES) {
+                statement.executeUpdate(indexQuery);
+            }
         } catch (SQLException e) {
             log.info("createTableMessages: Exception Message " + e.getLocalizedMessage());
         }
@@ -68,61 +92,152 @@ public class DBController {
     /**
      * Загрузить новое сообщение в базу данных
      */
-    public void loadNewMessage(Message message) throws SQLException {
-        PreparedStatement insertPreparedStatement = null;
-        String InsertQuery = "INSERT INTO MESSAGES (_data, _author, _messagetype, _text) VALUES (?, ?, ?, ?)";
+    public void loadNewMessage(Message message) {
+        saveAll(List.of(new MessageBD(message)));
+    }
 
+    /**
+     * Записать пачку сообщений одной транзакцией через JDBC batch
+     *
+     * @param batch сообщения в порядке отправки
+     */
+    @Override
+    public synchronized void saveAll(List<MessageBD> batch) {
         try {
-            connection.setAutoCommit(false);
-            insertPreparedStatement = connection.prepareStatement(InsertQuery);
-            insertPreparedStatement.setTimestamp(1, message.getTimestamp());
-            insertPreparedStatement.setString(2, String.valueOf(message.getSender()));
-            insertPreparedStatement.setString(3, String.valueOf(message.getMessageType()));
-            insertPreparedStatement.setString(4, message.getContent());
-            System.out.println(insertPreparedStatement);
-            insertPreparedStatement.executeUpdate();
-            insertPreparedStatement.close();
+            PreparedStatement insert = getInsertStatement();
+            for (MessageBD row : batch) {
+                insert.setObject(1, row.getSeq());
+                insert.setTimestamp(2, row.getDate());
+                insert.setString(3, row.getAuthor());
+                insert.setString(4, row.getReceiver());
+                insert.setString(5, row.getMessageType());
+                insert.setString(6, row.getMessageText());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            writeConnection.commit();
         } catch (SQLException e) {
-            log.info("loadNewMessage: Exception Message " + e.getLocalizedMessage());
-        } finally {
-            connection.setAutoCommit(true);
+            log.info("saveAll: Exception Message " + e.getLocalizedMessage());
+            closeDataBase();
+            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Получить соединение для записи и подготовленный INSERT, при первом вызове или после ошибки - заново
+     */
+    private PreparedStatement getInsertStatement() throws SQLException {
+        if (insertStatement == null) {
+            writeConnection = dataSource.getConnection();
+            writeConnection.setAutoCommit(false);
+            insertStatement = writeConnection.prepareStatement(INSERT_QUERY);
+        }
+        return insertStatement;
+    }
 
     /**
-     * Вывести все сообщения данной сессии
+     * Сообщения с id из диапазона [fromId, toId]
      */
-    public void getLastMessages() {
-        PreparedStatement selectPreparedStatement = null;
-//        String SelectQuery = "select * from MESSAGES";
-        String SelectQuery = "SELECT * FROM MESSAGES\n" +
-                "        ORDER BY _id DESC\n" +
-                "        LIMIT 3;";
+    public List<MessageBD> findByIdRange(long fromId, long toId) {
+        return query(SELECT_BY_ID_QUERY, fromId, toId);
+    }
 
+    /**
+     * Сообщения, отправленные в промежутке [from, to), не больше limit штук
+     */
+    public List<MessageBD> findByTimeRange(Timestamp from, Timestamp to, int limit) {
+        return query(SELECT_BY_TIME_QUERY, from, to, limit);
+    }
 
-        try {
-            connection.setAutoCommit(false);
-
-            selectPreparedStatement = connection.prepareStatement(SelectQuery);
-            ResultSet rs = selectPreparedStatement.executeQuery();
-            log.info("H2 In-Memory Database inserted through PreparedStatement");
-
-            while (rs.next()) {
-                log.info("Id " + rs.getInt("_id") +
-                        " Timestamp " + rs.getTimestamp("_data") +
-                        " Sender " + rs.getString("_author") +
-                        " Type " + rs.getString("_messagetype") +
-                        " Text " + rs.getString("_text"));
+    @Override
+    public List<MessageBD> findBroadcastPage(Timestamp beforeDate, long beforeSeq, int limit) {
+        return query(SELECT_BROADCAST_PAGE_QUERY, beforeSeq, beforeDate, limit);
+    }
+
+    @Override
+    public List<MessageBD> findPrivatePage(String user, String peer, Timestamp beforeDate, long beforeSeq, int limit) {
+        return query(SELECT_PRIVATE_PAGE_QUERY, user, peer, peer, user, beforeSeq, beforeDate, limit);
+    }
+
+    @Override
+    public List<MessageBD> findRoomPage(String room, Timestamp beforeDate, long beforeSeq, int limit) {
+        return query(SELECT_ROOM_PAGE_QUERY, room, beforeSeq, beforeDate, limit);
+    }
+
+    /**
+     * Последние сообщения данной сессии, начиная с самого нового
+     */
+    public List<MessageBD> getLastMessages(int count) {
+        return query(SELECT_LAST_QUERY, count);
+    }
+
+    @Override
+    public long lastSeq() {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement(SELECT_LAST_SEQ_QUERY);
+             ResultSet rs = select.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            log.info("lastSeq: Exception Message " + e.getLocalizedMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<Message> load(long afterSeq, long upToSeq) {
+        List<MessageBD> rows = query(SELECT_BY_SEQ_QUERY, afterSeq, upToSeq);
+        List<Message> messages = new ArrayList<>(rows.size());
+        for (MessageBD row : rows) {
+            messages.add(row.toMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Выполнить выборку на соединении из пула
+     */
+    private List<MessageBD> query(String selectQuery, Object... params) {
+        List<MessageBD> rows = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement(selectQuery)) {
+            for (int i = 0; i < params.length; i++) {
+                select.setObject(i + 1, params[i]);
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(toRow(rs));
+                }
             }
-            selectPreparedStatement.close();
         } catch (SQLException e) {
-            log.info("getLastMessages: Exception Message " + e.getLocalizedMessage());
-        } catch (Exception e) {
-            e.printStackTrace();
+            log.info("query: Exception Message " + e.getLocalizedMessage());
+            throw new RuntimeException(e);
         }
+        return rows;
+    }
+
+    private static MessageBD toRow(ResultSet rs) throws SQLException {
+        MessageBD row = new MessageBD(rs.getTimestamp("_data"), rs.getString("_author"), rs.getString("_receiver"),
+                rs.getString("_messagetype"), rs.getString("_text"));
+        row.setId(rs.getLong("_id"));
+        long seq = rs.getLong("_seq");
+        row.setSeq(rs.wasNull() ? null : seq);
+        return row;
     }
-    public void closeDataBase() throws SQLException {
-        connection.close();
+
+    /**
+     * Вернуть соединение для записи в пул
+     */
+    @PreDestroy
+    public synchronized void closeDataBase() {
+        try {
+            if (writeConnection != null) {
+                writeConnection.close();
+            }
+        } catch (SQLException e) {
+            log.info("closeDataBase: Exception Message " + e.getLocalizedMessage());
+        } finally {
+            writeConnection = null;
+            insertStatement = null;
+        }
     }
 }
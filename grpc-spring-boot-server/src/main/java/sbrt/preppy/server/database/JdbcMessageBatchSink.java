@@ -0,0 +1,37 @@
+package sbrt.preppy.server.database;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * @author preppy
+ * Storing message batches in the chat message table with JDBC batch inserts.
+ * Hibernate cannot batch inserts of entities with an identity id, so the rows are inserted directly.
+ */
+public class JdbcMessageBatchSink implements MessageBatchSink {
+    private static final String INSERT_QUERY = "INSERT INTO messagebd (seq, date, author, receiver, message_type, message_text) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    public JdbcMessageBatchSink(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void saveAll(List<MessageBD> batch) {
+        transactionTemplate.executeWithoutResult(status ->
+                jdbcTemplate.batchUpdate(INSERT_QUERY, batch, batch.size(), (ps, row) -> {
+                    ps.setObject(1, row.getSeq());
+                    ps.setTimestamp(2, row.getDate());
+                    ps.setString(3, row.getAuthor());
+                    ps.setString(4, row.getReceiver());
+                    ps.setString(5, row.getMessageType());
+                    ps.setString(6, row.getMessageText());
+                }));
+    }
+}
@@ -0,0 +1,64 @@
+package sbrt.preppy.server.database;
+
+import org.springframework.data.domain.PageRequest;
+import sbrt.preppy.server.messages.Message;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author preppy
+ * Message store on the Spring Data table of MessageBD.
+ * Reads go through MessageRepository, batches are written by the given sink.
+ */
+public class JpaMessageStore implements MessageStore {
+    private final MessageRepository repository;
+    /**
+     * Writing of message batches into the MessageBD table
+     */
+    private final MessageBatchSink sink;
+
+    public JpaMessageStore(MessageRepository repository, MessageBatchSink sink) {
+        this.repository = repository;
+        this.sink = sink;
+    }
+
+    @Override
+    public void saveAll(List<MessageBD> batch) {
+        sink.saveAll(batch);
+    }
+
+    @Override
+    public long lastSeq() {
+        MessageBD last = repository.findTopByOrderBySeqDesc();
+        return last == null || last.getSeq() == null ? 0 : last.getSeq();
+    }
+
+    @Override
+    public List<Message> load(long afterSeq, long upToSeq) {
+        List<MessageBD> rows = repository.findBySeqGreaterThanAndSeqLessThanEqualOrderBySeqAsc(afterSeq, upToSeq);
+        List<Message> messages = new ArrayList<>(rows == null ? 0 : rows.size());
+        if (rows != null) {
+            for (MessageBD row : rows) {
+                messages.add(row.toMessage());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public List<MessageBD> findBroadcastPage(Timestamp beforeDate, long beforeSeq, int limit) {
+        return repository.findBroadcastPage(beforeDate, beforeSeq, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public List<MessageBD> findPrivatePage(String user, String peer, Timestamp beforeDate, long beforeSeq, int limit) {
+        return repository.findPrivatePage(user, peer, beforeDate, beforeSeq, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public List<MessageBD> findRoomPage(String room, Timestamp beforeDate, long beforeSeq, int limit) {
+        return repository.findRoomPage(room, beforeDate, beforeSeq, PageRequest.of(0, limit));
+    }
+}
@@ -3,21 +3,35 @@ package sbrt.preppy.server.database;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
 
 import java.sql.Timestamp;
 
 /**
  * @author preppy
- * Database table for storing chat messages
+ * Database table for storing chat messages.
+ * The indices serve resuming by sequence number and paging of the broadcast, private and room history in sequence order.
+ * A room message keeps the name of its room in the receiver column.
  */
 @Entity
-@Table
+@Table(indexes = {
+        @Index(name = "messagebd_seq", columnList = "seq"),
+        @Index(name = "messagebd_type_seq", columnList = "message_type, seq"),
+        @Index(name = "messagebd_pair_seq", columnList = "author, receiver, seq"),
+        @Index(name = "messagebd_room_seq", columnList = "message_type, receiver, seq")
+})
 @Setter
 @Getter
 public class MessageBD {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private Integer id;
+    private Long id;
+    /**
+     * Sequence number assigned by the dispatcher when the message was published
+     */
+    private Long seq;
     private Timestamp date;
     private String author;
     private String receiver;
@@ -33,10 +47,32 @@ public class MessageBD {
         this.messageText = messageText;
     }
 
+    public MessageBD(Message msg) {
+        this(msg.getTimestamp(), String.valueOf(msg.getSender()), String.valueOf(msg.getReceiver()),
+                String.valueOf(msg.getMessageType()), msg.getText());
+        this.seq = msg.getSeq();
+    }
+
+    /**
+     * Converting the stored row back to a chat message
+     * @return message with the stored sequence number
+     */
+    public Message toMessage() {
+        Message msg = new Message();
+        msg.setSender(new User(author));
+        msg.setReceiver(receiver);
+        msg.setMessageType(MessageType.valueOf(messageType));
+        msg.setTimestamp(date);
+        msg.setText(messageText);
+        msg.setSeq(seq == null ? 0 : seq);
+        return msg;
+    }
+
     @Override
     public String toString() {
         return "Messages{ " +
                 "id = " + id +
+                ", seq = " + seq +
                 ", date = " + date +
                 ", author = " + author +
                 ", receiver = " + receiver +
@@ -0,0 +1,16 @@
+package sbrt.preppy.server.database;
+
+import java.util.List;
+
+/**
+ * @author preppy
+ * Storage receiving chat messages in batches from the write-behind writer
+ */
+@FunctionalInterface
+public interface MessageBatchSink {
+    /**
+     * Storing a batch of messages in one transaction
+     * @param batch messages in publishing order
+     */
+    void saveAll(List<MessageBD> batch);
+}
@@ -1,17 +1,71 @@
 package sbrt.preppy.server.database;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.sql.Timestamp;
+import java.util.List;
+
 /**
- *Repository for working with the chat message table
+ *Repository for working with the chat message table.
+ * History pages are read in sequence order before the sequence number of the cursor, so the database seeks
+ * the composite index instead of reading every message of the type. A page started from a date only
+ * also skips the messages not older than the date.
  */
 @Repository
-public interface MessageRepository extends CrudRepository<MessageBD, Integer> {
+public interface MessageRepository extends CrudRepository<MessageBD, Long> {
     /**
      * Receiving the last message in the database
      * @return Message
      */
     MessageBD findTopByOrderByDateDesc();
 
+    /**
+     * Receiving the message with the highest sequence number
+     * @return Message or null, if the table is empty
+     */
+    MessageBD findTopByOrderBySeqDesc();
+
+    /**
+     * Receiving the messages published in a range of sequence numbers
+     * @param afterSeq the range starts after this sequence number
+     * @param upToSeq  the last sequence number of the range
+     * @return messages in sequence order
+     */
+    List<MessageBD> findBySeqGreaterThanAndSeqLessThanEqualOrderBySeqAsc(long afterSeq, long upToSeq);
+
+    /**
+     * Receiving a page of broadcast messages before the sequence number and older than the date
+     * @return messages from the newest to the oldest
+     */
+    @Query("SELECT m FROM MessageBD m WHERE m.messageType = 'BROADCAST' " +
+            "AND m.seq < :seq AND m.date < :date " +
+            "ORDER BY m.seq DESC")
+    List<MessageBD> findBroadcastPage(@Param("date") Timestamp date, @Param("seq") Long seq, Pageable page);
+
+    /**
+     * Receiving a page of private messages between two clients before the sequence number and older than the date
+     * @return messages from the newest to the oldest
+     */
+    @Query("SELECT m FROM MessageBD m WHERE m.messageType = 'PRIVATE' " +
+            "AND ((m.author = :user AND m.receiver = :peer) OR (m.author = :peer AND m.receiver = :user)) " +
+            "AND m.seq < :seq AND m.date < :date " +
+            "ORDER BY m.seq DESC")
+    List<MessageBD> findPrivatePage(@Param("user") String user, @Param("peer") String peer,
+                                    @Param("date") Timestamp date, @Param("seq") Long seq, Pageable page);
+
+    /**
+     * Receiving a page of the messages of a room before the sequence number and older than the date,
+     * the room is stored as the receiver
+     * @return messages from the newest to the oldest
+     */
+    @Query("SELECT m FROM MessageBD m WHERE m.messageType = 'ROOM' AND m.receiver = :room " +
+            "AND m.seq < :seq AND m.date < :date " +
+            "ORDER BY m.seq DESC")
+    List<MessageBD> findRoomPage(@Param("room") String room, @Param("date") Timestamp date, @Param("seq") Long seq,
+                                 Pageable page);
+
 }
@@ -0,0 +1,12 @@
+package sbrt.preppy.server.database;
+
+import sbrt.preppy.server.dispatch.MessageHistory;
+
+/**
+ * @author preppy
+ * Storage of chat messages behind GrpcProfileService:
+ * batched writes from the write-behind writer, reads by sequence number for resuming streams
+ * and paged history reads.
+ */
+public interface MessageStore extends MessageBatchSink, MessageHistory, PagedHistory {
+}
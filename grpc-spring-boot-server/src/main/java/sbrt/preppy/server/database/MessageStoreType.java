@@ -0,0 +1,20 @@
+package sbrt.preppy.server.database;
+
+/**
+ * @author preppy
+ * Storage used for chat messages
+ */
+public enum MessageStoreType {
+    /**
+     * The Spring Data table of MessageBD, written with JDBC batches
+     */
+    JPA,
+    /**
+     * The MESSAGES table of DBController
+     */
+    JDBC,
+    /**
+     * Append-only memory-mapped journal files
+     */
+    JOURNAL
+}
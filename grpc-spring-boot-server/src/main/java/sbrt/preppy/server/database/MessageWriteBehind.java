@@ -0,0 +1,334 @@
+package sbrt.preppy.server.database;
+
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.server.dispatch.MessageHistory;
+import sbrt.preppy.server.messages.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author preppy
+ * Write-behind persistence of chat messages.
+ * Messages are accepted into a bounded queue and stored by a dedicated writer thread
+ * in batches of up to batchSize rows, waiting at most maxLingerMillis for a batch to fill up.
+ * A full queue blocks the sending call until the writer catches up. A caller holding a lock reserves the places first
+ * and hands the rows over under the lock with enqueueReserved, so the wait for the writer never happens under the lock.
+ * A batch the storage fails to save is retried with a growing delay, so the rows are never skipped while the server runs.
+ * As the history of the dispatcher it waits until the requested range is stored, so a resuming stream never reads past unflushed rows.
+ */
+@Slf4j
+public class MessageWriteBehind implements MessageHistory, AutoCloseable {
+    /**
+     * Delay before the first retry of a failed batch, doubled up to RETRY_MAX_MS
+     */
+    private static final long RETRY_INITIAL_MS = 100;
+    private static final long RETRY_MAX_MS = 5_000;
+    /**
+     * Attempts to store a failing batch after the writer is closed, before its rows are given up
+     */
+    private static final int ATTEMPTS_AFTER_CLOSE = 3;
+    /**
+     * The longest time a history load waits for the writer to store its range
+     */
+    private static final long LOAD_TIMEOUT_MS = 10_000;
+    private final BlockingQueue<Pending> queue;
+    /**
+     * Free places of the queue, a place is taken by a reservation and freed when its row is stored
+     */
+    private final Semaphore places;
+    private final int queueCapacity;
+    private final MessageBatchSink sink;
+    /**
+     * Stored messages read by the history loads
+     */
+    private final MessageHistory stored;
+    private final int batchSize;
+    private final long maxLingerNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    /**
+     * Set by close, later messages are rejected
+     */
+    private volatile boolean closed;
+    /**
+     * Sequence number of the last accepted message
+     */
+    private volatile long acceptedSeq;
+    /**
+     * Sequence number of the last message the writer is done with, guarded by this
+     */
+    private long storedSeq;
+
+    /* ----------------------------- STATISTICS ----------------------------- */
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+    private final AtomicLong lostRows = new AtomicLong();
+    private volatile long lastFlushLagMillis;
+    private volatile long maxFlushLagMillis;
+
+    /**
+     * A message waiting to be stored and the time it was accepted
+     */
+    private record Pending(MessageBD row, long acceptedNanos) {
+    }
+
+    public MessageWriteBehind(MessageBatchSink sink, int queueCapacity, int batchSize, long maxLingerMillis) {
+        this(sink, MessageHistory.EMPTY, queueCapacity, batchSize, maxLingerMillis);
+    }
+
+    public MessageWriteBehind(MessageBatchSink sink, MessageHistory stored, int queueCapacity, int batchSize,
+                              long maxLingerMillis) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.places = new Semaphore(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.sink = sink;
+        this.stored = stored;
+        this.batchSize = batchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.writer = new Thread(this::run, "chat-message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Accepting a message for storing, called in sequence order.
+     * Waits for a free place, when the queue is full.
+     * @param row message to store
+     * @throws IllegalStateException when the writer is closed
+     */
+    public void enqueue(MessageBD row) {
+        reserve(1);
+        enqueueReserved(row);
+    }
+
+    /**
+     * Reserving places in the queue for messages handed over later with enqueueReserved.
+     * Waits until the writer has stored enough messages, when the queue is full.
+     * @param rows number of messages
+     * @throws IllegalStateException when the writer is closed or the wait is interrupted
+     */
+    public void reserve(int rows) {
+        if (rows > queueCapacity) {
+            throw new IllegalArgumentException(rows + " messages do not fit in a queue of " + queueCapacity);
+        }
+        if (closed) {
+            throw new IllegalStateException("Message writer is closed, " + rows + " messages are not stored");
+        }
+        if (!places.tryAcquire(rows)) {
+            log.warn("reserve: write-behind queue is full, waiting for the writer.");
+            try {
+                places.acquire(rows);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted, " + rows + " messages are not stored", e);
+            }
+        }
+    }
+
+    /**
+     * Giving back reserved places no message was handed over into, after the publishing failed
+     * @param rows number of unused places
+     */
+    public void release(int rows) {
+        if (rows > 0) {
+            places.release(rows);
+        }
+    }
+
+    /**
+     * Accepting a message for storing into a reserved place, never waits. Called in sequence order.
+     * @param row message to store
+     * @throws IllegalStateException when the writer is closed
+     */
+    public void enqueueReserved(MessageBD row) {
+        if (closed) {
+            throw new IllegalStateException("Message writer is closed, message is not stored: " + row);
+        }
+        if (row.getSeq() != null) {
+            acceptedSeq = Math.max(acceptedSeq, row.getSeq());
+        }
+        queue.add(new Pending(row, System.nanoTime()));
+    }
+
+    @Override
+    public long lastSeq() {
+        return Math.max(stored.lastSeq(), acceptedSeq);
+    }
+
+    /**
+     * Loading stored messages after the writer has stored the accepted ones of the range
+     * @throws IllegalStateException when the range is not stored within LOAD_TIMEOUT_MS
+     */
+    @Override
+    public List<Message> load(long afterSeq, long upToSeq) {
+        awaitStored(Math.min(upToSeq, acceptedSeq));
+        return stored.load(afterSeq, upToSeq);
+    }
+
+    private synchronized void awaitStored(long seq) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_TIMEOUT_MS);
+        try {
+            while (storedSeq < seq) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    throw new IllegalStateException("Messages up to " + seq + " are not stored yet, stored up to " + storedSeq);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for messages up to " + seq + " to be stored", e);
+        }
+    }
+
+    private synchronized void storedUpTo(List<MessageBD> rows) {
+        for (MessageBD row : rows) {
+            if (row.getSeq() != null) {
+                storedSeq = Math.max(storedSeq, row.getSeq());
+            }
+        }
+        notifyAll();
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.acceptedNanos() + maxLingerNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || wait <= 0 || !running) {
+                        break;
+                    }
+                    Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        List<MessageBD> rows = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            rows.add(pending.row());
+        }
+        long delay = RETRY_INITIAL_MS;
+        int attemptsAfterClose = 0;
+        while (true) {
+            try {
+                sink.saveAll(rows);
+                long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).acceptedNanos());
+                lastFlushLagMillis = lag;
+                maxFlushLagMillis = Math.max(maxFlushLagMillis, lag);
+                flushedRows.addAndGet(rows.size());
+                flushedBatches.incrementAndGet();
+                log.debug("flush: stored " + rows.size() + " messages, flush lag " + lag + " ms.");
+                break;
+            } catch (RuntimeException e) {
+                failedRows.addAndGet(rows.size());
+                if (!running && ++attemptsAfterClose >= ATTEMPTS_AFTER_CLOSE) {
+                    lostRows.addAndGet(rows.size());
+                    log.error("flush: writer is closed, " + rows.size() + " messages are lost: " + e.getMessage());
+                    break;
+                }
+                log.error("flush: could not store " + rows.size() + " messages, retrying in " + delay + " ms: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            delay = running ? Math.min(delay * 2, RETRY_MAX_MS) : RETRY_INITIAL_MS;
+        }
+        storedUpTo(rows);
+        places.release(rows.size());
+    }
+
+    /**
+     * Stopping the writer after the accepted messages are stored, later messages are rejected
+     */
+    @Override
+    public void close() {
+        closed = true;
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive() || !queue.isEmpty()) {
+            log.error("close: writer did not finish, " + queue.size() + " messages are not stored.");
+        }
+        log.info("close: stored " + flushedRows.get() + " messages in " + flushedBatches.get() + " batches, max flush lag "
+                + maxFlushLagMillis + " ms.");
+    }
+
+    /**
+     * Getting the largest number of messages waiting to be stored, the most one reservation can take
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Getting the number of accepted messages not stored yet
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Getting the time between accepting the oldest message of the last batch and storing it
+     */
+    public long getLastFlushLagMillis() {
+        return lastFlushLagMillis;
+    }
+
+    public long getMaxFlushLagMillis() {
+        return maxFlushLagMillis;
+    }
+
+    public long getFlushedRows() {
+        return flushedRows.get();
+    }
+
+    public long getFlushedBatches() {
+        return flushedBatches.get();
+    }
+
+    /**
+     * Getting the number of rows of the failed store attempts, a retried row is counted once per attempt
+     */
+    public long getFailedRows() {
+        return failedRows.get();
+    }
+
+    /**
+     * Getting the number of rows given up after the writer was closed
+     */
+    public long getLostRows() {
+        return lostRows.get();
+    }
+}
@@ -0,0 +1,43 @@
+package sbrt.preppy.server.database;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * @author preppy
+ * Reading the stored chat history page by page.
+ * Pages are read in sequence order before the sequence number of the oldest message of the previous page,
+ * so every page costs one index range scan regardless of its depth, and messages of the same millisecond are never skipped.
+ * The first page of a reader starting from a date has no sequence number, it is cut by the date instead.
+ */
+public interface PagedHistory {
+    /**
+     * Getting the broadcast messages before the cursor
+     * @param beforeDate the page contains messages older than this date
+     * @param beforeSeq  the page contains messages with a lower sequence number, of the oldest message of the previous page
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest
+     */
+    List<MessageBD> findBroadcastPage(Timestamp beforeDate, long beforeSeq, int limit);
+
+    /**
+     * Getting the private messages between two clients before the cursor
+     * @param user       one side of the conversation
+     * @param peer       the other side of the conversation
+     * @param beforeDate the page contains messages older than this date
+     * @param beforeSeq  the page contains messages with a lower sequence number, of the oldest message of the previous page
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest
+     */
+    List<MessageBD> findPrivatePage(String user, String peer, Timestamp beforeDate, long beforeSeq, int limit);
+
+    /**
+     * Getting the messages of a room before the cursor
+     * @param room       name of the room
+     * @param beforeDate the page contains messages older than this date
+     * @param beforeSeq  the page contains messages with a lower sequence number, of the oldest message of the previous page
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest
+     */
+    List<MessageBD> findRoomPage(String room, Timestamp beforeDate, long beforeSeq, int limit);
+}
@@ -0,0 +1,66 @@
+package sbrt.preppy.server.database;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import sbrt.preppy.server.ChatProperties;
+import sbrt.preppy.server.database.journal.JournalMessageStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * @author preppy
+ * Choosing the message storage by chat.persistence.store and creating the one write-behind writer in front of it
+ */
+@Configuration
+public class PersistenceConfiguration {
+
+    @Bean
+    @Primary
+    public MessageStore messageStore(ChatProperties properties, MessageRepository repository, JdbcTemplate jdbcTemplate,
+                                     PlatformTransactionManager transactionManager, DBController dbController) throws IOException {
+        ChatProperties.Persistence persistence = properties.getPersistence();
+        return switch (persistence.getStore()) {
+            case JPA -> new JpaMessageStore(repository, new JdbcMessageBatchSink(jdbcTemplate, transactionManager));
+            case JDBC -> dbController;
+            case JOURNAL -> new JournalMessageStore(Path.of(persistence.getJournal().getDirectory()),
+                    persistence.getJournal().getSegmentSize(), persistence.getJournal().getIndexInterval(),
+                    persistence.getJournal().isForceOnWrite());
+        };
+    }
+
+    /**
+     * The writer is closed by the context after the gRPC service, so the messages accepted last are stored
+     */
+    @Bean(destroyMethod = "close")
+    public MessageWriteBehind messageWriteBehind(MessageStore store, ChatProperties properties, MeterRegistry registry) {
+        return writeBehind(store, properties, registry);
+    }
+
+    /**
+     * Creating a write-behind writer of the store, every batch is timed in chat.store.writes
+     * @param store      storage of the messages, also read by the history loads of the writer
+     * @param properties settings of the queue and the batches
+     * @param registry   meter registry of the timer
+     * @return started writer, to be closed by its owner
+     * @throws IllegalArgumentException when a batch does not fit in the queue
+     */
+    public static MessageWriteBehind writeBehind(MessageStore store, ChatProperties properties, MeterRegistry registry) {
+        ChatProperties.Persistence persistence = properties.getPersistence();
+        if (persistence.getBatchSize() > persistence.getQueueCapacity()) {
+            throw new IllegalArgumentException("chat.persistence.batch-size " + persistence.getBatchSize()
+                    + " is larger than chat.persistence.queue-capacity " + persistence.getQueueCapacity());
+        }
+        Timer writes = Timer.builder("chat.store.writes")
+                .description("Time of storing one batch of messages")
+                .publishPercentileHistogram()
+                .register(registry);
+        return new MessageWriteBehind(batch -> writes.record(() -> store.saveAll(batch)), store,
+                persistence.getQueueCapacity(), persistence.getBatchSize(), persistence.getMaxLingerMs());
+    }
+}
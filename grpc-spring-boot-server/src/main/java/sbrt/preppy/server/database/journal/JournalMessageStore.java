@@ -0,0 +1,242 @@
+package sbrt.preppy.server.database.journal;
+
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.database.MessageStore;
+import sbrt.preppy.server.messages.Message;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * @author preppy
+ * Append-only message store on memory-mapped segment files.
+ * Messages are appended in sequence order by the write-behind writer; when a segment is full the next one is created.
+ * A sparse in-memory index keeps the position of every indexInterval-th record and of the first record of each segment,
+ * so a range read starts at the nearest indexed record and reads on sequentially.
+ * Message bodies stay in the mapped files, the heap only holds the sparse index.
+ * The storage id of a journal message is its sequence number.
+ */
+@Slf4j
+public class JournalMessageStore implements MessageStore, AutoCloseable {
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final boolean forceOnWrite;
+    private final List<JournalSegment> segments = new CopyOnWriteArrayList<>();
+    /**
+     * Sparse index: sequence number of an indexed record and its position
+     */
+    private final ConcurrentSkipListMap<Long, Position> index = new ConcurrentSkipListMap<>();
+    private volatile long lastSeq;
+    /**
+     * Records appended since the last indexed one, only used by the writer thread
+     */
+    private int sinceIndexed;
+
+    /**
+     * Position of a record: segment number and offset inside the segment
+     */
+    record Position(int segment, int offset) {
+    }
+
+    /**
+     * Opening the journal in the directory, existing segments are scanned to restore the index
+     * @param directory     directory of the segment files
+     * @param segmentSize   size of one segment file in bytes
+     * @param indexInterval every indexInterval-th record is put in the sparse index
+     * @param forceOnWrite  flushing the mapped pages to disk after every batch
+     */
+    public JournalMessageStore(Path directory, int segmentSize, int indexInterval, boolean forceOnWrite) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.forceOnWrite = forceOnWrite;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            int capacity = (int) Math.max(segmentSize, Files.size(file));
+            JournalSegment segment = new JournalSegment(file, capacity);
+            int number = segments.size();
+            segments.add(segment);
+            segment.recover((seq, offset) -> indexRecord(seq, new Position(number, offset)));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new JournalSegment(segmentFile(0), segmentSize));
+        }
+        log.info("JournalMessageStore: opened " + segments.size() + " segments in " + directory + ", last seq " + lastSeq + ".");
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Putting a record in the sparse index, if it starts a segment or indexInterval records were appended since the last indexed one
+     * @param seq      sequence number of the record
+     * @param position position of the record
+     */
+    private void indexRecord(long seq, Position position) {
+        if (position.offset() == 0 || ++sinceIndexed >= indexInterval) {
+            index.put(seq, position);
+            sinceIndexed = 0;
+        }
+        lastSeq = seq;
+    }
+
+    /* ----------------------------- WRITING ----------------------------- */
+
+    @Override
+    public synchronized void saveAll(List<MessageBD> batch) {
+        try {
+            for (MessageBD row : batch) {
+                byte[][] strings = JournalSegment.encode(row);
+                int size = JournalSegment.recordSize(strings);
+                if (size > segmentSize) {
+                    throw new IllegalArgumentException("message of " + size + " bytes does not fit in a segment");
+                }
+                JournalSegment segment = segments.get(segments.size() - 1);
+                if (!segment.hasRoom(size)) {
+                    segment.force();
+                    segment = new JournalSegment(segmentFile(segments.size()), segmentSize);
+                    segments.add(segment);
+                }
+                long seq = row.getSeq() == null ? lastSeq + 1 : row.getSeq();
+                int offset = segment.append(seq, row.getDate().getTime(), strings, size);
+                indexRecord(seq, new Position(segments.size() - 1, offset));
+            }
+            if (forceOnWrite) {
+                segments.get(segments.size() - 1).force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* ----------------------------- READING ----------------------------- */
+
+    @Override
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    public List<Message> load(long afterSeq, long upToSeq) {
+        List<Message> messages = new ArrayList<>();
+        Map.Entry<Long, Position> start = index.floorEntry(afterSeq + 1);
+        Position from = start == null ? new Position(0, 0) : start.getValue();
+        scan(from, entry -> {
+            if (entry.seq() > upToSeq) {
+                return false;
+            }
+            if (entry.seq() > afterSeq) {
+                messages.add(entry.row().toMessage());
+            }
+            return true;
+        });
+        return messages;
+    }
+
+    @Override
+    public List<MessageBD> findBroadcastPage(Timestamp beforeDate, long beforeSeq, int limit) {
+        return findPage(row -> "BROADCAST".equals(row.getMessageType()), beforeDate, beforeSeq, limit);
+    }
+
+    @Override
+    public List<MessageBD> findPrivatePage(String user, String peer, Timestamp beforeDate, long beforeSeq, int limit) {
+        return findPage(row -> "PRIVATE".equals(row.getMessageType())
+                && (user.equals(row.getAuthor()) && peer.equals(row.getReceiver())
+                || peer.equals(row.getAuthor()) && user.equals(row.getReceiver())), beforeDate, beforeSeq, limit);
+    }
+
+    @Override
+    public List<MessageBD> findRoomPage(String room, Timestamp beforeDate, long beforeSeq, int limit) {
+        return findPage(row -> "ROOM".equals(row.getMessageType()) && room.equals(row.getReceiver()), beforeDate, beforeSeq,
+                limit);
+    }
+
+    /**
+     * Reading the journal backwards one indexed block at a time
+     * @param filter     messages of the page
+     * @param beforeDate the page contains messages older than this date
+     * @param beforeSeq  the page contains messages with a lower sequence number
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest
+     */
+    private List<MessageBD> findPage(Predicate<MessageBD> filter, Timestamp beforeDate, long beforeSeq, int limit) {
+        List<MessageBD> page = new ArrayList<>(limit);
+        long end = beforeSeq;
+        Map.Entry<Long, Position> block = index.lowerEntry(end);
+        while (block != null && page.size() < limit) {
+            long blockEnd = end;
+            List<MessageBD> rows = new ArrayList<>();
+            scan(block.getValue(), entry -> {
+                if (entry.seq() >= blockEnd) {
+                    return false;
+                }
+                if (entry.row().getDate().before(beforeDate) && filter.test(entry.row())) {
+                    rows.add(entry.row());
+                }
+                return true;
+            });
+            for (int i = rows.size() - 1; i >= 0 && page.size() < limit; i--) {
+                page.add(rows.get(i));
+            }
+            end = block.getKey();
+            block = index.lowerEntry(end);
+        }
+        return page;
+    }
+
+    /**
+     * Reading records in order starting at the position, continuing into the next segments
+     * @param from    position of the first record
+     * @param visitor returns false to stop reading
+     */
+    private void scan(Position from, Predicate<JournalSegment.Entry> visitor) {
+        for (int number = from.segment(); number < segments.size(); number++) {
+            JournalSegment segment = segments.get(number);
+            int offset = number == from.segment() ? from.offset() : 0;
+            JournalSegment.Entry entry;
+            while ((entry = segment.read(offset)) != null) {
+                if (!visitor.test(entry)) {
+                    return;
+                }
+                offset = entry.nextOffset();
+            }
+        }
+    }
+
+    /**
+     * Getting the number of records in the sparse index
+     */
+    public int getIndexSize() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (JournalSegment segment : segments) {
+            try {
+                segment.force();
+                segment.close();
+            } catch (IOException e) {
+                log.warn("close: could not close " + segment.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package sbrt.preppy.server.database.journal;
+
+import sbrt.preppy.server.database.MessageBD;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.zip.CRC32C;
+
+/**
+ * @author preppy
+ * One memory-mapped file of the journal.
+ * Records are appended one after another:
+ * [int length][int crc][long seq][long date][author][receiver][messageType][messageText],
+ * every string is written as [int byte length, -1 for null][UTF-8 bytes].
+ * The crc is the CRC32C of the record after it. The mapped pages may reach the disk in any order,
+ * so a record torn by a crash is found by its checksum, not by the length, and reads as the end of the segment.
+ */
+class JournalSegment implements AutoCloseable {
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    private static final int CRC_BYTES = Integer.BYTES;
+    private static final int HEADER_BYTES = CRC_BYTES + Long.BYTES + Long.BYTES;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    /**
+     * Offset after the last complete record, records below it can be read from any thread
+     */
+    private volatile int writePosition;
+
+    /**
+     * A record read from the segment and the offset of the next record
+     */
+    record Entry(long seq, MessageBD row, int nextOffset) {
+    }
+
+    JournalSegment(Path file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Finding the end of the written records of an existing segment, the first record with a wrong checksum ends it
+     * @param visitor called for every complete record with its offset
+     */
+    void recover(RecordVisitor visitor) {
+        int offset = 0;
+        while (offset + LENGTH_BYTES + HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length < HEADER_BYTES || offset + LENGTH_BYTES + length > capacity
+                    || buffer.getInt(offset + LENGTH_BYTES) != checksum(offset, length)) {
+                break;
+            }
+            visitor.visit(buffer.getLong(offset + LENGTH_BYTES + CRC_BYTES), offset);
+            offset += LENGTH_BYTES + length;
+        }
+        writePosition = offset;
+    }
+
+    /**
+     * Getting the CRC32C of the record at the offset without its length and crc
+     * @param length length of the record written before it
+     */
+    private int checksum(int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset + LENGTH_BYTES + CRC_BYTES, length - CRC_BYTES));
+        return (int) crc.getValue();
+    }
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long seq, int offset);
+    }
+
+    /**
+     * Getting the size of a record on disk
+     */
+    static int recordSize(byte[][] strings) {
+        int size = LENGTH_BYTES + HEADER_BYTES;
+        for (byte[] string : strings) {
+            size += Integer.BYTES + (string == null ? 0 : string.length);
+        }
+        return size;
+    }
+
+    static byte[][] encode(MessageBD row) {
+        return new byte[][]{bytes(row.getAuthor()), bytes(row.getReceiver()), bytes(row.getMessageType()), bytes(row.getMessageText())};
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    boolean hasRoom(int recordSize) {
+        return writePosition + recordSize <= capacity;
+    }
+
+    /**
+     * Appending a record, only the journal's writer thread calls it
+     * @return offset of the record
+     */
+    int append(long seq, long date, byte[][] strings, int recordSize) {
+        int offset = writePosition;
+        int position = offset + LENGTH_BYTES + CRC_BYTES;
+        buffer.putLong(position, seq);
+        buffer.putLong(position + Long.BYTES, date);
+        position += Long.BYTES + Long.BYTES;
+        for (byte[] string : strings) {
+            if (string == null) {
+                buffer.putInt(position, -1);
+                position += Integer.BYTES;
+            } else {
+                buffer.putInt(position, string.length);
+                buffer.put(position + Integer.BYTES, string);
+                position += Integer.BYTES + string.length;
+            }
+        }
+        buffer.putInt(offset + LENGTH_BYTES, checksum(offset, recordSize - LENGTH_BYTES));
+        buffer.putInt(offset, recordSize - LENGTH_BYTES);
+        writePosition = offset + recordSize;
+        return offset;
+    }
+
+    /**
+     * Reading the record at the offset
+     * @return record or null, if there is no complete record at the offset
+     */
+    Entry read(int offset) {
+        if (offset >= writePosition) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        int position = offset + LENGTH_BYTES + CRC_BYTES;
+        long seq = buffer.getLong(position);
+        long date = buffer.getLong(position + Long.BYTES);
+        position += Long.BYTES + Long.BYTES;
+        String[] strings = new String[4];
+        for (int i = 0; i < strings.length; i++) {
+            int size = buffer.getInt(position);
+            position += Integer.BYTES;
+            if (size >= 0) {
+                byte[] bytes = new byte[size];
+                buffer.get(position, bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                position += size;
+            }
+        }
+        MessageBD row = new MessageBD(new Timestamp(date), strings[0], strings[1], strings[2], strings[3]);
+        row.setSeq(seq);
+        row.setId(seq);
+        return new Entry(seq, row, offset + LENGTH_BYTES + length);
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
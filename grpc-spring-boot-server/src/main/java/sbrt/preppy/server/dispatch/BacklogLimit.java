@@ -0,0 +1,75 @@
+package sbrt.preppy.server.dispatch;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author preppy
+ * Bound of the message queue of every stream and the counts of the slow consumer policy being applied
+ */
+public class BacklogLimit {
+    /**
+     * Queued messages of one stream after which the policy is applied, zero for no bound
+     */
+    @Getter
+    private final int maxBacklog;
+    @Getter
+    private final SlowConsumerPolicy policy;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    public BacklogLimit(int maxBacklog, SlowConsumerPolicy policy) {
+        this.maxBacklog = maxBacklog;
+        this.policy = policy;
+    }
+
+    /**
+     * Streams without a bound, as before flow control
+     */
+    public static BacklogLimit unbounded() {
+        return new BacklogLimit(0, SlowConsumerPolicy.DISCONNECT);
+    }
+
+    /**
+     * Checking whether a stream with the backlog has to apply the policy before queueing one more message
+     * @param backlog number of queued messages of the stream
+     */
+    boolean isFull(int backlog) {
+        return maxBacklog > 0 && backlog >= maxBacklog;
+    }
+
+    void recordDropped(int count) {
+        dropped.add(count);
+    }
+
+    void recordGap() {
+        gaps.increment();
+    }
+
+    void recordDisconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * Getting the number of messages dropped from full streams
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Getting the number of gap markers written to full streams
+     */
+    public long getGapCount() {
+        return gaps.sum();
+    }
+
+    /**
+     * Getting the number of streams closed for being full
+     */
+    public long getDisconnectCount() {
+        return disconnects.sum();
+    }
+}
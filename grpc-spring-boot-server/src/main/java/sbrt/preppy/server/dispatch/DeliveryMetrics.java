@@ -0,0 +1,31 @@
+package sbrt.preppy.server.dispatch;
+
+import sbrt.preppy.server.messages.Message;
+
+/**
+ * @author preppy
+ * Receiver of the publishing and delivery events of the dispatcher, e.g. for metrics.
+ * Called on the publishing and delivery threads, so it must not block.
+ */
+public interface DeliveryMetrics {
+    /**
+     * Recording nothing
+     */
+    DeliveryMetrics NONE = new DeliveryMetrics() {
+    };
+
+    /**
+     * A message was numbered and queued for its streams
+     * @param msg published message
+     */
+    default void published(Message msg) {
+    }
+
+    /**
+     * A message was written to a stream
+     * @param msg       delivered message
+     * @param lagMillis time from publishing to the write, -1 for a missed message replayed to a resuming stream
+     */
+    default void delivered(Message msg, long lagMillis) {
+    }
+}
@@ -0,0 +1,67 @@
+package sbrt.preppy.server.dispatch;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author preppy
+ * How the open streams are written to.
+ * No mode keeps a thread per connected client: a thread is only busy while it writes queued items.
+ */
+@Slf4j
+public enum ExecutionMode {
+    /**
+     * Writing on the thread that published the event (the sender's call)
+     */
+    DIRECT,
+    /**
+     * Writing on a small shared pool of platform threads
+     */
+    POOLED,
+    /**
+     * Writing on a virtual thread per drain task, falls back to POOLED on a JVM without virtual threads
+     */
+    VIRTUAL;
+
+    /**
+     * Creating the delivery executor for the mode
+     * @param poolSize number of threads of the POOLED mode
+     * @return executor running the drain tasks of the streams
+     */
+    public Executor createExecutor(int poolSize) {
+        return switch (this) {
+            case DIRECT -> Runnable::run;
+            case POOLED -> newPool(poolSize);
+            case VIRTUAL -> newVirtualExecutor(poolSize);
+        };
+    }
+
+    private static ExecutorService newPool(int poolSize) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "chat-delivery-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(poolSize, factory);
+    }
+
+    /**
+     * The server is compiled for Java 17, so the Java 21 factory method is looked up at runtime
+     */
+    private static ExecutorService newVirtualExecutor(int poolSize) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("newVirtualExecutor: virtual threads are not available, using " + poolSize + " pooled threads.");
+            return newPool(poolSize);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package sbrt.preppy.server.dispatch;
+
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.UserManager;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * @author preppy
+ * In-memory fan-out of chat messages to the open message streams.
+ * A message is published once, gets the next sequence number and is queued
+ * for every client it is visible to, so the streams never read the database.
+ * The last published messages of every conversation are kept in the recent history cache for clients resuming their stream.
+ */
+@Slf4j
+public class MessageDispatcher {
+    /**
+     * How many times a resuming stream reloads history, when the recent buffer moves on during the load
+     */
+    private static final int MAX_HISTORY_LOADS = 3;
+    /**
+     * All open message streams
+     */
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    /**
+     * Executor writing queued messages to the streams
+     */
+    private final Executor executor;
+    /**
+     * Recipient index used for routing private and room messages
+     */
+    private final UserManager userManager;
+    /**
+     * Stored messages older than the recent buffer
+     */
+    private final MessageHistory history;
+    /**
+     * The last published messages of every conversation
+     */
+    private final RecentHistoryCache recent;
+    /**
+     * Bound of the queue of every stream and the policy for clients that do not keep up
+     */
+    private final BacklogLimit backlogLimit;
+    /**
+     * Receiver of the publishing and delivery events
+     */
+    private volatile DeliveryMetrics metrics = DeliveryMetrics.NONE;
+    /**
+     * Sequence number of the last published message
+     */
+    private long sequence;
+    /**
+     * Date of the last published message in epoch milliseconds
+     */
+    private long lastDate;
+
+    public MessageDispatcher(Executor executor, UserManager userManager, RecentHistoryCache recent, MessageHistory history) {
+        this(executor, userManager, recent, history, BacklogLimit.unbounded());
+    }
+
+    public MessageDispatcher(Executor executor, UserManager userManager, RecentHistoryCache recent, MessageHistory history,
+                             BacklogLimit backlogLimit) {
+        this.executor = executor;
+        this.userManager = userManager;
+        this.history = history;
+        this.recent = recent;
+        this.backlogLimit = backlogLimit;
+        this.sequence = history.lastSeq();
+        recent.startAfter(sequence);
+    }
+
+    /**
+     * Opening a new message stream for the client
+     * @param username client's name
+     * @param sink     writing of a message to the client's stream
+     * @return subscription with the client's message queue
+     */
+    public Subscription subscribe(String username, Consumer<Message> sink) {
+        return subscribe(username, 0, sink);
+    }
+
+    /**
+     * Opening a message stream for the client, which first receives the messages it missed.
+     * Missed messages are taken from the recent history cache, older ones are loaded from the history.
+     * At most the backlog limit of them are replayed, then a gap marker tells the client to resume again
+     * after the last replayed message, so a long absence is caught up in bounded steps.
+     * @param username       client's name
+     * @param resumeAfterSeq sequence number of the last message the client has seen, 0 to receive only new messages
+     * @param sink           writing of a message to the client's stream
+     * @return subscription with the client's message queue
+     */
+    public Subscription subscribe(String username, long resumeAfterSeq, Consumer<Message> sink) {
+        Subscription subscription = new Subscription(username, executor, sink, backlogLimit, metrics);
+        subscription.setOnFailure(() -> unsubscribe(subscription));
+        List<Message> missed = new ArrayList<>();
+        List<String> rooms = userManager.getRoomsOf(username);
+        int maxReplay = backlogLimit.getMaxBacklog();
+        long covered = resumeAfterSeq;
+        for (int attempt = 0; ; attempt++) {
+            long upToSeq;
+            synchronized (this) {
+                if (attempt == 0) {
+                    // a cursor ahead of the sequence comes from before a restart of a server without stored messages
+                    covered = resumeAfterSeq <= 0 ? sequence : Math.min(resumeAfterSeq, sequence);
+                    subscription.resumeAfter(covered);
+                }
+                long evictedSeq = recent.evictedSeq(username, rooms);
+                boolean cacheCovers = covered >= evictedSeq;
+                if (attempt == 0) {
+                    recent.recordLookup(cacheCovers);
+                }
+                boolean replayFull = maxReplay > 0 && missed.size() > maxReplay;
+                if (cacheCovers || replayFull || attempt == MAX_HISTORY_LOADS) {
+                    if (!cacheCovers && !replayFull) {
+                        log.warn("subscribe: " + username + " misses messages after " + covered);
+                    }
+                    subscription.liveAfter(sequence);
+                    List<Message> replay = missed;
+                    if (!replayFull) {
+                        replay.addAll(recent.messagesAfter(username, rooms, covered));
+                    }
+                    if (maxReplay > 0 && replay.size() > maxReplay) {
+                        replay.subList(0, maxReplay).forEach(subscription::replay);
+                        subscription.replayCut(sequence);
+                        log.info("subscribe: " + username + " missed more than " + maxReplay
+                                + " messages, they are replayed in parts.");
+                    } else {
+                        replay.forEach(subscription::replay);
+                    }
+                    subscriptions.add(subscription);
+                    userManager.registerStream(username, subscription);
+                    log.info("subscribe: " + username + " opened a message stream after " + resumeAfterSeq + ".");
+                    return subscription;
+                }
+                upToSeq = evictedSeq;
+            }
+            for (Message msg : history.load(covered, upToSeq)) {
+                if (isAddressedTo(msg, username)) {
+                    missed.add(msg);
+                }
+            }
+            covered = upToSeq;
+        }
+    }
+
+    /**
+     * Closing the message stream, queued messages are discarded
+     * @param subscription stream of the client
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (subscriptions.remove(subscription)) {
+            userManager.unregisterStream(subscription.getUsername(), subscription);
+            subscription.close();
+            log.info("unsubscribe: " + subscription.getUsername() + " closed a message stream.");
+        }
+    }
+
+    /**
+     * Assigning the next sequence number to the message and queueing it for every stream it is visible to.
+     * A broadcast message goes to all streams, a private message only to the streams of the sender and the receiver,
+     * a room message only to the streams of the members of the room, so its cost does not grow with the online clients.
+     * Publishing is serialized, so all streams see messages in the same order,
+     * and the message is dated here, so dates never go back in sequence order, except for messages of other nodes.
+     * @param msg message to deliver
+     * @return sequence number of the message
+     */
+    public long publish(Message msg) {
+        return publish(msg, stored -> {});
+    }
+
+    /**
+     * Publishing the message and handing it to the storage in sequence order
+     * @param msg   message to deliver
+     * @param store called with the numbered message before it is queued for the streams
+     * @return sequence number of the message
+     */
+    public synchronized long publish(Message msg, Consumer<Message> store) {
+        lastDate = Math.max(lastDate, System.currentTimeMillis());
+        msg.setTimestamp(new Timestamp(lastDate));
+        return deliver(msg, store);
+    }
+
+    /**
+     * Publishing a message dated by another node of the cluster, the message keeps its date.
+     * Later messages of this server are dated no earlier, but the date of a message from a node with a clock behind
+     * can be older than the messages published before it.
+     * @param msg   message of another node
+     * @param store called with the numbered message before it is queued for the streams
+     * @return sequence number of the message
+     */
+    public synchronized long publishDated(Message msg, Consumer<Message> store) {
+        lastDate = Math.max(lastDate, msg.getTimestamp().getTime());
+        return deliver(msg, store);
+    }
+
+    private long deliver(Message msg, Consumer<Message> store) {
+        msg.setSeq(++sequence);
+        store.accept(msg);
+        recent.add(msg);
+        metrics.published(msg);
+        if (msg.getMessageType() == MessageType.BROADCAST) {
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(msg);
+            }
+        } else if (msg.getMessageType() == MessageType.ROOM) {
+            for (String member : userManager.getRoomMembers(msg.getReceiver())) {
+                for (Subscription subscription : userManager.getStreams(member)) {
+                    subscription.offer(msg);
+                }
+            }
+        } else {
+            String sender = msg.getSender().getName();
+            for (Subscription subscription : userManager.getStreams(sender)) {
+                subscription.offer(msg);
+            }
+            if (!sender.equals(msg.getReceiver())) {
+                for (Subscription subscription : userManager.getStreams(msg.getReceiver())) {
+                    subscription.offer(msg);
+                }
+            }
+        }
+        return msg.getSeq();
+    }
+
+    /**
+     * Publishing a batch of messages under one lock, every message is handed to the storage in sequence order
+     * @param messages messages to deliver
+     * @param store    called with every numbered message before it is queued for the streams
+     * @return sequence number of the last message, the current sequence for an empty batch
+     */
+    public synchronized long publishAll(List<Message> messages, Consumer<Message> store) {
+        for (Message msg : messages) {
+            publish(msg, store);
+        }
+        return sequence;
+    }
+
+    /**
+     * Checking whether the message is delivered to the client
+     * @param msg      published message
+     * @param username client's name
+     * @return true for broadcast messages, for private messages sent or received by the client
+     * and for messages of the rooms the client is a member of
+     */
+    private boolean isAddressedTo(Message msg, String username) {
+        return switch (msg.getMessageType()) {
+            case BROADCAST -> true;
+            case ROOM -> userManager.isRoomMember(msg.getReceiver(), username);
+            default -> username.equals(msg.getSender().getName()) || username.equals(msg.getReceiver());
+        };
+    }
+
+    /**
+     * Getting the executor writing to the streams
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Getting the recent history cache
+     */
+    public RecentHistoryCache getRecentCache() {
+        return recent;
+    }
+
+    /**
+     * Setting the receiver of the publishing and delivery events, streams opened before keep the previous one
+     * @param metrics receiver of the events
+     */
+    public void setMetrics(DeliveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Getting the bound of the stream queues with the counts of its policy
+     */
+    public BacklogLimit getBacklogLimit() {
+        return backlogLimit;
+    }
+
+    /**
+     * Getting the open message streams, e.g. to read their backlog
+     */
+    public Collection<Subscription> getSubscriptions() {
+        return Collections.unmodifiableSet(subscriptions);
+    }
+
+    /**
+     * Getting the number of open message streams
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+}
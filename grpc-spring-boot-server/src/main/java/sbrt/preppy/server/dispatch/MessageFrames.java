@@ -0,0 +1,127 @@
+package sbrt.preppy.server.dispatch;
+
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+
+/**
+ * @author preppy
+ * Encodings of a published message for the client streams.
+ * Every form is built on its first use and shared by all subscribers afterwards,
+ * so delivering a message to one more stream does not convert or encode it again,
+ * and a message delivered only to syncMessages streams is never encoded as a chat event.
+ */
+public final class MessageFrames {
+    private final Message msg;
+    /**
+     * Message of the syncMessages stream
+     */
+    private volatile ProfileDescriptorOuterClass.ChatMessage chatMessage;
+    /**
+     * Message event of the chat stream
+     */
+    private volatile ProfileDescriptorOuterClass.ServerEvent chatEvent;
+    /**
+     * Encoded chatMessage
+     */
+    private volatile OutboundFrame messageFrame;
+    /**
+     * Encoded chatEvent
+     */
+    private volatile OutboundFrame chatFrame;
+
+    public MessageFrames(Message msg) {
+        this.msg = msg;
+    }
+
+    /**
+     * Getting the encodings of the published message, created once per message
+     * @param msg published message
+     */
+    public static MessageFrames of(Message msg) {
+        return msg.getEncodings(MessageFrames.class, MessageFrames::new);
+    }
+
+    public ProfileDescriptorOuterClass.ChatMessage getChatMessage() {
+        ProfileDescriptorOuterClass.ChatMessage result = chatMessage;
+        if (result == null) {
+            synchronized (this) {
+                result = chatMessage;
+                if (result == null) {
+                    result = toChatMessage(msg).build();
+                    chatMessage = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public ProfileDescriptorOuterClass.ServerEvent getChatEvent() {
+        ProfileDescriptorOuterClass.ServerEvent result = chatEvent;
+        if (result == null) {
+            synchronized (this) {
+                result = chatEvent;
+                if (result == null) {
+                    result = ProfileDescriptorOuterClass.ServerEvent.newBuilder().setMessage(getChatMessage()).build();
+                    chatEvent = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public OutboundFrame getMessageFrame() {
+        OutboundFrame result = messageFrame;
+        if (result == null) {
+            synchronized (this) {
+                result = messageFrame;
+                if (result == null) {
+                    result = OutboundFrame.of(getChatMessage());
+                    messageFrame = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public OutboundFrame getChatFrame() {
+        OutboundFrame result = chatFrame;
+        if (result == null) {
+            synchronized (this) {
+                result = chatFrame;
+                if (result == null) {
+                    result = OutboundFrame.of(getChatEvent());
+                    chatFrame = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Building the typed message delivered to the clients
+     * @param msg published or stored message
+     * @return message builder without a storage id
+     */
+    public static ProfileDescriptorOuterClass.ChatMessage.Builder toChatMessage(Message msg) {
+        ProfileDescriptorOuterClass.ChatMessage.Builder builder = ProfileDescriptorOuterClass.ChatMessage.newBuilder()
+                .setType(toType(msg.getMessageType()))
+                .setSender(msg.getSender().getName())
+                .setText(msg.getText())
+                .setTimestamp(msg.getTimestamp().getTime())
+                .setSeq(msg.getSeq());
+        if (msg.getReceiver() != null) {
+            builder.setReceiver(msg.getReceiver());
+        }
+        return builder;
+    }
+
+    private static ProfileDescriptorOuterClass.ChatMessage.Type toType(MessageType type) {
+        return switch (type) {
+            case PRIVATE -> ProfileDescriptorOuterClass.ChatMessage.Type.PRIVATE;
+            case ROOM -> ProfileDescriptorOuterClass.ChatMessage.Type.ROOM;
+            case GAP -> ProfileDescriptorOuterClass.ChatMessage.Type.GAP;
+            default -> ProfileDescriptorOuterClass.ChatMessage.Type.BROADCAST;
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package sbrt.preppy.server.dispatch;
+
+import sbrt.preppy.server.messages.Message;
+
+import java.util.List;
+
+/**
+ * @author preppy
+ * Access to the published messages that are no longer in the dispatcher's recent buffer
+ */
+public interface MessageHistory {
+    /**
+     * History of a server without stored messages
+     */
+    MessageHistory EMPTY = new MessageHistory() {
+        @Override
+        public long lastSeq() {
+            return 0;
+        }
+
+        @Override
+        public List<Message> load(long afterSeq, long upToSeq) {
+            return List.of();
+        }
+    };
+
+    /**
+     * Getting the highest stored sequence number, the dispatcher continues numbering after it
+     * @return sequence number or 0, if nothing is stored
+     */
+    long lastSeq();
+
+    /**
+     * Loading the messages published in a range of sequence numbers
+     * @param afterSeq the range starts after this sequence number
+     * @param upToSeq  the last sequence number of the range
+     * @return messages in sequence order
+     */
+    List<Message> load(long afterSeq, long upToSeq);
+}
@@ -0,0 +1,78 @@
+package sbrt.preppy.server.dispatch;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * @author preppy
+ * A stream message already encoded for the wire.
+ * The same immutable bytes are written to every stream, the marshaller hands them to the transport
+ * without encoding the message again.
+ */
+public final class OutboundFrame {
+    /**
+     * Marshaller writing the frame bytes as they are, on the wire a frame is the encoded proto message
+     */
+    public static final MethodDescriptor.Marshaller<OutboundFrame> MARSHALLER = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(OutboundFrame frame) {
+            return new FrameStream(frame.bytes);
+        }
+
+        @Override
+        public OutboundFrame parse(InputStream stream) {
+            try {
+                return new OutboundFrame(stream.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private final byte[] bytes;
+
+    private OutboundFrame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encoding a proto message
+     * @param message message to write
+     * @return frame with the encoded message
+     */
+    public static OutboundFrame of(MessageLite message) {
+        return new OutboundFrame(message.toByteArray());
+    }
+
+    /**
+     * Getting the size of the encoded message
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Stream over the shared bytes, drained to the transport with one copy
+     */
+    private static final class FrameStream extends ByteArrayInputStream implements Drainable, KnownLength {
+        private FrameStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package sbrt.preppy.server.dispatch;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * @author preppy
+ * A server stream fed by events instead of a thread waiting in a loop.
+ * Queued items are written to the sink by a drain task on the delivery executor,
+ * at most one task per stream at a time, so the sink is never called concurrently.
+ * The drain stops while the transport is not ready for more data and goes on from onReady,
+ * so items of a slow client wait in the queue instead of the network buffers.
+ *
+ * @param <T> type of the items written to the stream
+ */
+@Slf4j
+public class OutboundStream<T> {
+    /**
+     * Items waiting to be written to the stream
+     */
+    private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Set while a drain task of this stream is scheduled or running
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /**
+     * Number of queued items
+     */
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final Executor executor;
+    private final Consumer<T> sink;
+    private volatile Runnable onFailure = () -> {};
+    /**
+     * Whether the transport accepts more data, e.g. ServerCallStreamObserver::isReady
+     */
+    private volatile BooleanSupplier ready = () -> true;
+    private volatile boolean closed;
+
+    public OutboundStream(Executor executor, Consumer<T> sink) {
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    /**
+     * Setting the action called once, when writing to the stream fails
+     * @param onFailure action, usually removing the stream from its owner
+     */
+    public void setOnFailure(Runnable onFailure) {
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Setting the check of the transport, the stream is only written while it returns true
+     * @param ready flow control state of the transport
+     */
+    public void setReady(BooleanSupplier ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * Resuming the delivery when the transport became ready again, e.g. from the onReady handler of the call
+     */
+    public void onReady() {
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Queueing an item and scheduling the delivery, if it is not already running
+     * @param item item to write
+     */
+    public void offer(T item) {
+        if (closed) {
+            return;
+        }
+        queue.offer(item);
+        backlog.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * Discarding the queued items and queueing one item instead,
+     * e.g. a fresh snapshot for a stream that fell behind
+     * @param item item to write
+     */
+    public void replaceQueued(T item) {
+        while (queue.poll() != null) {
+            backlog.decrementAndGet();
+        }
+        offer(item);
+    }
+
+    /**
+     * Removing the oldest queued item without writing it
+     * @return the item or null, if nothing is queued
+     */
+    protected T pollOldest() {
+        T item = queue.poll();
+        if (item != null) {
+            backlog.decrementAndGet();
+        }
+        return item;
+    }
+
+    /**
+     * Removing the oldest queued item the filter accepts without writing it, the items before it stay in front
+     * @param filter items that may be removed
+     * @return the item or null, if no queued item is accepted
+     */
+    protected T removeOldest(Predicate<T> filter) {
+        for (Iterator<T> it = queue.iterator(); it.hasNext(); ) {
+            T item = it.next();
+            if (filter.test(item)) {
+                it.remove();
+                backlog.decrementAndGet();
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Getting the number of items waiting to be written
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            T item;
+            while (!closed && ready.getAsBoolean() && (item = pollOldest()) != null) {
+                if (beforeWrite(item)) {
+                    sink.accept(item);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.info("drain: stream is closed: " + e.getMessage());
+            fail();
+        } finally {
+            draining.set(false);
+        }
+        // checked again after the flag is cleared, so an onReady that found the drain still running is not lost
+        if (!closed && !queue.isEmpty() && ready.getAsBoolean()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Closing the stream and calling the failure action
+     */
+    protected void fail() {
+        close();
+        onFailure.run();
+    }
+
+    /**
+     * Hook called on the delivery thread right before the item is written
+     * @param item item to write
+     * @return false to skip the item
+     */
+    protected boolean beforeWrite(T item) {
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closing the stream, queued items are discarded
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+        backlog.set(0);
+    }
+}
@@ -0,0 +1,332 @@
+package sbrt.preppy.server.dispatch;
+
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @author preppy
+ * The last published messages of the broadcast channel and of every active private conversation and room.
+ * A conversation keeps at most its size of messages, a private conversation or room not used for the idle timeout
+ * or the least recently used one above maxConversations is dropped.
+ * For every conversation the cache remembers the sequence number of the last message it dropped,
+ * so a reader knows whether the cache holds everything after its cursor or the store has to be asked.
+ */
+public class RecentHistoryCache {
+    private final int broadcastSize;
+    private final int conversationSize;
+    private final int maxConversations;
+    private final long idleMillis;
+    private final LongSupplier clock;
+    private final Conversation broadcast = new Conversation(0);
+    /**
+     * Private conversations and rooms in access order, the eldest one is evicted first
+     */
+    private final LinkedHashMap<ConversationKey, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Private conversations of every client
+     */
+    private final Map<String, Set<Pair>> byUser = new HashMap<>();
+    /**
+     * The highest sequence number of a message dropped with a whole private conversation or room
+     */
+    private long evictedConversationSeq;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Key of a cached conversation other than the broadcast channel
+     */
+    sealed interface ConversationKey permits Pair, Room {
+    }
+
+    /**
+     * Participants of a private conversation in name order, so both directions share one conversation
+     */
+    record Pair(String first, String second) implements ConversationKey {
+        static Pair of(String user, String peer) {
+            return user.compareTo(peer) <= 0 ? new Pair(user, peer) : new Pair(peer, user);
+        }
+    }
+
+    /**
+     * A chat room, its members are only known to the caller
+     */
+    record Room(String name) implements ConversationKey {
+    }
+
+    private static final class Conversation {
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+        /**
+         * Sequence number of the last dropped message, messages of the conversation up to it are only in the store
+         */
+        private long evictedSeq;
+        private long lastAccess;
+
+        private Conversation(long evictedSeq) {
+            this.evictedSeq = evictedSeq;
+        }
+
+        private long lastSeq() {
+            return messages.isEmpty() ? evictedSeq : messages.peekLast().getSeq();
+        }
+    }
+
+    /**
+     * @param broadcastSize    number of last broadcast messages kept
+     * @param conversationSize number of last messages kept for a private conversation or room
+     * @param maxConversations number of private conversations and rooms kept
+     * @param idleTimeout      a private conversation or room not written or read for this time is dropped
+     */
+    public RecentHistoryCache(int broadcastSize, int conversationSize, int maxConversations, Duration idleTimeout) {
+        this(broadcastSize, conversationSize, maxConversations, idleTimeout, System::currentTimeMillis);
+    }
+
+    RecentHistoryCache(int broadcastSize, int conversationSize, int maxConversations, Duration idleTimeout, LongSupplier clock) {
+        this.broadcastSize = broadcastSize;
+        this.conversationSize = conversationSize;
+        this.maxConversations = maxConversations;
+        this.idleMillis = idleTimeout.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Marking the messages stored before the start as not cached
+     * @param seq sequence number of the last stored message
+     */
+    synchronized void startAfter(long seq) {
+        broadcast.evictedSeq = Math.max(broadcast.evictedSeq, seq);
+        evictedConversationSeq = Math.max(evictedConversationSeq, seq);
+    }
+
+    /**
+     * Adding a published message to its conversation, called in sequence order
+     * @param msg numbered message
+     */
+    synchronized void add(Message msg) {
+        long now = clock.getAsLong();
+        Conversation conversation;
+        int size;
+        if (msg.getMessageType() == MessageType.BROADCAST) {
+            conversation = broadcast;
+            size = broadcastSize;
+        } else if (msg.getMessageType() == MessageType.ROOM) {
+            Room room = new Room(msg.getReceiver());
+            conversation = conversations.get(room);
+            if (conversation == null) {
+                conversation = new Conversation(evictedConversationSeq);
+                conversations.put(room, conversation);
+            }
+            size = conversationSize;
+        } else {
+            String sender = msg.getSender().getName();
+            Pair pair = Pair.of(sender, msg.getReceiver());
+            conversation = conversations.get(pair);
+            if (conversation == null) {
+                // the conversation may have been dropped before, so it is only complete after the dropped messages
+                conversation = new Conversation(evictedConversationSeq);
+                conversations.put(pair, conversation);
+                byUser.computeIfAbsent(pair.first(), name -> new HashSet<>()).add(pair);
+                byUser.computeIfAbsent(pair.second(), name -> new HashSet<>()).add(pair);
+            }
+            size = conversationSize;
+        }
+        conversation.lastAccess = now;
+        conversation.messages.addLast(msg);
+        while (conversation.messages.size() > size) {
+            conversation.evictedSeq = conversation.messages.pollFirst().getSeq();
+            evictions.increment();
+        }
+        evictConversations(now);
+    }
+
+    /**
+     * Dropping the least recently used private conversations and rooms while they are idle or above maxConversations
+     */
+    private void evictConversations(long now) {
+        Iterator<Map.Entry<ConversationKey, Conversation>> eldest = conversations.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Map.Entry<ConversationKey, Conversation> entry = eldest.next();
+            Conversation conversation = entry.getValue();
+            if (conversations.size() <= maxConversations && now - conversation.lastAccess < idleMillis) {
+                return;
+            }
+            eldest.remove();
+            evictedConversationSeq = Math.max(evictedConversationSeq, conversation.lastSeq());
+            evictions.add(conversation.messages.size());
+            if (entry.getKey() instanceof Pair pair) {
+                removeFromUser(pair.first(), pair);
+                removeFromUser(pair.second(), pair);
+            }
+        }
+    }
+
+    private void removeFromUser(String username, Pair pair) {
+        Set<Pair> pairs = byUser.get(username);
+        if (pairs != null && pairs.remove(pair) && pairs.isEmpty()) {
+            byUser.remove(username);
+        }
+    }
+
+    /**
+     * Getting the cursor after which the cache holds every message visible to the client
+     * @param username client's name
+     * @param rooms    rooms the client is a member of
+     * @return the highest sequence number of a dropped message the client could see
+     */
+    synchronized long evictedSeq(String username, Collection<String> rooms) {
+        long seq = Math.max(broadcast.evictedSeq, evictedConversationSeq);
+        for (Pair pair : byUser.getOrDefault(username, Set.of())) {
+            seq = Math.max(seq, conversations.get(pair).evictedSeq);
+        }
+        for (String room : rooms) {
+            Conversation conversation = conversations.get(new Room(room));
+            if (conversation != null) {
+                seq = Math.max(seq, conversation.evictedSeq);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Getting the cached messages visible to the client after the cursor
+     * @param username client's name
+     * @param rooms    rooms the client is a member of
+     * @param afterSeq cursor of the client
+     * @return broadcast messages, the client's private messages and the messages of its rooms in sequence order
+     */
+    synchronized List<Message> messagesAfter(String username, Collection<String> rooms, long afterSeq) {
+        long now = clock.getAsLong();
+        List<Message> messages = new ArrayList<>();
+        addAfter(broadcast, afterSeq, messages);
+        for (Pair pair : byUser.getOrDefault(username, Set.of())) {
+            Conversation conversation = conversations.get(pair);
+            conversation.lastAccess = now;
+            addAfter(conversation, afterSeq, messages);
+        }
+        for (String room : rooms) {
+            Conversation conversation = conversations.get(new Room(room));
+            if (conversation != null) {
+                conversation.lastAccess = now;
+                addAfter(conversation, afterSeq, messages);
+            }
+        }
+        messages.sort(Comparator.comparingLong(Message::getSeq));
+        return messages;
+    }
+
+    private static void addAfter(Conversation conversation, long afterSeq, List<Message> messages) {
+        Iterator<Message> newest = conversation.messages.descendingIterator();
+        while (newest.hasNext()) {
+            Message msg = newest.next();
+            if (msg.getSeq() <= afterSeq) {
+                return;
+            }
+            messages.add(msg);
+        }
+    }
+
+    /**
+     * Getting a page of the conversation from the cache, paged in sequence order like the store,
+     * so the sequence number of the oldest message of a cached page continues in the store without a gap.
+     * @param user       the requesting client
+     * @param peer       other side of a private conversation, empty for the broadcast channel
+     * @param beforeDate the page contains messages older than this date, in epoch milliseconds
+     * @param beforeSeq  the page contains messages with a lower sequence number
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest or null, if the page may contain messages only in the store
+     */
+    public synchronized List<Message> page(String user, String peer, long beforeDate, long beforeSeq, int limit) {
+        return page(peer.isEmpty() ? broadcast : conversations.get(Pair.of(user, peer)), beforeDate, beforeSeq, limit);
+    }
+
+    /**
+     * Getting a page of the room from the cache, paged like a conversation
+     * @param room       name of the room
+     * @param beforeDate the page contains messages older than this date, in epoch milliseconds
+     * @param beforeSeq  the page contains messages with a lower sequence number
+     * @param limit      maximum number of messages
+     * @return messages from the newest to the oldest or null, if the page may contain messages only in the store
+     */
+    public synchronized List<Message> roomPage(String room, long beforeDate, long beforeSeq, int limit) {
+        return page(conversations.get(new Room(room)), beforeDate, beforeSeq, limit);
+    }
+
+    private List<Message> page(Conversation conversation, long beforeDate, long beforeSeq, int limit) {
+        if (conversation == null) {
+            return evictedConversationSeq == 0 ? hit(List.of()) : miss();
+        }
+        conversation.lastAccess = clock.getAsLong();
+        List<Message> page = new ArrayList<>(limit);
+        Iterator<Message> newest = conversation.messages.descendingIterator();
+        while (newest.hasNext() && page.size() < limit) {
+            Message msg = newest.next();
+            if (msg.getSeq() < beforeSeq && msg.getTimestamp().getTime() < beforeDate) {
+                page.add(msg);
+            }
+        }
+        // a page short of the limit holds the whole rest of the conversation, unless older messages were dropped
+        return page.size() == limit || conversation.evictedSeq == 0 ? hit(page) : miss();
+    }
+
+    private List<Message> hit(List<Message> messages) {
+        hits.increment();
+        return messages;
+    }
+
+    private List<Message> miss() {
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Counting a lookup of the dispatcher
+     * @param hit true, when the cache held every message the client missed
+     */
+    void recordLookup(boolean hit) {
+        (hit ? hits : misses).increment();
+    }
+
+    /**
+     * Getting the number of reads served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Getting the number of reads that had to go to the store
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Getting the number of messages dropped from the cache
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Getting the number of cached private conversations and rooms
+     */
+    public synchronized int getConversationCount() {
+        return conversations.size();
+    }
+}
@@ -0,0 +1,20 @@
+package sbrt.preppy.server.dispatch;
+
+/**
+ * @author preppy
+ * What happens to a message stream whose backlog is full, because the client reads slower than messages are published
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The oldest queued message is dropped, the client does not learn about it
+     */
+    DROP_OLDEST,
+    /**
+     * All queued messages are replaced by a gap marker, the client resumes its stream after its last message to get them
+     */
+    GAP_MARKER,
+    /**
+     * The stream is closed with RESOURCE_EXHAUSTED, the client reconnects and resumes
+     */
+    DISCONNECT
+}
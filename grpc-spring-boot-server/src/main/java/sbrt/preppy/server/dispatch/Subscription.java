@@ -0,0 +1,213 @@
+package sbrt.preppy.server.dispatch;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A single open message stream of a client.
+ * Every published message addressed to the client is queued here in sequence order
+ * and written to the client by the delivery executor, so no thread waits for new messages.
+ * The queue is bounded by the backlog limit, a client that does not keep up is handled by its slow consumer policy.
+ * Missed messages replayed to a resuming stream do not count against the limit and are never dropped by the policy,
+ * the dispatcher replays at most the backlog limit of them, so a resume always makes progress.
+ */
+@Slf4j
+public class Subscription extends OutboundStream<Message> {
+    /**
+     * Name of the client owning the stream
+     */
+    @Getter
+    private final String username;
+    /**
+     * Sequence number of the last message handed to the client
+     */
+    @Getter
+    private volatile long lastSeq;
+    /**
+     * Bound of the queue and the policy applied when it is full
+     */
+    private final BacklogLimit limit;
+    /**
+     * Action ending the client's call, when the stream is closed for being full
+     */
+    @Setter
+    private volatile Runnable onOverflow = () -> {};
+    /**
+     * The largest number of queued messages of the stream
+     */
+    @Getter
+    private volatile int peakBacklog;
+    /**
+     * Number of messages of the stream dropped by the policy
+     */
+    @Getter
+    private volatile long dropped;
+    private final DeliveryMetrics metrics;
+    /**
+     * Messages up to this sequence number were published before the stream opened, their delivery lag is not recorded
+     */
+    private volatile long liveAfterSeq;
+    /**
+     * Sequence number of the last replayed message
+     */
+    private volatile long replayedUpToSeq;
+    /**
+     * Replayed messages still queued
+     */
+    private final AtomicInteger replayBacklog = new AtomicInteger();
+
+    Subscription(String username, Executor executor, Consumer<Message> sink) {
+        this(username, executor, sink, BacklogLimit.unbounded(), DeliveryMetrics.NONE);
+    }
+
+    Subscription(String username, Executor executor, Consumer<Message> sink, BacklogLimit limit, DeliveryMetrics metrics) {
+        super(executor, sink);
+        this.username = username;
+        this.limit = limit;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Setting the cursor of a resumed stream, messages up to it are not written again
+     * @param seq sequence number of the last message the client has seen
+     */
+    void resumeAfter(long seq) {
+        lastSeq = seq;
+    }
+
+    /**
+     * Marking the messages published before the stream was registered as replayed
+     * @param seq sequence number of the last message published before the stream
+     */
+    void liveAfter(long seq) {
+        liveAfterSeq = seq;
+    }
+
+    /**
+     * Queueing a published message, the slow consumer policy is applied first when the queue is full.
+     * Called by the dispatcher under its lock, so offers of one stream never overlap.
+     * @param msg published message
+     */
+    @Override
+    public void offer(Message msg) {
+        if (limit.isFull(getBacklog() - replayBacklog.get()) && !isClosed()) {
+            overflow();
+        }
+        queue(msg);
+    }
+
+    /**
+     * Queueing a missed message of a resuming stream, replayed messages are not bounded by the backlog limit
+     * @param msg published message, replayed in sequence order before the stream is registered
+     */
+    void replay(Message msg) {
+        replayedUpToSeq = msg.getSeq();
+        replayBacklog.incrementAndGet();
+        queue(msg);
+    }
+
+    /**
+     * Ending a replay cut at the backlog limit with a gap marker,
+     * the client resumes again after the last replayed message to receive the rest
+     * @param seq sequence number of the last published message
+     */
+    void replayCut(long seq) {
+        queue(gapMarker(seq));
+    }
+
+    private void queue(Message msg) {
+        super.offer(msg);
+        peakBacklog = Math.max(peakBacklog, getBacklog());
+    }
+
+    private boolean isReplayed(Message msg) {
+        return msg.getSeq() <= replayedUpToSeq && msg.getMessageType() != MessageType.GAP;
+    }
+
+    /**
+     * Taking the oldest queued message, exclusive with the overflow, so the replayed messages it queues again
+     * are never overtaken by a message the drain takes meanwhile
+     */
+    @Override
+    protected synchronized Message pollOldest() {
+        Message msg = super.pollOldest();
+        if (msg != null && isReplayed(msg)) {
+            replayBacklog.decrementAndGet();
+        }
+        return msg;
+    }
+
+    private synchronized void overflow() {
+        switch (limit.getPolicy()) {
+            case DROP_OLDEST -> {
+                // the replayed messages and the gap markers stay, the oldest live message makes room
+                if (removeOldest(queued -> !isReplayed(queued) && queued.getMessageType() != MessageType.GAP) != null) {
+                    drop(1);
+                }
+            }
+            case GAP_MARKER -> {
+                long gapSeq = 0;
+                int count = 0;
+                List<Message> replayed = new ArrayList<>();
+                Message queued;
+                while ((queued = pollOldest()) != null) {
+                    if (isReplayed(queued)) {
+                        // the replayed messages precede all live ones, they stay in front of the marker
+                        replayed.add(queued);
+                        continue;
+                    }
+                    gapSeq = Math.max(gapSeq, queued.getSeq());
+                    if (queued.getMessageType() != MessageType.GAP) {
+                        count++;
+                    }
+                }
+                drop(count);
+                limit.recordGap();
+                replayed.forEach(this::replay);
+                super.offer(gapMarker(gapSeq));
+            }
+            case DISCONNECT -> {
+                log.warn("overflow: stream of " + username + " is closed with " + getBacklog() + " unread messages.");
+                limit.recordDisconnect();
+                fail();
+                onOverflow.run();
+            }
+        }
+    }
+
+    private void drop(int count) {
+        dropped += count;
+        limit.recordDropped(count);
+    }
+
+    /**
+     * Marker telling the client that the messages after its last one up to seq were dropped
+     */
+    private static Message gapMarker(long seq) {
+        Message marker = new Message(new User("Server"), MessageType.GAP, "");
+        marker.setSeq(seq);
+        return marker;
+    }
+
+    @Override
+    protected boolean beforeWrite(Message msg) {
+        if (msg.getSeq() <= lastSeq) {
+            return false;
+        }
+        lastSeq = msg.getSeq();
+        if (msg.getMessageType() != MessageType.GAP) {
+            metrics.delivered(msg, msg.getSeq() > liveAfterSeq ? System.currentTimeMillis() - msg.getTimestamp().getTime() : -1);
+        }
+        return true;
+    }
+}
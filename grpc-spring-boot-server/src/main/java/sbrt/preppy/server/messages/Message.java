@@ -1,5 +1,6 @@
 package sbrt.preppy.server.messages;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import sbrt.preppy.server.users.User;
@@ -7,6 +8,7 @@ import sbrt.preppy.server.users.User;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.Objects;
+import java.util.function.Function;
 
 /**
  * The simplest message model used in a chat
@@ -15,15 +17,21 @@ import java.util.Objects;
 @Setter
 public class Message {
 
-    public static final String PRIVATE_MESSAGE_ID = "PRIVATE";
-    public static final String PUBLIC_MESSAGE_ID = "PUBLIC";
-    public static final String MESSAGE_TYPE_REGEX = ": ";
-
     private User sender;
     private  MessageType messageType;
     private  String text;
     private String receiver;
     private  Timestamp timestamp;
+    /**
+     * Sequence number assigned when the message is published
+     */
+    private long seq;
+    /**
+     * Encodings of the published message kept by the delivery layer, created on the first delivery
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile Object encodings;
 
     public Message() {}
     public Message(User sender, MessageType messageType, String text) {
@@ -40,12 +48,23 @@ public class Message {
         this.timestamp = new Timestamp(new Date().getTime());
     }
 
-    public String getContent() {
-        return switch (messageType) {
-            case BROADCAST -> PUBLIC_MESSAGE_ID + MESSAGE_TYPE_REGEX + sender.getName() + MESSAGE_TYPE_REGEX + text;
-            case PRIVATE -> PRIVATE_MESSAGE_ID + MESSAGE_TYPE_REGEX + sender.getName() + MESSAGE_TYPE_REGEX + text;
-            default -> text;
-        };
+    /**
+     * Getting the encodings of the message kept by the delivery layer, they are created only once
+     * @param type    class of the encodings
+     * @param factory creating the encodings of the message on the first call
+     */
+    public <T> T getEncodings(Class<T> type, Function<Message, T> factory) {
+        Object result = encodings;
+        if (result == null) {
+            synchronized (this) {
+                result = encodings;
+                if (result == null) {
+                    result = factory.apply(this);
+                    encodings = result;
+                }
+            }
+        }
+        return type.cast(result);
     }
 
 
@@ -56,6 +75,7 @@ public class Message {
                 ", messageType=" + messageType +
                 ", receiver=" + receiver +
                 ", timestamp=" + timestamp +
+                ", seq=" + seq +
                 ", text=" + text +
                 '}';
     }
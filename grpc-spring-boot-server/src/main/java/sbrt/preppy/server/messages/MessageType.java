@@ -1,5 +1,13 @@
 package sbrt.preppy.server.messages;
 
 public enum MessageType {
-    PRIVATE, BROADCAST
+    PRIVATE, BROADCAST,
+    /**
+     * A message of a chat room, the receiver is the name of the room
+     */
+    ROOM,
+    /**
+     * A marker written to a slow stream in place of the messages dropped from it, never published or stored
+     */
+    GAP
 }
@@ -0,0 +1,147 @@
+package sbrt.preppy.server.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import sbrt.preppy.server.database.MessageWriteBehind;
+import sbrt.preppy.server.dispatch.BacklogLimit;
+import sbrt.preppy.server.dispatch.DeliveryMetrics;
+import sbrt.preppy.server.dispatch.MessageDispatcher;
+import sbrt.preppy.server.dispatch.RecentHistoryCache;
+import sbrt.preppy.server.dispatch.Subscription;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.PresenceFeed;
+import sbrt.preppy.server.users.UserManager;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author preppy
+ * Metrics of the chat in the meter registry, scraped from the actuator prometheus endpoint.
+ * Gauges and counters read the statistics the components keep anyway, only the delivery lag is timed here,
+ * the store writes are timed by the writer created in PersistenceConfiguration.
+ * The latency of every RPC is recorded by the grpc.server.processing.duration timer of the gRPC server starter.
+ */
+public class ChatMetrics implements DeliveryMetrics {
+    private final MeterRegistry registry;
+    private final Map<MessageType, Counter> published = new EnumMap<>(MessageType.class);
+    private final Map<MessageType, Counter> delivered = new EnumMap<>(MessageType.class);
+    /**
+     * Time from publishing a message to writing it to a stream
+     */
+    private final Timer deliveryLag;
+
+    public ChatMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (MessageType type : EnumSet.of(MessageType.BROADCAST, MessageType.PRIVATE, MessageType.ROOM)) {
+            published.put(type, Counter.builder("chat.messages.published")
+                    .description("Messages numbered and queued for their streams")
+                    .tag("type", type.name()).register(registry));
+            delivered.put(type, Counter.builder("chat.messages.delivered")
+                    .description("Messages written to the client streams")
+                    .tag("type", type.name()).register(registry));
+        }
+        deliveryLag = Timer.builder("chat.delivery.lag")
+                .description("Time from publishing a message to writing it to a client stream")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    public void published(Message msg) {
+        published.get(msg.getMessageType()).increment();
+    }
+
+    @Override
+    public void delivered(Message msg, long lagMillis) {
+        delivered.get(msg.getMessageType()).increment();
+        if (lagMillis >= 0) {
+            deliveryLag.record(lagMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishing the online clients and the rooms
+     */
+    public void bindUsers(UserManager userManager) {
+        Gauge.builder("chat.users.online", userManager, UserManager::getOnlineCount)
+                .description("Clients online on the whole cluster").register(registry);
+        Gauge.builder("chat.users.local", userManager, users -> users.getLocalUsers().size())
+                .description("Clients connected to this server").register(registry);
+        Gauge.builder("chat.rooms", userManager, UserManager::getRoomCount)
+                .description("Chat rooms with at least one member").register(registry);
+    }
+
+    /**
+     * Publishing the open message streams, their backlog and the recent history cache
+     */
+    public void bindDispatcher(MessageDispatcher dispatcher) {
+        Gauge.builder("chat.streams.open", dispatcher, MessageDispatcher::getSubscriberCount)
+                .description("Open message streams").register(registry);
+        Gauge.builder("chat.streams.backlog", dispatcher, ChatMetrics::maxBacklog).tag("statistic", "max")
+                .description("Messages queued for the slowest stream").register(registry);
+        Gauge.builder("chat.streams.backlog", dispatcher, ChatMetrics::totalBacklog).tag("statistic", "total")
+                .description("Messages queued for all streams").register(registry);
+        BacklogLimit limit = dispatcher.getBacklogLimit();
+        FunctionCounter.builder("chat.streams.dropped", limit, BacklogLimit::getDroppedCount)
+                .description("Messages dropped from full streams").register(registry);
+        FunctionCounter.builder("chat.streams.gaps", limit, BacklogLimit::getGapCount)
+                .description("Gap markers written to full streams").register(registry);
+        FunctionCounter.builder("chat.streams.disconnects", limit, BacklogLimit::getDisconnectCount)
+                .description("Streams closed for being full").register(registry);
+        RecentHistoryCache recent = dispatcher.getRecentCache();
+        FunctionCounter.builder("chat.cache.hits", recent, RecentHistoryCache::getHits)
+                .description("Reads served from the recent history cache").register(registry);
+        FunctionCounter.builder("chat.cache.misses", recent, RecentHistoryCache::getMisses)
+                .description("Reads of the recent history cache that went to the store").register(registry);
+        FunctionCounter.builder("chat.cache.evictions", recent, RecentHistoryCache::getEvictions)
+                .description("Messages dropped from the recent history cache").register(registry);
+    }
+
+    private static double maxBacklog(MessageDispatcher dispatcher) {
+        int max = 0;
+        for (Subscription subscription : dispatcher.getSubscriptions()) {
+            max = Math.max(max, subscription.getBacklog());
+        }
+        return max;
+    }
+
+    private static double totalBacklog(MessageDispatcher dispatcher) {
+        long total = 0;
+        for (Subscription subscription : dispatcher.getSubscriptions()) {
+            total += subscription.getBacklog();
+        }
+        return total;
+    }
+
+    /**
+     * Publishing the open presence streams
+     */
+    public void bindPresence(PresenceFeed presence) {
+        Gauge.builder("chat.streams.presence", presence, PresenceFeed::getStreamCount)
+                .description("Open presence streams").register(registry);
+    }
+
+    /**
+     * Publishing the state of the write-behind writer
+     */
+    public void bindWriter(MessageWriteBehind writer) {
+        Gauge.builder("chat.store.pending", writer, MessageWriteBehind::getPendingCount)
+                .description("Messages accepted and not stored yet").register(registry);
+        Gauge.builder("chat.store.flush.lag", writer, MessageWriteBehind::getLastFlushLagMillis)
+                .description("Time between accepting the oldest message of the last batch and storing it")
+                .baseUnit("milliseconds").register(registry);
+        FunctionCounter.builder("chat.store.rows", writer, MessageWriteBehind::getFlushedRows)
+                .description("Stored messages").register(registry);
+        FunctionCounter.builder("chat.store.failed", writer, MessageWriteBehind::getFailedRows)
+                .description("Messages of failed store attempts, the batch is retried").register(registry);
+        FunctionCounter.builder("chat.store.lost", writer, MessageWriteBehind::getLostRows)
+                .description("Messages given up after the writer was closed").register(registry);
+    }
+}
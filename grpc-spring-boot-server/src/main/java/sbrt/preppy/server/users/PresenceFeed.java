@@ -0,0 +1,252 @@
+package sbrt.preppy.server.users;
+
+import lombok.extern.slf4j.Slf4j;
+import sbrt.preppy.ProfileDescriptorOuterClass.PresenceEvent;
+import sbrt.preppy.server.dispatch.OutboundStream;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @author preppy
+ * Versioned stream of the online user list.
+ * A new stream gets one snapshot of the online users, then only JOINED and LEFT deltas,
+ * every delta increments the version. A stream with more than maxLag queued events
+ * has them replaced by a fresh snapshot, so a slow client never holds an unbounded backlog.
+ * With a tick, changes are collected and published once per tick as at most one JOINED and one LEFT delta,
+ * a client connecting and disconnecting within one tick is not published at all.
+ * The tick thread is stopped by close.
+ */
+@Slf4j
+public class PresenceFeed implements AutoCloseable {
+    /**
+     * Online users in joining order
+     */
+    private final Set<String> online = new LinkedHashSet<>();
+    /**
+     * Online users as already published to the streams
+     */
+    private final Set<String> published = new LinkedHashSet<>();
+    /**
+     * Users who connected or disconnected since the last tick
+     */
+    private final Set<String> changed = new LinkedHashSet<>();
+    /**
+     * Open presence streams
+     */
+    private final Set<OutboundStream<PresenceEvent>> streams = ConcurrentHashMap.newKeySet();
+    private final Executor executor;
+    private final int maxLag;
+    /**
+     * Publishing every change at once instead of once per tick
+     */
+    private final boolean immediate;
+    /**
+     * Thread publishing the changes once per tick, null when every change is published at once
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Version of the online user list, incremented by every delta
+     */
+    private long version;
+    /**
+     * Called after every published change, outside the lock of the feed
+     */
+    private volatile PresenceListener listener = (joined, left) -> {};
+
+    /**
+     * Users who joined and left in one published change
+     */
+    @FunctionalInterface
+    public interface PresenceListener {
+        void changed(List<String> joined, List<String> left);
+    }
+
+    /**
+     * Creating a feed publishing every change at once
+     * @param executor executor writing to the streams
+     * @param maxLag   number of queued events after which a stream gets a snapshot instead
+     */
+    public PresenceFeed(Executor executor, int maxLag) {
+        this(executor, maxLag, Duration.ZERO);
+    }
+
+    /**
+     * Creating a feed publishing the collected changes once per tick
+     * @param executor executor writing to the streams
+     * @param maxLag   number of queued events after which a stream gets a snapshot instead
+     * @param tick     publishing interval, zero to publish every change at once
+     */
+    public PresenceFeed(Executor executor, int maxLag, Duration tick) {
+        this.executor = executor;
+        this.maxLag = maxLag;
+        if (!tick.isZero()) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "chat-presence-tick");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::flush, tick.toMillis(), tick.toMillis(), TimeUnit.MILLISECONDS);
+            this.immediate = false;
+        } else {
+            this.scheduler = null;
+            this.immediate = true;
+        }
+    }
+
+    /**
+     * Stopping the tick thread, changes collected since the last tick are not published
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Setting the action called with the users of every published change
+     * @param listener action, e.g. announcing the change in the chat
+     */
+    public void setListener(PresenceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Opening a presence stream, which starts with a snapshot of the online users
+     * @param sink writing of an event to the client's stream
+     * @return stream of the client
+     */
+    public synchronized OutboundStream<PresenceEvent> subscribe(Consumer<PresenceEvent> sink) {
+        OutboundStream<PresenceEvent> stream = new OutboundStream<>(executor, sink);
+        stream.setOnFailure(() -> unsubscribe(stream));
+        stream.offer(snapshot());
+        streams.add(stream);
+        return stream;
+    }
+
+    /**
+     * Closing the presence stream
+     * @param stream stream of the client
+     */
+    public void unsubscribe(OutboundStream<PresenceEvent> stream) {
+        streams.remove(stream);
+        stream.close();
+    }
+
+    /**
+     * Recording a connected client
+     * @param username client's name
+     */
+    public void joined(String username) {
+        synchronized (this) {
+            if (!online.add(username)) {
+                return;
+            }
+            changed.add(username);
+        }
+        if (immediate) {
+            flush();
+        }
+    }
+
+    /**
+     * Recording a disconnected client
+     * @param username client's name
+     */
+    public void left(String username) {
+        synchronized (this) {
+            if (!online.remove(username)) {
+                return;
+            }
+            changed.add(username);
+        }
+        if (immediate) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishing the changes since the last tick: one JOINED and one LEFT delta at most
+     */
+    public void flush() {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        synchronized (this) {
+            if (changed.isEmpty()) {
+                return;
+            }
+            for (String username : changed) {
+                if (online.contains(username)) {
+                    if (published.add(username)) {
+                        joined.add(username);
+                    }
+                } else if (published.remove(username)) {
+                    left.add(username);
+                }
+            }
+            changed.clear();
+            if (!joined.isEmpty()) {
+                publish(PresenceEvent.Kind.JOINED, joined);
+            }
+            if (!left.isEmpty()) {
+                publish(PresenceEvent.Kind.LEFT, left);
+            }
+        }
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            try {
+                listener.changed(joined, left);
+            } catch (RuntimeException e) {
+                log.warn("flush: presence listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void publish(PresenceEvent.Kind kind, List<String> users) {
+        PresenceEvent delta = PresenceEvent.newBuilder().setKind(kind).setVersion(++version).addAllUsers(users).build();
+        PresenceEvent snapshot = null;
+        for (OutboundStream<PresenceEvent> stream : streams) {
+            if (stream.getBacklog() < maxLag) {
+                stream.offer(delta);
+            } else {
+                if (snapshot == null) {
+                    snapshot = snapshot();
+                }
+                stream.replaceQueued(snapshot);
+                log.info("publish: a presence stream fell behind, sending a snapshot of version " + version + ".");
+            }
+        }
+    }
+
+    private PresenceEvent snapshot() {
+        return PresenceEvent.newBuilder().setKind(PresenceEvent.Kind.SNAPSHOT).setVersion(version).addAllUsers(published).build();
+    }
+
+    /**
+     * Getting the version of the online user list
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Getting the number of open presence streams
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+}
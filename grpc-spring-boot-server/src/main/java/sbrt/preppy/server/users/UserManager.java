@@ -3,6 +3,7 @@ package sbrt.preppy.server.users;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.dispatch.Subscription;
 import sbrt.preppy.server.exception.DuplicateUsernameException;
 import sbrt.preppy.server.exception.UserNotFoundException;
 import sbrt.preppy.server.messages.Message;
@@ -21,6 +22,18 @@ public class UserManager {
      * A field for storing all online server clients
      */
     private final Map<String, User> onlineUsers;
+    /**
+     * Recipient index: open message streams of every client by name
+     */
+    private final Map<String, Set<Subscription>> streams = new ConcurrentHashMap<>();
+    /**
+     * Clients connected to other nodes of the cluster and the id of their node
+     */
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    /**
+     * Members of every chat room of this server, a room exists while it has members
+     */
+    private final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
 
     /**
      * A constructor that creates a map for clients.
@@ -33,27 +46,29 @@ public class UserManager {
     }
 
     /**
-     * Checking the name for repetition, if the name is not repeated, then recording a new client name
+     * Checking the name for repetition, if the name is not repeated, then recording a new client name.
+     * The check and the record are one step, so two clients of the same name, local or of another node, never both connect
      * @param username client's name
      * @throws DuplicateUsernameException when trying to connect with a duplicate name
      */
     public void connectUser(String username) throws DuplicateUsernameException {
-        if (onlineUsers.containsKey(username)) {
+        if (onlineUsers.putIfAbsent(username, new User(username)) != null) {
             throw new DuplicateUsernameException(username);
-        } else {
-            onlineUsers.put(username, new User(username));
         }
     }
 
     /**
      * Checking the content of the client's name. If successfully found,
-     * deleting the name from the list of online clients
+     * deleting the name from the list of online clients and from its rooms
      * @param username client's name
      * @throws UserNotFoundException the name could not be found in the list of online clients
      */
     public void disconnectUser(String username) throws UserNotFoundException {
-        if (onlineUsers.containsKey(username)) {
+        if (onlineUsers.containsKey(username) && !remoteUsers.containsKey(username)) {
             onlineUsers.remove(username);
+            for (String room : getRoomsOf(username)) {
+                leaveRoom(room, username);
+            }
         } else {
             throw new UserNotFoundException("Could not find user: " + username);
         }
@@ -82,4 +97,199 @@ public class UserManager {
         return new ArrayList<>(set);
     }
 
+    /**
+     * Getting the number of online clients, without the server itself
+     */
+    public int getOnlineCount() {
+        return onlineUsers.size() - 1;
+    }
+
+    /**
+     * Getting the number of rooms
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Getting the clients connected to this server
+     * @return names of the local clients, without the server itself
+     */
+    public List<String> getLocalUsers() {
+        List<String> result = new ArrayList<>();
+        for (String username : onlineUsers.keySet()) {
+            if (!username.equals("Server") && !remoteUsers.containsKey(username)) {
+                result.add(username);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adding a client of another node to the online clients
+     * @param username client's name
+     * @param node     id of the client's node
+     * @return false if a client with the name is already online
+     */
+    public boolean addRemoteUser(String username, String node) {
+        if (onlineUsers.putIfAbsent(username, new User(username)) != null) {
+            return false;
+        }
+        remoteUsers.put(username, node);
+        return true;
+    }
+
+    /**
+     * Removing a client of another node from the online clients
+     * @param username client's name
+     * @param node     id of the client's node
+     * @return false if the client is not online on the node
+     */
+    public boolean removeRemoteUser(String username, String node) {
+        if (!remoteUsers.remove(username, node)) {
+            return false;
+        }
+        onlineUsers.remove(username);
+        return true;
+    }
+
+    /**
+     * Getting the clients of another node
+     * @param node id of the node
+     * @return names of the clients, the set is a copy
+     */
+    public Set<String> getUsersOf(String node) {
+        Set<String> result = new HashSet<>();
+        remoteUsers.forEach((username, userNode) -> {
+            if (userNode.equals(node)) {
+                result.add(username);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Removing all clients of a node that left the cluster
+     * @param node id of the node
+     * @return names of the removed clients
+     */
+    public List<String> removeNode(String node) {
+        List<String> removed = new ArrayList<>();
+        for (String username : getUsersOf(node)) {
+            if (removeRemoteUser(username, node)) {
+                removed.add(username);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Adding the client to the members of the room, the room is created by its first member
+     * @param room     name of the room
+     * @param username client's name
+     * @return false if the client is already a member
+     */
+    public boolean joinRoom(String room, String username) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            Set<String> result = members == null ? ConcurrentHashMap.newKeySet() : members;
+            added[0] = result.add(username);
+            return result;
+        });
+        return added[0];
+    }
+
+    /**
+     * Removing the client from the members of the room, the room is removed with its last member
+     * @param room     name of the room
+     * @param username client's name
+     * @return false if the client is not a member
+     */
+    public boolean leaveRoom(String room, String username) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(username);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Getting the members of the room
+     * @param room name of the room
+     * @return names of the members, empty if the room does not exist
+     */
+    public Set<String> getRoomMembers(String room) {
+        return rooms.getOrDefault(room, Collections.emptySet());
+    }
+
+    /**
+     * Checking whether the client is a member of the room
+     * @param room     name of the room
+     * @param username client's name
+     * @return true for a member
+     */
+    public boolean isRoomMember(String room, String username) {
+        return getRoomMembers(room).contains(username);
+    }
+
+    /**
+     * Getting the rooms the client is a member of
+     * @param username client's name
+     * @return names of the rooms
+     */
+    public List<String> getRoomsOf(String username) {
+        List<String> result = new ArrayList<>();
+        rooms.forEach((room, members) -> {
+            if (members.contains(username)) {
+                result.add(room);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Getting every room with its number of members
+     * @return number of members by room name, in name order
+     */
+    public Map<String, Integer> getRooms() {
+        Map<String, Integer> result = new TreeMap<>();
+        rooms.forEach((room, members) -> result.put(room, members.size()));
+        return result;
+    }
+
+    /**
+     * Adding the client's message stream to the recipient index
+     * @param username client's name
+     * @param subscription open message stream of the client
+     */
+    public void registerStream(String username, Subscription subscription) {
+        streams.compute(username, (name, set) -> {
+            Set<Subscription> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+            result.add(subscription);
+            return result;
+        });
+    }
+
+    /**
+     * Removing the client's message stream from the recipient index
+     * @param username client's name
+     * @param subscription closed message stream of the client
+     */
+    public void unregisterStream(String username, Subscription subscription) {
+        streams.computeIfPresent(username, (name, set) -> {
+            set.remove(subscription);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Getting the open message streams of the client, the name must match exactly
+     * @param username client's name
+     * @return streams of the client, empty if the client has none
+     */
+    public Set<Subscription> getStreams(String username) {
+        return streams.getOrDefault(username, Collections.emptySet());
+    }
+
 }
@@ -1,21 +1,46 @@
 package sbrt.preppy.server;
 
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.mockito.Mockito.*;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
 import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.server.cluster.MessageBus;
+import sbrt.preppy.server.database.JpaMessageStore;
 import sbrt.preppy.server.database.MessageRepository;
+import sbrt.preppy.server.database.MessageStore;
+import sbrt.preppy.server.database.MessageWriteBehind;
+import sbrt.preppy.server.database.journal.JournalMessageStore;
 import sbrt.preppy.server.exception.UserNotFoundException;
 import sbrt.preppy.server.users.UserManager;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 @SpringBootTest(properties = {
@@ -36,11 +61,25 @@ class GrpcProfileServiceTest {
     @Mock
     StreamObserver<ProfileDescriptorOuterClass.DisconnectMessage> mockObserverDisconnect;
 
+    //Созданные тестами сервисы, их потоки записи останавливаются после каждого теста
+    private final List<GrpcProfileService> services = new ArrayList<>();
+
+    private GrpcProfileService newService() {
+        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        services.add(service);
+        return service;
+    }
+
+    @AfterEach
+    void shutdownServices() {
+        services.forEach(GrpcProfileService::shutdown);
+    }
+
 
     @Test
     public void testConnectUser() {
         // Создание объекта GrpcProfileService для тестирования
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
         // Вызов метода connectUser
         ProfileDescriptorOuterClass.UserInfo userInfo = ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("testConnectUser").build();
         service.connectUser(userInfo, mockObserver);
@@ -58,7 +97,7 @@ class GrpcProfileServiceTest {
                 mock(StreamObserver.class);
 
         // Создание объекта GrpcProfileService для тестирования
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
 
         // Вызов метода connectUser
         ProfileDescriptorOuterClass.UserInfo userInfo = ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("testUser").build();
@@ -75,7 +114,7 @@ class GrpcProfileServiceTest {
     // об успешном отключении от сервера.
     @Test
     void testDisconnectUser() {
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
 
         // Вызов метода connectUser
         StreamObserver<sbrt.preppy.ProfileDescriptorOuterClass.ConnectMessage> mockObserver =
@@ -99,7 +138,7 @@ class GrpcProfileServiceTest {
     //возвращает сообщение о неудачной попытке отключения от сервера.
     @Test
     void testDisconnectUserThrowsUserNotFound() {
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
 
         // Создаем заглушки объектов
         StreamObserver<ProfileDescriptorOuterClass.DisconnectMessage> mockObserverDisconnect =
@@ -117,7 +156,7 @@ class GrpcProfileServiceTest {
     //Перехватить сообщение "Hello from User1"
     @Test
     public void sendBroadcastMsgTest() {
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
 
         StreamObserver<sbrt.preppy.ProfileDescriptorOuterClass.ConnectMessage> mockObserver =
                 mock(StreamObserver.class);
@@ -140,7 +179,7 @@ class GrpcProfileServiceTest {
 
     @Test
     public void sendPrivateMsgTest() {
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
         // Создание mock объектов
         ProfileDescriptorOuterClass.PrivateMessageText.Builder privateMsgBuilder = ProfileDescriptorOuterClass.PrivateMessageText.newBuilder();
         ProfileDescriptorOuterClass.MessageText.Builder msgBuilder = ProfileDescriptorOuterClass.MessageText.newBuilder();
@@ -178,7 +217,7 @@ class GrpcProfileServiceTest {
     //Приватное сообщение неизвестному получателю, отредактировать точнее
     @Test
     public void sendPrivateMsgTestUserNotFound() throws UserNotFoundException {
-        GrpcProfileService service = new GrpcProfileService(mockRepository);
+        GrpcProfileService service = newService();
         // Создание mock объектов
         ProfileDescriptorOuterClass.PrivateMessageText.Builder privateMsgBuilder = ProfileDescriptorOuterClass.PrivateMessageText.newBuilder();
         ProfileDescriptorOuterClass.MessageText.Builder msgBuilder = ProfileDescriptorOuterClass.MessageText.newBuilder();
@@ -203,4 +242,390 @@ class GrpcProfileServiceTest {
         // Проверки
         verify(responseObserver).onCompleted();
     }
-}
\ No newline at end of file
+
+    //Чат-поток подтверждает отправку номером сообщения и доставляет это сообщение в тот же поток
+    @Test
+    void chatStreamAcksAndDeliversMessages() {
+        // без тика присутствие публикуется сразу, и поток получает ровно одно событие присутствия - снимок
+        ChatProperties properties = new ChatProperties();
+        properties.getPresence().setTick(Duration.ZERO);
+        GrpcProfileService service = new GrpcProfileService(mockRepository, properties,
+                new JpaMessageStore(mockRepository, mockRepository::saveAll), MessageBus.NONE);
+        services.add(service);
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("ChatUser").build(), mockObserver);
+        StreamObserver<ProfileDescriptorOuterClass.ServerEvent> events = mock(StreamObserver.class);
+
+        StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat = service.chat(events);
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                .setSubscribe(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("ChatUser")).build());
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(1)
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("ChatUser").setText("Hello from chat")).build());
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(2)
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("NotConnected").setText("Hi")).build());
+
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 1
+                && e.getAck().getAccepted() && e.getAck().getSeq() > 0));
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 2
+                && !e.getAck().getAccepted()));
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasMessage() && e.getMessage().getText().equals("Hello from chat")
+                && e.getMessage().getSender().equals("ChatUser")));
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasPresence()
+                && e.getPresence().getKind() == ProfileDescriptorOuterClass.PresenceEvent.Kind.SNAPSHOT
+                && e.getPresence().getUsersList().equals(List.of("ChatUser"))));
+        verify(events, after(200).times(1)).onNext(argThat(e -> e.hasPresence()));
+        chat.onCompleted();
+        verify(events).onCompleted();
+    }
+
+    //Через поток чата можно отправлять только от имени подписанного клиента, после закрытия в поток ничего не пишется
+    @Test
+    void chatStreamSendsOnlyAsItsClientAndStopsWritingWhenClosed() {
+        GrpcProfileService service = newService();
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("StreamOwner").build(), mockObserver);
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("OtherUser").build(), mockObserver);
+        StreamObserver<ProfileDescriptorOuterClass.ServerEvent> events = mock(StreamObserver.class);
+
+        StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat = service.chat(events);
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(1)
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("StreamOwner").setText("too early")).build());
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                .setSubscribe(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("StreamOwner")).build());
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(2)
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("OtherUser").setText("spoofed")).build());
+
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 1 && !e.getAck().getAccepted()));
+        verify(events, timeout(2000)).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 2 && !e.getAck().getAccepted()));
+        verify(events, after(200).never()).onNext(argThat(e -> e.hasMessage() && e.getMessage().getText().equals("spoofed")));
+
+        chat.onError(new IllegalStateException("client went away"));
+        chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(3)
+                .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("StreamOwner").setText("after close")).build());
+        verify(events, after(200).never()).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 3));
+    }
+
+    //Пачка сообщений публикуется целиком, неверные сообщения только считаются
+    @Test
+    void sendMessagesReturnsSummary() {
+        GrpcProfileService service = newService();
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("Bot").build(), mockObserver);
+        StreamObserver<ProfileDescriptorOuterClass.SendSummary> summary = mock(StreamObserver.class);
+
+        StreamObserver<ProfileDescriptorOuterClass.MessageText> bulk = service.sendMessages(summary);
+        for (int i = 0; i < 300; i++) {
+            bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("Bot").setText("announcement " + i).build());
+        }
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("Bot").setText("").build());
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("Bot").setText("hi").setReceiver("NobodyHere").build());
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("NotABot").setText("hi").build());
+        bulk.onCompleted();
+
+        verify(summary).onNext(argThat(s -> s.getAccepted() == 300 && s.getRejected() == 3 && s.getLastSeq() > 0));
+        verify(summary).onCompleted();
+    }
+
+    //История листается из кэша в журнал без пропусков и повторов: кэш держит последние 4 сообщения, страница - 3
+    @Test
+    void historyPagesContinueFromCacheIntoJournal(@TempDir Path directory) throws IOException {
+        ChatProperties properties = new ChatProperties();
+        properties.getCache().setBroadcastSize(4);
+        try (JournalMessageStore journal = new JournalMessageStore(directory, 4096, 4, false);
+             MessageWriteBehind writer = new MessageWriteBehind(journal, journal, 100, 10, 0)) {
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            GrpcProfileService service = new GrpcProfileService(mockRepository, properties, journal, writer,
+                    MessageBus.NONE, registry);
+            services.add(service);
+            service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("ivan").build(), mockObserver);
+            for (int i = 1; i <= 10; i++) {
+                service.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("ivan")
+                        .setText("m" + i).build(), mock(StreamObserver.class));
+            }
+            // дожидаемся, пока писатель сохранит все сообщения в журнал
+            assertEquals(10, writer.load(0, writer.lastSeq()).size());
+
+            List<String> texts = new ArrayList<>();
+            long beforeSeq = 0;
+            while (true) {
+                StreamObserver<ProfileDescriptorOuterClass.HistoryPage> history = mock(StreamObserver.class);
+                service.getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder().setName("ivan")
+                        .setBeforeSeq(beforeSeq).setPageSize(3).build(), history);
+                ArgumentCaptor<ProfileDescriptorOuterClass.HistoryPage> page =
+                        ArgumentCaptor.forClass(ProfileDescriptorOuterClass.HistoryPage.class);
+                verify(history).onNext(page.capture());
+                List<ProfileDescriptorOuterClass.ChatMessage> messages = page.getValue().getMessagesList();
+                if (messages.isEmpty()) {
+                    break;
+                }
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    texts.add(messages.get(i).getText());
+                }
+                beforeSeq = messages.get(0).getSeq();
+            }
+
+            assertEquals(List.of("m10", "m9", "m8", "m7", "m6", "m5", "m4", "m3", "m2", "m1"), texts);
+            // первая страница взята из кэша, остальные - из журнала
+            assertTrue(registry.get("chat.cache.hits").functionCounter().count() >= 1);
+            assertTrue(registry.get("chat.cache.misses").functionCounter().count() >= 1);
+        }
+    }
+
+    //Пачка больше очереди записи урезается до её размера, а пачка, которую не удалось опубликовать, завершает поток статусом UNAVAILABLE
+    @Test
+    void bulkBatchFitsWriterQueueAndFailureIsReported() {
+        ChatProperties properties = new ChatProperties();
+        properties.getPersistence().setBatchSize(300);
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {}, 100, 10, 0);
+        GrpcProfileService service = new GrpcProfileService(mockRepository, properties,
+                new JpaMessageStore(mockRepository, mockRepository::saveAll), writer, MessageBus.NONE, new SimpleMeterRegistry());
+        services.add(service);
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("BigBot").build(), mockObserver);
+        StreamObserver<ProfileDescriptorOuterClass.SendSummary> summary = mock(StreamObserver.class);
+        StreamObserver<ProfileDescriptorOuterClass.MessageText> bulk = service.sendMessages(summary);
+        for (int i = 0; i < 300; i++) {
+            bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("BigBot").setText("news " + i).build());
+        }
+        bulk.onCompleted();
+        verify(summary).onNext(argThat(s -> s.getAccepted() == 300));
+
+        writer.close();
+        StreamObserver<ProfileDescriptorOuterClass.SendSummary> failed = mock(StreamObserver.class);
+        bulk = service.sendMessages(failed);
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("BigBot").setText("too late").build());
+        bulk.onCompleted();
+        verify(failed).onError(argThat(e -> Status.fromThrowable(e).getCode() == Status.Code.UNAVAILABLE));
+        verify(failed, never()).onCompleted();
+    }
+
+    //Сообщение в комнату доходит только до участников и попадает в историю комнаты, не участник писать в неё не может
+    @Test
+    void roomMessagesReachOnlyMembers() {
+        GrpcProfileService service = newService();
+        for (String name : List.of("alice", "bob", "carol")) {
+            service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(name).build(), mockObserver);
+        }
+        StreamObserver<ProfileDescriptorOuterClass.RoomInfo> joined = mock(StreamObserver.class);
+        service.joinRoom(ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName("alice").setRoom("java").build(), joined);
+        service.joinRoom(ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName("bob").setRoom("java").build(), joined);
+        verify(joined).onNext(argThat(r -> r.getMemberCount() == 2 && r.getMembersList().containsAll(List.of("alice", "bob"))));
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> bobStream = mock(StreamObserver.class);
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> carolStream = mock(StreamObserver.class);
+        service.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("bob").build(), bobStream);
+        service.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("carol").build(), carolStream);
+
+        StreamObserver<ProfileDescriptorOuterClass.SendSummary> summary = mock(StreamObserver.class);
+        StreamObserver<ProfileDescriptorOuterClass.MessageText> bulk = service.sendMessages(summary);
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("alice").setText("hi java").setRoom("java").build());
+        bulk.onNext(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("carol").setText("let me in").setRoom("java").build());
+        bulk.onCompleted();
+
+        verify(summary).onNext(argThat(s -> s.getAccepted() == 1 && s.getRejected() == 1));
+        verify(bobStream, timeout(2000)).onNext(argThat(m -> m.getType() == ProfileDescriptorOuterClass.ChatMessage.Type.ROOM
+                && m.getReceiver().equals("java") && m.getText().equals("hi java")));
+        verify(carolStream, after(200).never()).onNext(argThat(m -> m.getType() == ProfileDescriptorOuterClass.ChatMessage.Type.ROOM));
+        StreamObserver<ProfileDescriptorOuterClass.HistoryPage> history = mock(StreamObserver.class);
+        service.getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder().setName("bob").setRoom("java").build(), history);
+        verify(history).onNext(argThat(p -> p.getMessagesCount() == 1 && p.getMessages(0).getText().equals("hi java")));
+        StreamObserver<ProfileDescriptorOuterClass.RoomList> rooms = mock(StreamObserver.class);
+        service.listRooms(ProfileDescriptorOuterClass.Empty.getDefaultInstance(), rooms);
+        verify(rooms).onNext(argThat(l -> l.getRoomsCount() == 1 && l.getRooms(0).getMemberCount() == 2));
+    }
+
+    //Историю комнаты читают только её участники, остальные получают PERMISSION_DENIED
+    @Test
+    void roomHistoryIsReadOnlyByMembers() {
+        GrpcProfileService service = newService();
+        for (String name : List.of("dave", "erin")) {
+            service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(name).build(), mockObserver);
+        }
+        service.joinRoom(ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName("dave").setRoom("secret").build(),
+                mock(StreamObserver.class));
+        service.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("dave").setText("for members")
+                .setRoom("secret").build(), mock(StreamObserver.class));
+
+        StreamObserver<ProfileDescriptorOuterClass.HistoryPage> outsider = mock(StreamObserver.class);
+        service.getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder().setName("erin").setRoom("secret").build(), outsider);
+        verify(outsider).onError(argThat(e -> Status.fromThrowable(e).getCode() == Status.Code.PERMISSION_DENIED));
+        verify(outsider, never()).onNext(any());
+        StreamObserver<ProfileDescriptorOuterClass.HistoryPage> member = mock(StreamObserver.class);
+        service.getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder().setName("dave").setRoom("secret").build(), member);
+        verify(member).onNext(argThat(p -> p.getMessagesCount() == 1 && p.getMessages(0).getText().equals("for members")));
+    }
+
+    //Отключенный клиент выходит из комнат; вернувшись и снова войдя в комнату, он получает пропущенные сообщения комнаты
+    @Test
+    void rejoinedRoomMessagesAreReplayedOnResume() {
+        GrpcProfileService service = newService();
+        for (String name : List.of("frank", "grace")) {
+            service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(name).build(), mockObserver);
+            service.joinRoom(ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName(name).setRoom("club").build(),
+                    mock(StreamObserver.class));
+        }
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> before = mock(StreamObserver.class);
+        service.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("grace").build(), before);
+        service.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("frank").setText("before")
+                .setRoom("club").build(), mock(StreamObserver.class));
+        ArgumentCaptor<ProfileDescriptorOuterClass.ChatMessage> seen = ArgumentCaptor.forClass(ProfileDescriptorOuterClass.ChatMessage.class);
+        verify(before, timeout(2000)).onNext(argThat(m -> m.getText().equals("before")));
+        verify(before, atLeastOnce()).onNext(seen.capture());
+        long lastSeq = seen.getAllValues().stream().filter(m -> m.getText().equals("before")).findFirst().orElseThrow().getSeq();
+
+        service.disconnectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("grace").build(), mockObserverDisconnect);
+        service.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("frank").setText("while away")
+                .setRoom("club").build(), mock(StreamObserver.class));
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("grace").build(), mockObserver);
+        service.joinRoom(ProfileDescriptorOuterClass.RoomRequest.newBuilder().setName("grace").setRoom("club").build(),
+                mock(StreamObserver.class));
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> resumed = mock(StreamObserver.class);
+        service.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("grace").setResumeAfterSeq(lastSeq).build(), resumed);
+
+        verify(resumed, timeout(2000)).onNext(argThat(m -> m.getText().equals("while away")));
+    }
+
+    //Устаревший поток списка клиентов по-прежнему получает весь список одной строкой при каждом изменении
+    @Test
+    @SuppressWarnings("deprecation")
+    void deprecatedUserListStreamFollowsPresence() {
+        GrpcProfileService service = newService();
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("listAlice").build(), mockObserver);
+        StreamObserver<ProfileDescriptorOuterClass.UserInfo> userList = mock(StreamObserver.class);
+        service.syncUserList(ProfileDescriptorOuterClass.Empty.getDefaultInstance(), userList);
+        verify(userList, timeout(2000)).onNext(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("listAlice ").build());
+
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("listBob").build(), mockObserver);
+        verify(userList, timeout(2000)).onNext(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("listAlice listBob ").build());
+    }
+
+    //Поток присутствия не пишется, пока вызов не готов, и продолжается из обработчика готовности
+    @Test
+    @SuppressWarnings("unchecked")
+    void presenceStreamWaitsUntilCallIsReady() {
+        GrpcProfileService service = newService();
+        ServerCallStreamObserver<ProfileDescriptorOuterClass.PresenceEvent> presence = mock(ServerCallStreamObserver.class);
+        when(presence.isReady()).thenReturn(false);
+        service.syncPresence(ProfileDescriptorOuterClass.Empty.getDefaultInstance(), presence);
+        ArgumentCaptor<Runnable> onReady = ArgumentCaptor.forClass(Runnable.class);
+        verify(presence).setOnReadyHandler(onReady.capture());
+        service.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("readyAlice").build(), mockObserver);
+
+        verify(presence, after(300).never()).onNext(any());
+        when(presence.isReady()).thenReturn(true);
+        onReady.getValue().run();
+        verify(presence, timeout(2000)).onNext(argThat(event -> event.getUsersList().contains("readyAlice")));
+    }
+
+    //Ошибка чтения истории из хранилища возвращается клиенту статусом UNAVAILABLE, а не пустой страницей
+    @Test
+    void historyStoreFailureIsReportedAsUnavailable() {
+        MessageStore store = mock(MessageStore.class);
+        when(store.findBroadcastPage(any(), anyLong(), anyInt())).thenThrow(new IllegalStateException("database is down"));
+        // сообщения до 100 есть только в хранилище, поэтому страница до них не берётся из кэша
+        when(store.lastSeq()).thenReturn(100L);
+        GrpcProfileService service = new GrpcProfileService(mockRepository, new ChatProperties(), store, MessageBus.NONE);
+        services.add(service);
+        StreamObserver<ProfileDescriptorOuterClass.HistoryPage> history = mock(StreamObserver.class);
+
+        service.getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder().setName("bob")
+                .setBeforeSeq(10).build(), history);
+
+        verify(history).onError(argThat(e -> Status.fromThrowable(e).getCode() == Status.Code.UNAVAILABLE));
+        verify(history, never()).onNext(any());
+    }
+
+    //Потоки syncMessages и chat, привязанные с общими кадрами, читаются сгенерированными заглушками клиента
+    @Test
+    void framedStreamsAreReadByGeneratedStubs() throws Exception {
+        GrpcProfileService service = newService();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).addService(new ProfileServiceBinding(service)).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        try {
+            ProfileServiceGrpc.ProfileServiceBlockingStub blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
+            ProfileServiceGrpc.ProfileServiceStub asyncStub = ProfileServiceGrpc.newStub(channel);
+            blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("framedSync").build());
+            blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("framedChat").build());
+            StreamObserver<ProfileDescriptorOuterClass.ChatMessage> messages = mock(StreamObserver.class);
+            StreamObserver<ProfileDescriptorOuterClass.ServerEvent> events = mock(StreamObserver.class);
+            StreamObserver<ProfileDescriptorOuterClass.ClientEvent> chat = asyncStub.chat(events);
+            chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder()
+                    .setSubscribe(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("framedChat")).build());
+            // поток чата открыт, когда пришло подтверждение его первого сообщения
+            chat.onNext(ProfileDescriptorOuterClass.ClientEvent.newBuilder().setRequestId(1)
+                    .setBroadcast(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("framedChat").setText("from chat")).build());
+            ArgumentCaptor<ProfileDescriptorOuterClass.ServerEvent> ack = ArgumentCaptor.forClass(ProfileDescriptorOuterClass.ServerEvent.class);
+            verify(events, timeout(2000)).onNext(argThat(e -> e.hasAck() && e.getAck().getRequestId() == 1 && e.getAck().getAccepted()));
+            verify(events, atLeastOnce()).onNext(ack.capture());
+            long chatSeq = ack.getAllValues().stream().filter(ProfileDescriptorOuterClass.ServerEvent::hasAck)
+                    .findFirst().orElseThrow().getAck().getSeq();
+
+            blockingStub.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder()
+                    .setSender("framedSync").setText("framed hello").build());
+            // поток сообщений возобновляется после сообщения чата и получает следующее из кэша недавней истории
+            asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("framedSync")
+                    .setResumeAfterSeq(chatSeq).build(), messages);
+
+            verify(messages, timeout(2000)).onNext(argThat(m -> m.getText().equals("framed hello")
+                    && m.getSender().equals("framedSync") && m.getSeq() > 0));
+            verify(events, timeout(2000)).onNext(argThat(e -> e.hasMessage() && e.getMessage().getText().equals("framed hello")
+                    && e.getMessage().getSender().equals("framedSync")));
+            verify(messages, never()).onError(any());
+            verify(events, never()).onError(any());
+            chat.onCompleted();
+            verify(events, timeout(2000)).onCompleted();
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    //Открытые, но молчащие потоки сообщений не занимают потоки JVM: их число не растет вместе с числом клиентов
+    @Test
+    void idleMessageStreamsDoNotHoldThreads() throws Exception {
+        int streams = 1000;
+        GrpcProfileService service = newService();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).addService(new ProfileServiceBinding(service)).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        try {
+            ProfileServiceGrpc.ProfileServiceBlockingStub blockingStub = ProfileServiceGrpc.newBlockingStub(channel);
+            ProfileServiceGrpc.ProfileServiceStub asyncStub = ProfileServiceGrpc.newStub(channel);
+            blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("idleSender").build());
+            for (int i = 0; i < streams; i++) {
+                blockingStub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("idle" + i).build());
+            }
+            int threadsBefore = Thread.activeCount();
+            CountDownLatch open = new CountDownLatch(streams);
+            for (int i = 0; i < streams; i++) {
+                asyncStub.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("idle" + i).build(),
+                        new StreamObserver<>() {
+                            private boolean received;
+
+                            @Override
+                            public void onNext(ProfileDescriptorOuterClass.ChatMessage message) {
+                                if (message.getText().equals("probe") && !received) {
+                                    received = true;
+                                    open.countDown();
+                                }
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                            }
+                        });
+            }
+            // потоки открываются асинхронно, пробные сообщения шлются, пока каждый поток не получит одно из них
+            while (!open.await(10, TimeUnit.MILLISECONDS)) {
+                blockingStub.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder()
+                        .setSender("idleSender").setText("probe").build());
+            }
+
+            assertTrue(Thread.activeCount() - threadsBefore < 100, "threads grew by " + (Thread.activeCount() - threadsBefore));
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            service.shutdown();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package sbrt.preppy.server.cluster;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import sbrt.preppy.ClusterProtocol.NodeEvent;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.server.ChatProperties;
+import sbrt.preppy.server.GrpcProfileService;
+import sbrt.preppy.server.database.JpaMessageStore;
+import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.database.MessageRepository;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ClusterTest {
+    private static final String SECRET = "cluster secret";
+
+    //Клиент узла B получает широковещательное сообщение с узла A, а личное сообщение с B доходит до клиента на A.
+    //Каждый узел хранит все сообщения кластера под своими номерами, и на другом узле у сообщения прежняя дата
+    @Test
+    @SuppressWarnings("unchecked")
+    void clientsOfDifferentNodesTalkToEachOther() {
+        LoopbackBus.Network network = new LoopbackBus.Network();
+        MessageRepository repositoryA = mock(MessageRepository.class);
+        MessageRepository repositoryB = mock(MessageRepository.class);
+        GrpcProfileService nodeA = node("A", new LoopbackBus(network), repositoryA);
+        GrpcProfileService nodeB = node("B", new LoopbackBus(network), repositoryB);
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> aliceStream = mock(StreamObserver.class);
+        StreamObserver<ProfileDescriptorOuterClass.ChatMessage> bobStream = mock(StreamObserver.class);
+        try {
+            connect(nodeA, "alice");
+            connect(nodeB, "bob");
+            nodeA.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("alice").build(), aliceStream);
+            nodeB.syncMessages(ProfileDescriptorOuterClass.SyncRequest.newBuilder().setName("bob").build(), bobStream);
+            await(() -> nodeA.getUsersOnlineString().contains("bob") && nodeB.getUsersOnlineString().contains("alice"));
+
+            nodeA.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("alice").setText("hi all").build(),
+                    mock(StreamObserver.class));
+            nodeB.sendPrivateMsg(ProfileDescriptorOuterClass.PrivateMessageText.newBuilder()
+                    .setMessageText(ProfileDescriptorOuterClass.MessageText.newBuilder().setSender("bob").setText("hi alice"))
+                    .setReceiver("alice").build(), mock(StreamObserver.class));
+
+            ArgumentCaptor<ProfileDescriptorOuterClass.ChatMessage> sent = ArgumentCaptor.forClass(ProfileDescriptorOuterClass.ChatMessage.class);
+            verify(aliceStream, timeout(2000)).onNext(argThat(m -> m.getSender().equals("alice") && m.getText().equals("hi all")));
+            verify(aliceStream, atLeastOnce()).onNext(sent.capture());
+            long date = sent.getAllValues().stream().filter(m -> m.getText().equals("hi all")).findFirst().orElseThrow().getTimestamp();
+            verify(bobStream, timeout(2000)).onNext(argThat(m -> m.getSender().equals("alice") && m.getText().equals("hi all")
+                    && m.getTimestamp() == date));
+            verify(aliceStream, timeout(2000)).onNext(argThat(m -> m.getSender().equals("bob") && m.getText().equals("hi alice")
+                    && m.getType() == ProfileDescriptorOuterClass.ChatMessage.Type.PRIVATE));
+            verify(repositoryA, timeout(2000)).saveAll(argThat(stored("hi all")));
+            verify(repositoryB, timeout(2000)).saveAll(argThat(stored("hi alice")));
+            verify(repositoryB, timeout(2000)).saveAll(argThat(stored("hi all", date)));
+            verify(repositoryA, timeout(2000)).saveAll(argThat(stored("hi alice")));
+
+            nodeB.shutdown();
+            await(() -> !nodeA.getUsersOnlineString().contains("bob"));
+        } finally {
+            nodeA.shutdown();
+            nodeB.shutdown();
+        }
+    }
+
+    //События одного узла приходят другому по TCP по порядку, закрытие узла видно как его падение
+    @Test
+    void tcpBusDeliversEventsInOrder() throws IOException, InterruptedException {
+        int portA = freePort();
+        int portB = freePort();
+        BlockingQueue<NodeEvent> received = new LinkedBlockingQueue<>();
+        BlockingQueue<String> down = new LinkedBlockingQueue<>();
+        TcpMessageBus busA = tcpBus(portA, portB, SECRET);
+        TcpMessageBus busB = tcpBus(portB, portA, SECRET);
+        BlockingQueue<Boolean> connected = new LinkedBlockingQueue<>();
+        try {
+            busA.start("A", listener(new LinkedBlockingQueue<>(), connected, new LinkedBlockingQueue<>()));
+            busB.start("B", listener(received, new LinkedBlockingQueue<>(), down));
+            assertNotNull(connected.poll(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 100; i++) {
+                busA.send(NodeEvent.newBuilder().setNode("A").setJoined("user" + i).build());
+            }
+            for (int i = 0; i < 100; i++) {
+                NodeEvent event = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(event);
+                assertEquals("user" + i, event.getJoined());
+            }
+            busA.close();
+            assertEquals("A", down.poll(5, TimeUnit.SECONDS));
+        } finally {
+            busA.close();
+            busB.close();
+        }
+    }
+
+    //Узел, не знающий общего секрета, не может подключиться: его события не доходят
+    @Test
+    void tcpBusRejectsPeerWithoutSecret() throws IOException, InterruptedException {
+        int portA = freePort();
+        int portB = freePort();
+        BlockingQueue<NodeEvent> received = new LinkedBlockingQueue<>();
+        BlockingQueue<Boolean> connected = new LinkedBlockingQueue<>();
+        TcpMessageBus busA = tcpBus(portA, portB, "wrong secret");
+        TcpMessageBus busB = tcpBus(portB, portA, SECRET);
+        try {
+            busA.start("A", listener(new LinkedBlockingQueue<>(), connected, new LinkedBlockingQueue<>()));
+            busB.start("B", listener(received, new LinkedBlockingQueue<>(), new LinkedBlockingQueue<>()));
+            // соединение открывается, но проверку секрета не проходит
+            assertNull(connected.poll(500, TimeUnit.MILLISECONDS));
+            busA.send(NodeEvent.newBuilder().setNode("A").setJoined("intruder").build());
+
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            busA.close();
+            busB.close();
+        }
+    }
+
+    //Узел не пишет событий узлу, который принял соединение, но не знает общего секрета
+    @Test
+    void tcpBusRejectsAcceptorWithoutSecret() throws IOException, InterruptedException {
+        BlockingQueue<Boolean> connected = new LinkedBlockingQueue<>();
+        try (ServerSocket impostor = new ServerSocket(0)) {
+            TcpMessageBus bus = tcpBus(freePort(), impostor.getLocalPort(), SECRET);
+            try {
+                bus.start("A", listener(new LinkedBlockingQueue<>(), connected, new LinkedBlockingQueue<>()));
+                try (Socket socket = impostor.accept()) {
+                    socket.getOutputStream().write(new byte[32]);
+                    assertEquals(64, socket.getInputStream().readNBytes(64).length);
+                    socket.getOutputStream().write(new byte[32]);
+                    bus.send(NodeEvent.newBuilder().setNode("A").setJoined("alice").build());
+
+                    assertEquals(-1, socket.getInputStream().read());
+                }
+                assertNull(connected.poll(200, TimeUnit.MILLISECONDS));
+            } finally {
+                bus.close();
+            }
+        }
+    }
+
+    //Узел, переподключившийся раньше, чем закрылось его старое соединение, не считается упавшим при закрытии старого
+    @Test
+    void reconnectedPeerIsNotReportedDown() throws IOException, InterruptedException {
+        int port = freePort();
+        BlockingQueue<NodeEvent> received = new LinkedBlockingQueue<>();
+        BlockingQueue<String> down = new LinkedBlockingQueue<>();
+        TcpMessageBus bus = tcpBus(port, freePort(), SECRET);
+        try (Socket old = new Socket(); Socket current = new Socket()) {
+            bus.start("B", listener(received, new LinkedBlockingQueue<>(), down));
+            old.connect(new InetSocketAddress("localhost", port));
+            handshake(old);
+            NodeEvent.newBuilder().setNode("H").setJoined("first").build().writeDelimitedTo(old.getOutputStream());
+            assertEquals("first", received.poll(5, TimeUnit.SECONDS).getJoined());
+            current.connect(new InetSocketAddress("localhost", port));
+            handshake(current);
+            NodeEvent.newBuilder().setNode("H").setJoined("second").build().writeDelimitedTo(current.getOutputStream());
+            assertEquals("second", received.poll(5, TimeUnit.SECONDS).getJoined());
+
+            old.close();
+            assertNull(down.poll(300, TimeUnit.MILLISECONDS));
+            current.close();
+            assertEquals("H", down.poll(5, TimeUnit.SECONDS));
+        } finally {
+            bus.close();
+        }
+    }
+
+    //Узел, который завис и замолчал, но не закрыл соединение, считается упавшим по истечении таймаута тишины
+    @Test
+    void silentPeerIsReportedDown() throws IOException, InterruptedException {
+        int port = freePort();
+        BlockingQueue<NodeEvent> received = new LinkedBlockingQueue<>();
+        BlockingQueue<String> down = new LinkedBlockingQueue<>();
+        TcpMessageBus bus = tcpBus(port, freePort(), SECRET);
+        try (Socket hung = new Socket()) {
+            bus.start("B", listener(received, new LinkedBlockingQueue<>(), down));
+            hung.connect(new InetSocketAddress("localhost", port));
+            handshake(hung);
+            NodeEvent.newBuilder().setNode("H").setJoined("frozen").build().writeDelimitedTo(hung.getOutputStream());
+            assertEquals("frozen", received.poll(5, TimeUnit.SECONDS).getJoined());
+
+            assertEquals("H", down.poll(5, TimeUnit.SECONDS));
+        } finally {
+            bus.close();
+        }
+    }
+
+    /**
+     * Проверка секрета со стороны подключающегося узла, ответ шины на его вызов не проверяется
+     */
+    private static void handshake(Socket socket) throws IOException {
+        byte[] challenge = socket.getInputStream().readNBytes(32);
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update((byte) 1);
+            socket.getOutputStream().write(mac.doFinal(challenge));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        socket.getOutputStream().write(new byte[32]);
+        assertEquals(32, socket.getInputStream().readNBytes(32).length);
+    }
+
+    private static TcpMessageBus tcpBus(int port, int peerPort, String secret) {
+        return new TcpMessageBus(new InetSocketAddress("localhost", port), List.of(new InetSocketAddress("localhost", peerPort)),
+                secret, Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(500), 1024);
+    }
+
+    private static ArgumentMatcher<Iterable<MessageBD>> stored(String text) {
+        return batch -> batch != null && StreamSupport.stream(batch.spliterator(), false)
+                .anyMatch(row -> text.equals(row.getMessageText()));
+    }
+
+    private static ArgumentMatcher<Iterable<MessageBD>> stored(String text, long date) {
+        return batch -> batch != null && StreamSupport.stream(batch.spliterator(), false)
+                .anyMatch(row -> text.equals(row.getMessageText()) && row.getDate().getTime() == date && row.getSeq() != null);
+    }
+
+    private static GrpcProfileService node(String nodeId, MessageBus bus, MessageRepository repository) {
+        ChatProperties properties = new ChatProperties();
+        properties.getCluster().setNodeId(nodeId);
+        return new GrpcProfileService(repository, properties, new JpaMessageStore(repository, repository::saveAll), bus);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void connect(GrpcProfileService node, String username) {
+        node.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName(username).build(), mock(StreamObserver.class));
+    }
+
+    private static MessageBus.Listener listener(BlockingQueue<NodeEvent> events, BlockingQueue<Boolean> connected,
+                                                BlockingQueue<String> down) {
+        return new MessageBus.Listener() {
+            @Override
+            public void onEvent(NodeEvent event) {
+                events.add(event);
+            }
+
+            @Override
+            public void onPeerConnected() {
+                connected.add(true);
+            }
+
+            @Override
+            public void onPeerDown(String nodeId) {
+                down.add(nodeId);
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition is not met in time");
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package sbrt.preppy.server.compression;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.ProfileServiceGrpc;
+import sbrt.preppy.compression.DeflateCodec;
+import sbrt.preppy.server.GrpcSpringBootServerApplication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "grpc.server.inProcessName=test",
+        "grpc.server.port=9092",
+        "grpc.client.petService.address=in-process:test"
+})
+@SpringJUnitConfig(classes = {GrpcSpringBootServerApplication.class})
+class CompressionConfigurationTest {
+    private static final Metadata.Key<String> ENCODING = Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    //Сервер, настроенный Spring, отвечает клиенту, принимающему deflate, сжатой этим кодеком страницей истории
+    @Test
+    void historyPageIsCompressedWithDeflate() throws InterruptedException {
+        AtomicReference<String> encoding = new AtomicReference<>();
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", 9092).usePlaintext()
+                .decompressorRegistry(DecompressorRegistry.getDefaultInstance().with(new DeflateCodec(), true))
+                .build();
+        try {
+            ProfileServiceGrpc.ProfileServiceBlockingStub stub = ProfileServiceGrpc.newBlockingStub(channel);
+            stub.connectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("compressedReader").build());
+            for (int i = 0; i < 20; i++) {
+                stub.sendBroadcastMsg(ProfileDescriptorOuterClass.MessageText.newBuilder()
+                        .setSender("compressedReader").setText("compressed history line number " + i).build());
+            }
+
+            ProfileDescriptorOuterClass.HistoryPage page = stub.withInterceptors(new ResponseEncoding(encoding))
+                    .getHistory(ProfileDescriptorOuterClass.HistoryRequest.newBuilder()
+                            .setName("compressedReader").setPageSize(20).build());
+
+            assertEquals(DeflateCodec.NAME, encoding.get());
+            assertEquals(20, page.getMessagesCount());
+            assertTrue(page.getSerializedSize() >= 512);
+            assertTrue(page.getMessagesList().stream().anyMatch(m -> m.getText().equals("compressed history line number 19")));
+            stub.disconnectUser(ProfileDescriptorOuterClass.UserInfo.newBuilder().setName("compressedReader").build());
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Запоминает кодек, которым сервер сжимает ответы вызова
+     */
+    private record ResponseEncoding(AtomicReference<String> encoding) implements ClientInterceptor {
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                        @Override
+                        public void onHeaders(Metadata headers) {
+                            encoding.set(headers.get(ENCODING));
+                            super.onHeaders(headers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package sbrt.preppy.server.compression;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.compression.DeflateCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CompressionInterceptorTest {
+    private final CompressionInterceptor interceptor = new CompressionInterceptor(List.of(DeflateCodec.NAME, "gzip"), 512);
+
+    //Выбирается первый кодек сервера из тех, что принимает клиент, без общего кодека ответы не сжимаются
+    @Test
+    void preferredAcceptedCodecIsChosen() {
+        assertEquals("deflate", interceptor.choose("gzip, deflate"));
+        assertEquals("gzip", interceptor.choose("identity,gzip"));
+        assertNull(interceptor.choose("identity"));
+        assertNull(interceptor.choose(null));
+    }
+
+    //Короткое сообщение уходит без сжатия, страница истории сжимается
+    @Test
+    @SuppressWarnings("unchecked")
+    void onlyMessagesAboveThresholdAreCompressed() {
+        ServerCall<Object, Object> call = mock(ServerCall.class);
+        ServerCallHandler<Object, Object> next = mock(ServerCallHandler.class);
+        ArgumentCaptor<ServerCall<Object, Object>> wrapped = ArgumentCaptor.forClass(ServerCall.class);
+        Metadata headers = new Metadata();
+        headers.put(CompressionInterceptor.ACCEPT_ENCODING, "gzip,deflate");
+
+        interceptor.interceptCall(call, headers, next);
+        verify(call).setCompression("deflate");
+        verify(next).startCall(wrapped.capture(), eq(headers));
+
+        ProfileDescriptorOuterClass.ChatMessage line = ProfileDescriptorOuterClass.ChatMessage.newBuilder()
+                .setSender("alice").setText("hi").build();
+        ProfileDescriptorOuterClass.HistoryPage.Builder page = ProfileDescriptorOuterClass.HistoryPage.newBuilder();
+        for (int i = 0; i < 50; i++) {
+            page.addMessages(line);
+        }
+        wrapped.getValue().sendMessage(line);
+        verify(call).setMessageCompression(false);
+        wrapped.getValue().sendMessage(page.build());
+        verify(call).setMessageCompression(true);
+    }
+
+    //Сжатое кодеком deflate читается обратно без потерь
+    @Test
+    void deflateRoundTrip() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] text = "PUBLIC chat line repeated ".repeat(100).getBytes();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = codec.compress(compressed)) {
+            out.write(text);
+        }
+        assertTrue(compressed.size() < text.length);
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertArrayEquals(text, in.readAllBytes());
+        }
+    }
+}
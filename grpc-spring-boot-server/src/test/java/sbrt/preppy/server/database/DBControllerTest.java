@@ -0,0 +1,102 @@
+package sbrt.preppy.server.database;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DBControllerTest {
+    private static final Timestamp NEWEST = Timestamp.valueOf("9999-12-31 00:00:00");
+
+    private JdbcDataSource dataSource;
+    private DBController controller;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        controller = new DBController(dataSource);
+        controller.createTableMessages();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        controller.closeDataBase();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("SHUTDOWN");
+        }
+    }
+
+    private long seq;
+
+    private MessageBD row(long time, String author, String receiver, String type, String text) {
+        MessageBD row = new MessageBD(new Timestamp(time), author, receiver, type, text);
+        row.setSeq(++seq);
+        return row;
+    }
+
+    //Постраничное чтение по номерам продолжается с курсора, включая сообщения с одинаковым временем
+    @Test
+    void broadcastPagesContinueFromCursor() {
+        controller.saveAll(List.of(
+                row(1000, "alice", "null", "BROADCAST", "b1"),
+                row(2000, "alice", "null", "BROADCAST", "b2"),
+                row(2000, "bob", "null", "BROADCAST", "b3"),
+                row(2500, "bob", "alice", "PRIVATE", "p1"),
+                row(3000, "bob", "null", "BROADCAST", "b4")));
+
+        List<MessageBD> first = controller.findBroadcastPage(NEWEST, Long.MAX_VALUE, 2);
+        assertEquals(List.of("b4", "b3"), first.stream().map(MessageBD::getMessageText).toList());
+
+        MessageBD cursor = first.get(1);
+        List<MessageBD> second = controller.findBroadcastPage(NEWEST, cursor.getSeq(), 2);
+        assertEquals(List.of("b2", "b1"), second.stream().map(MessageBD::getMessageText).toList());
+        List<MessageBD> fromDate = controller.findBroadcastPage(new Timestamp(2000), Long.MAX_VALUE, 2);
+        assertEquals(List.of("b1"), fromDate.stream().map(MessageBD::getMessageText).toList());
+    }
+
+    //Курсор страницы ограничивает поиск по индексу диапазоном _seq, а не фильтрует все сообщения типа
+    @Test
+    void pageQueriesSeekTheCompositeIndex() throws SQLException {
+        List<MessageBD> rows = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String type = i % 3 == 0 ? "BROADCAST" : i % 3 == 1 ? "PRIVATE" : "ROOM";
+            rows.add(row(1000L * i, "u" + (i % 5), type.equals("ROOM") ? "java" : "u" + (i % 7), type, "m" + i));
+        }
+        controller.saveAll(rows);
+        long cursor = 1500;
+
+        assertSeeks(DBController.SELECT_BROADCAST_PAGE_QUERY, "MESSAGES_TYPE_SEQ", cursor, NEWEST, 50);
+        assertSeeks(DBController.SELECT_ROOM_PAGE_QUERY, "MESSAGES_ROOM_SEQ", "java", cursor, NEWEST, 50);
+        assertSeeks(DBController.SELECT_PRIVATE_PAGE_QUERY, "_SEQ", "u1", "u2", "u2", "u1", cursor, NEWEST, 50);
+    }
+
+    private void assertSeeks(String query, String index, Object... params) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("ANALYZE");
+            try (PreparedStatement explain = connection.prepareStatement("EXPLAIN " + query)) {
+                for (int i = 0; i < params.length; i++) {
+                    explain.setObject(i + 1, params[i]);
+                }
+                try (ResultSet rs = explain.executeQuery()) {
+                    assertTrue(rs.next());
+                    String plan = rs.getString(1);
+                    String indexCondition = plan.substring(plan.indexOf("/*"), plan.indexOf("*/"));
+                    assertTrue(indexCondition.contains(index), plan);
+                    assertTrue(indexCondition.contains("\"_SEQ\" <"), plan);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package sbrt.preppy.server.database;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+class MessageRepositoryTest {
+    private static final Timestamp NEWEST = Timestamp.valueOf("9999-12-31 00:00:00");
+
+    @Autowired
+    MessageRepository repository;
+
+    private long seq;
+
+    private MessageBD save(long time, String author, String receiver, String type, String text) {
+        MessageBD row = new MessageBD(new Timestamp(time), author, receiver, type, text);
+        row.setSeq(++seq);
+        return repository.save(row);
+    }
+
+    //Постраничное чтение общего чата по номерам, включая сообщения с одинаковым временем
+    @Test
+    void broadcastPagesContinueFromCursor() {
+        save(1000, "alice", "null", "BROADCAST", "b1");
+        save(2000, "alice", "null", "BROADCAST", "b2");
+        save(2000, "bob", "null", "BROADCAST", "b3");
+        save(2500, "bob", "alice", "PRIVATE", "p1");
+        save(3000, "bob", "null", "BROADCAST", "b4");
+
+        List<MessageBD> first = repository.findBroadcastPage(NEWEST, Long.MAX_VALUE, PageRequest.of(0, 2));
+        assertEquals(List.of("b4", "b3"), first.stream().map(MessageBD::getMessageText).toList());
+
+        MessageBD cursor = first.get(1);
+        List<MessageBD> second = repository.findBroadcastPage(NEWEST, cursor.getSeq(), PageRequest.of(0, 2));
+        assertEquals(List.of("b2", "b1"), second.stream().map(MessageBD::getMessageText).toList());
+        List<MessageBD> fromDate = repository.findBroadcastPage(new Timestamp(2000), Long.MAX_VALUE, PageRequest.of(0, 2));
+        assertEquals(List.of("b1"), fromDate.stream().map(MessageBD::getMessageText).toList());
+    }
+
+    //Страница личной переписки содержит сообщения обеих сторон и только их
+    @Test
+    void privatePageContainsOnlyTheConversation() {
+        save(1000, "alice", "bob", "PRIVATE", "ab");
+        save(2000, "bob", "alice", "PRIVATE", "ba");
+        save(3000, "carol", "alice", "PRIVATE", "ca");
+        save(4000, "alice", "null", "BROADCAST", "b");
+
+        List<MessageBD> page = repository.findPrivatePage("alice", "bob", NEWEST, Long.MAX_VALUE, PageRequest.of(0, 10));
+        assertEquals(List.of("ba", "ab"), page.stream().map(MessageBD::getMessageText).toList());
+    }
+}
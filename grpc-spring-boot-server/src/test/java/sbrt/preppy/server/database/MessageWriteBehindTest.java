@@ -0,0 +1,161 @@
+package sbrt.preppy.server.database;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.server.dispatch.MessageHistory;
+import sbrt.preppy.server.messages.Message;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageWriteBehindTest {
+
+    private static MessageBD row(int i) {
+        return new MessageBD(new Timestamp(System.currentTimeMillis()), "bob", "null", "BROADCAST", "m" + i);
+    }
+
+    private static MessageBD row(int i, long seq) {
+        MessageBD row = row(i);
+        row.setSeq(seq);
+        return row;
+    }
+
+    //Сообщения сохраняются пачками не больше batchSize и в порядке отправки
+    @Test
+    void messagesAreStoredInBatchesInOrder() {
+        List<List<MessageBD>> batches = Collections.synchronizedList(new ArrayList<>());
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> batches.add(new ArrayList<>(batch)), 1000, 10, 50);
+        for (int i = 0; i < 95; i++) {
+            writer.enqueue(row(i));
+        }
+        writer.close();
+
+        List<String> stored = batches.stream().flatMap(List::stream).map(MessageBD::getMessageText).toList();
+        assertEquals(95, stored.size());
+        assertEquals("m0", stored.get(0));
+        assertEquals("m94", stored.get(94));
+        assertTrue(batches.stream().allMatch(b -> b.size() <= 10));
+        assertEquals(95, writer.getFlushedRows());
+        assertEquals(0, writer.getPendingCount());
+    }
+
+    //Пачка, которую хранилище не сохранило, повторяется, и сообщения сохраняются без пропусков и по порядку
+    @Test
+    void failedBatchIsRetriedInOrder() {
+        List<MessageBD> stored = Collections.synchronizedList(new ArrayList<>());
+        int[] failures = {2};
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {
+            if (batch.get(0).getMessageText().equals("m0") && failures[0]-- > 0) {
+                throw new IllegalStateException("database is down");
+            }
+            stored.addAll(batch);
+        }, 10, 1, 0);
+        writer.enqueue(row(0));
+        writer.enqueue(row(1));
+        writer.close();
+
+        assertEquals(2, writer.getFailedRows());
+        assertEquals(0, writer.getLostRows());
+        assertEquals(List.of("m0", "m1"), stored.stream().map(MessageBD::getMessageText).toList());
+    }
+
+    //Резерв места в полной очереди ждет, пока писатель сохранит сообщения, а сама передача в резерв не ждет
+    @Test
+    void reservationWaitsForStoredRows() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2, 10, 0);
+        writer.reserve(2);
+        writer.enqueueReserved(row(0));
+        writer.enqueueReserved(row(1));
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread publisher = new Thread(() -> {
+            writer.reserve(1);
+            reserved.countDown();
+        });
+        publisher.start();
+
+        assertFalse(reserved.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        writer.close();
+    }
+
+    //Возвращенный после неудачной публикации резерв снова доступен, очередь не теряет места
+    @Test
+    void releasedReservationFreesPlaces() {
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {}, 2, 10, 0);
+        writer.reserve(2);
+        writer.enqueueReserved(row(0));
+        writer.release(1);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> writer.reserve(2));
+        writer.close();
+    }
+
+    //После закрытия сообщения не принимаются молча, а отклоняются
+    @Test
+    void enqueueAfterCloseFails() {
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {}, 10, 1, 0);
+        writer.close();
+
+        assertThrows(IllegalStateException.class, () -> writer.enqueue(row(0)));
+    }
+
+    //Чтение истории ждет, пока писатель сохранит принятые сообщения диапазона, и видит их
+    @Test
+    void loadWaitsForAcceptedRowsOfTheRange() throws InterruptedException {
+        List<MessageBD> stored = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        MessageHistory history = new MessageHistory() {
+            @Override
+            public long lastSeq() {
+                return 0;
+            }
+
+            @Override
+            public List<Message> load(long afterSeq, long upToSeq) {
+                return stored.stream().filter(row -> row.getSeq() > afterSeq && row.getSeq() <= upToSeq)
+                        .map(MessageBD::toMessage).toList();
+            }
+        };
+        MessageWriteBehind writer = new MessageWriteBehind(batch -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stored.addAll(batch);
+        }, history, 10, 10, 0);
+        for (int i = 1; i <= 3; i++) {
+            writer.enqueue(row(i, i));
+        }
+        assertTrue(stored.isEmpty());
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            release.countDown();
+        });
+        releaser.start();
+        List<Message> loaded = writer.load(1, 3);
+        releaser.join();
+        writer.close();
+
+        assertEquals(List.of(2L, 3L), loaded.stream().map(Message::getSeq).toList());
+        assertEquals(3, writer.lastSeq());
+    }
+}
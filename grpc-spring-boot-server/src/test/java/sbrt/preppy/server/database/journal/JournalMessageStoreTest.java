@@ -0,0 +1,137 @@
+package sbrt.preppy.server.database.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sbrt.preppy.server.database.MessageBD;
+import sbrt.preppy.server.messages.Message;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalMessageStoreTest {
+    private static final Timestamp NEWEST = Timestamp.valueOf("9999-12-31 00:00:00");
+
+    @TempDir
+    Path directory;
+
+    private static List<MessageBD> rows(int from, int to) {
+        List<MessageBD> rows = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            boolean broadcast = i % 3 != 0;
+            MessageBD row = new MessageBD(new Timestamp(1_700_000_000_000L + i), i % 2 == 0 ? "bob" : "alice",
+                    broadcast ? "null" : i % 2 == 0 ? "alice" : "bob", broadcast ? "BROADCAST" : "PRIVATE", "m" + i);
+            row.setSeq((long) i);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    //Диапазон по номерам читается через разреженный индекс и переходит между сегментами
+    @Test
+    void loadReadsRangeAcrossSegments() throws IOException {
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, false)) {
+            store.saveAll(rows(1, 300));
+
+            assertTrue(Files.list(directory).count() > 1);
+            assertTrue(store.getIndexSize() < 300);
+            assertEquals(300, store.lastSeq());
+            List<Message> loaded = store.load(97, 205);
+            assertEquals(108, loaded.size());
+            assertEquals(98, loaded.get(0).getSeq());
+            assertEquals(205, loaded.get(107).getSeq());
+            assertEquals("m98", loaded.get(0).getText());
+        }
+    }
+
+    //После повторного открытия журнал восстанавливает последний номер и дописывает новые сообщения
+    @Test
+    void reopenedJournalRecoversAndAppends() throws IOException {
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, true)) {
+            store.saveAll(rows(1, 150));
+        }
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, false)) {
+            assertEquals(150, store.lastSeq());
+            store.saveAll(rows(151, 160));
+            List<Message> loaded = store.load(0, 160);
+            assertEquals(160, loaded.size());
+            assertEquals(160, loaded.get(159).getSeq());
+        }
+    }
+
+    //Запись с испорченным телом при неизменной длине отбрасывается по контрольной сумме, журнал кончается перед ней
+    @Test
+    void tornRecordIsDetectedByChecksum() throws IOException {
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, true)) {
+            store.saveAll(rows(1, 10));
+        }
+        Path segment = directory.resolve("00000000.journal");
+        byte[] bytes = Files.readAllBytes(segment);
+        byte[] text = "m10".getBytes(StandardCharsets.UTF_8);
+        int position = indexOf(bytes, text);
+        bytes[position + 1] = 0;
+        Files.write(segment, bytes);
+
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, false)) {
+            assertEquals(9, store.lastSeq());
+            store.saveAll(rows(10, 11));
+            List<Message> loaded = store.load(8, 11);
+            assertEquals(List.of("m9", "m10", "m11"), loaded.stream().map(Message::getText).toList());
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("not found");
+    }
+
+    //Страницы истории идут от новых к старым и продолжаются по курсору
+    @Test
+    void pagesAreReadBackwards() throws IOException {
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, false)) {
+            store.saveAll(rows(1, 100));
+
+            List<MessageBD> first = store.findBroadcastPage(NEWEST, Long.MAX_VALUE, 10);
+            assertEquals(10, first.size());
+            assertEquals(100, first.get(0).getSeq());
+            assertTrue(first.stream().allMatch(row -> "BROADCAST".equals(row.getMessageType())));
+            MessageBD last = first.get(first.size() - 1);
+            List<MessageBD> next = store.findBroadcastPage(NEWEST, last.getSeq(), 10);
+            assertTrue(next.get(0).getSeq() < last.getSeq());
+
+            List<MessageBD> conversation = store.findPrivatePage("alice", "bob", NEWEST, Long.MAX_VALUE, 1000);
+            assertEquals(33, conversation.size());
+            assertEquals(99, conversation.get(0).getSeq());
+            assertEquals(3, conversation.get(32).getSeq());
+        }
+    }
+
+    //Страница без номера начинается строго до даты, а номер и дата вместе режут страницу по обоим
+    @Test
+    void pageStartsBeforeDate() throws IOException {
+        try (JournalMessageStore store = new JournalMessageStore(directory, 4096, 8, false)) {
+            store.saveAll(rows(1, 100));
+
+            List<MessageBD> fromDate = store.findBroadcastPage(new Timestamp(1_700_000_000_050L), Long.MAX_VALUE, 5);
+            assertEquals(List.of(49L, 47L, 46L, 44L, 43L), fromDate.stream().map(MessageBD::getSeq).toList());
+
+            List<MessageBD> both = store.findBroadcastPage(new Timestamp(1_700_000_000_050L), 20, 5);
+            assertEquals(19, both.get(0).getSeq());
+            assertTrue(store.findRoomPage("java", new Timestamp(1_700_000_000_050L), Long.MAX_VALUE, 5).isEmpty());
+        }
+    }
+}
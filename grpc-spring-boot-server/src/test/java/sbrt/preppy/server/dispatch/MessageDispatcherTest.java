@@ -0,0 +1,265 @@
+package sbrt.preppy.server.dispatch;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+import sbrt.preppy.server.users.UserManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageDispatcherTest {
+    private final UserManager userManager = new UserManager();
+    //Доставка в потоке публикации, чтобы проверки были синхронными
+    private final MessageDispatcher dispatcher = new MessageDispatcher(ExecutionMode.DIRECT.createExecutor(1), userManager,
+            new RecentHistoryCache(16, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY);
+
+    //Сообщение комнаты получают только её участники, а вернувшийся участник получает пропущенное из кэша
+    @Test
+    void roomMessageIsQueuedOnlyForMembers() {
+        List<Message> alice = new ArrayList<>();
+        List<Message> carol = new ArrayList<>();
+        userManager.joinRoom("java", "alice");
+        userManager.joinRoom("java", "bob");
+        Subscription aliceStream = dispatcher.subscribe("alice", alice::add);
+        dispatcher.subscribe("carol", carol::add);
+
+        dispatcher.publish(new Message(new User("bob"), MessageType.ROOM, "hi room", "java"));
+        dispatcher.unsubscribe(aliceStream);
+        long seq = dispatcher.publish(new Message(new User("bob"), MessageType.ROOM, "missed", "java"));
+        List<Message> resumed = new ArrayList<>();
+        dispatcher.subscribe("alice", aliceStream.getLastSeq(), resumed::add);
+
+        assertEquals("hi room", alice.get(0).getText());
+        assertTrue(carol.isEmpty());
+        assertEquals(seq, resumed.get(0).getSeq());
+    }
+
+    //Два сообщения подряд должны дойти до подписчика оба и в правильном порядке
+    @Test
+    void publishBackToBackDeliversEveryMessageInOrder() {
+        List<Message> received = new ArrayList<>();
+        Subscription subscription = dispatcher.subscribe("alice", received::add);
+        User bob = new User("bob");
+
+        dispatcher.publish(new Message(bob, MessageType.BROADCAST, "first"));
+        dispatcher.publish(new Message(bob, MessageType.BROADCAST, "second"));
+
+        assertEquals(2, received.size());
+        assertEquals("first", received.get(0).getText());
+        assertEquals("second", received.get(1).getText());
+        assertTrue(received.get(0).getSeq() < received.get(1).getSeq());
+        assertEquals(received.get(1).getSeq(), subscription.getLastSeq());
+    }
+
+    //Приватное сообщение не попадает в чужой поток
+    @Test
+    void privateMessageIsNotQueuedForOtherUsers() {
+        List<Message> carol = new ArrayList<>();
+        List<Message> alice = new ArrayList<>();
+        dispatcher.subscribe("carol", carol::add);
+        dispatcher.subscribe("alice", alice::add);
+
+        dispatcher.publish(new Message(new User("bob"), MessageType.PRIVATE, "hi", "alice"));
+
+        assertTrue(carol.isEmpty());
+        assertEquals("hi", alice.get(0).getText());
+    }
+
+    //Сообщение для "bob" не должно уходить "bobby", а отправитель видит своё сообщение
+    @Test
+    void privateMessageIsRoutedByExactName() {
+        List<Message> bob = new ArrayList<>();
+        List<Message> bobby = new ArrayList<>();
+        List<Message> alice = new ArrayList<>();
+        dispatcher.subscribe("bob", bob::add);
+        dispatcher.subscribe("bobby", bobby::add);
+        dispatcher.subscribe("alice", alice::add);
+
+        dispatcher.publish(new Message(new User("alice"), MessageType.PRIVATE, "hi", "bob"));
+
+        assertEquals(1, bob.size());
+        assertEquals(1, alice.size());
+        assertTrue(bobby.isEmpty());
+    }
+
+    //Ошибка записи в поток закрывает подписку
+    @Test
+    void failedWriteUnsubscribesStream() {
+        Subscription subscription = dispatcher.subscribe("alice", msg -> {
+            throw new IllegalStateException("call cancelled");
+        });
+
+        dispatcher.publish(new Message(new User("bob"), MessageType.BROADCAST, "hi"));
+
+        assertTrue(subscription.isClosed());
+        assertEquals(0, dispatcher.getSubscriberCount());
+    }
+
+    //Клиент, переподключившийся с курсором, получает ровно пропущенные сообщения из буфера
+    @Test
+    void resumeReplaysMissedMessagesFromRecentBuffer() {
+        User bob = new User("bob");
+        for (int i = 1; i <= 5; i++) {
+            dispatcher.publish(new Message(bob, MessageType.BROADCAST, "m" + i));
+        }
+        List<Message> received = new ArrayList<>();
+        dispatcher.subscribe("alice", 3, received::add);
+        dispatcher.publish(new Message(bob, MessageType.BROADCAST, "m6"));
+
+        assertEquals(List.of(4L, 5L, 6L), received.stream().map(Message::getSeq).toList());
+    }
+
+    //Пропуск старше буфера дочитывается из истории
+    @Test
+    void resumeLoadsOlderGapFromHistory() {
+        User bob = new User("bob");
+        List<Message> stored = new ArrayList<>();
+        MessageHistory history = new MessageHistory() {
+            @Override
+            public long lastSeq() {
+                return 0;
+            }
+
+            @Override
+            public List<Message> load(long afterSeq, long upToSeq) {
+                return stored.stream().filter(m -> m.getSeq() > afterSeq && m.getSeq() <= upToSeq).toList();
+            }
+        };
+        MessageDispatcher small = new MessageDispatcher(ExecutionMode.DIRECT.createExecutor(1), new UserManager(),
+                new RecentHistoryCache(2, 2, 100, Duration.ofMinutes(1)), history);
+        for (int i = 1; i <= 6; i++) {
+            Message msg = new Message(bob, MessageType.BROADCAST, "m" + i);
+            small.publish(msg);
+            stored.add(msg);
+        }
+        List<Message> received = new ArrayList<>();
+        small.subscribe("alice", 1, received::add);
+
+        assertEquals(LongStream.rangeClosed(2, 6).boxed().toList(), received.stream().map(Message::getSeq).toList());
+    }
+
+    //Пропущено больше, чем вмещает очередь, и во время возобновления публикуется больше лимита очереди:
+    //клиент получает пропущенное частями, каждая заканчивается маркером разрыва, и за несколько возобновлений получает всё по порядку
+    @Test
+    void resumeLongerThanBacklogIsReplayedInParts() {
+        List<Runnable> tasks = new ArrayList<>();
+        MessageDispatcher limited = new MessageDispatcher(tasks::add, new UserManager(),
+                new RecentHistoryCache(32, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY,
+                new BacklogLimit(4, SlowConsumerPolicy.GAP_MARKER));
+        User bob = new User("bob");
+        for (int i = 1; i <= 12; i++) {
+            limited.publish(new Message(bob, MessageType.BROADCAST, "m" + i));
+        }
+
+        List<Long> seen = new ArrayList<>();
+        long lastSeq = 1;
+        for (int resume = 0; resume < 10; resume++) {
+            List<Message> received = new ArrayList<>();
+            Subscription subscription = limited.subscribe("alice", lastSeq, received::add);
+            if (resume == 0) {
+                for (int i = 13; i <= 18; i++) {
+                    limited.publish(new Message(bob, MessageType.BROADCAST, "m" + i));
+                }
+            }
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+            boolean gap = false;
+            for (Message msg : received) {
+                if (msg.getMessageType() == MessageType.GAP) {
+                    gap = true;
+                    break;
+                }
+                seen.add(msg.getSeq());
+                lastSeq = msg.getSeq();
+            }
+            limited.unsubscribe(subscription);
+            if (!gap) {
+                break;
+            }
+        }
+
+        assertEquals(LongStream.rangeClosed(2, 18).boxed().toList(), seen);
+        // живые сообщения первого возобновления переполнили очередь, но повторенные не были отброшены
+        assertEquals(1, limited.getBacklogLimit().getGapCount());
+    }
+
+    //Пока клиент не готов, сообщения ждут в очереди; переполнение заменяет очередь маркером разрыва или отбрасывает старые
+    @Test
+    void fullBacklogIsHandledByPolicy() {
+        assertEquals(List.of(MessageType.GAP, MessageType.BROADCAST, MessageType.BROADCAST),
+                publishToSlowStream(SlowConsumerPolicy.GAP_MARKER).stream().map(Message::getMessageType).toList());
+        assertEquals(List.of(3L, 4L, 5L),
+                publishToSlowStream(SlowConsumerPolicy.DROP_OLDEST).stream().map(Message::getSeq).toList());
+    }
+
+    //Отбрасывание старых при переполнении не трогает повторенные при возобновлении сообщения, отбрасываются старые живые
+    @Test
+    void dropOldestKeepsReplayedMessages() {
+        List<Runnable> tasks = new ArrayList<>();
+        MessageDispatcher limited = new MessageDispatcher(tasks::add, new UserManager(),
+                new RecentHistoryCache(16, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY,
+                new BacklogLimit(3, SlowConsumerPolicy.DROP_OLDEST));
+        User bob = new User("bob");
+        for (int i = 1; i <= 6; i++) {
+            limited.publish(new Message(bob, MessageType.BROADCAST, "m" + i));
+        }
+        List<Message> received = new ArrayList<>();
+        limited.subscribe("alice", 3, received::add);
+        for (int i = 7; i <= 10; i++) {
+            limited.publish(new Message(bob, MessageType.BROADCAST, "m" + i));
+        }
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+
+        assertEquals(List.of(4L, 5L, 6L, 8L, 9L, 10L), received.stream().map(Message::getSeq).toList());
+        assertEquals(1, limited.getBacklogLimit().getDroppedCount());
+    }
+
+    //Переполненный поток закрывается, клиенту сообщают об этом
+    @Test
+    void fullBacklogDisconnectsStream() {
+        MessageDispatcher limited = new MessageDispatcher(ExecutionMode.DIRECT.createExecutor(1), new UserManager(),
+                new RecentHistoryCache(16, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY,
+                new BacklogLimit(3, SlowConsumerPolicy.DISCONNECT));
+        Subscription subscription = limited.subscribe("alice", msg -> {});
+        subscription.setReady(() -> false);
+        boolean[] overflowed = new boolean[1];
+        subscription.setOnOverflow(() -> overflowed[0] = true);
+
+        for (int i = 1; i <= 4; i++) {
+            limited.publish(new Message(new User("bob"), MessageType.BROADCAST, "m" + i));
+        }
+
+        assertTrue(overflowed[0]);
+        assertTrue(subscription.isClosed());
+        assertEquals(0, subscription.getBacklog());
+        assertEquals(0, limited.getSubscriberCount());
+        assertEquals(1, limited.getBacklogLimit().getDisconnectCount());
+    }
+
+    private static List<Message> publishToSlowStream(SlowConsumerPolicy policy) {
+        MessageDispatcher limited = new MessageDispatcher(ExecutionMode.DIRECT.createExecutor(1), new UserManager(),
+                new RecentHistoryCache(16, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY, new BacklogLimit(3, policy));
+        List<Message> received = new ArrayList<>();
+        boolean[] ready = new boolean[1];
+        Subscription subscription = limited.subscribe("alice", received::add);
+        subscription.setReady(() -> ready[0]);
+
+        for (int i = 1; i <= 5; i++) {
+            limited.publish(new Message(new User("bob"), MessageType.BROADCAST, "m" + i));
+        }
+        assertTrue(received.isEmpty());
+        assertEquals(3, subscription.getPeakBacklog());
+        ready[0] = true;
+        subscription.onReady();
+        return received;
+    }
+}
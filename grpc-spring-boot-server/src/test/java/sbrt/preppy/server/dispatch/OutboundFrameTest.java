@@ -0,0 +1,56 @@
+package sbrt.preppy.server.dispatch;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.ProfileDescriptorOuterClass;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundFrameTest {
+    //Кадр на проводе читается клиентом как обычное proto-сообщение
+    @Test
+    void frameIsReadAsGeneratedMessage() throws IOException {
+        Message msg = new Message(new User("bob"), MessageType.BROADCAST, "hello");
+        msg.setSeq(7);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (InputStream stream = OutboundFrame.MARSHALLER.stream(MessageFrames.of(msg).getChatFrame())) {
+            stream.transferTo(wire);
+        }
+
+        ProfileDescriptorOuterClass.ServerEvent event = ProfileDescriptorOuterClass.ServerEvent.parseFrom(wire.toByteArray());
+        assertEquals("bob", event.getMessage().getSender());
+        assertEquals(ProfileDescriptorOuterClass.ChatMessage.Type.BROADCAST, event.getMessage().getType());
+        assertEquals("hello", event.getMessage().getText());
+        assertEquals(msg.getTimestamp().getTime(), event.getMessage().getTimestamp());
+        assertEquals(7, event.getMessage().getSeq());
+    }
+
+    //Кадры строятся один раз на сообщение и общие для всех подписчиков
+    @Test
+    void framesAreEncodedOnce() {
+        Message msg = new Message(new User("bob"), MessageType.BROADCAST, "hello");
+        msg.setSeq(1);
+
+        assertSame(MessageFrames.of(msg), MessageFrames.of(msg));
+        assertSame(MessageFrames.of(msg).getChatMessage(), MessageFrames.of(msg).getChatEvent().getMessage());
+        assertSame(MessageFrames.of(msg).getMessageFrame(), MessageFrames.of(msg).getMessageFrame());
+    }
+
+    //Кадр строится только при первом обращении к нему, а не при публикации
+    @Test
+    void framesAreBuiltOnFirstUse() {
+        Message msg = new Message(new User("bob"), MessageType.BROADCAST, "hello");
+        MessageFrames frames = MessageFrames.of(msg);
+        msg.setSeq(5);
+
+        assertEquals(5, frames.getChatMessage().getSeq());
+        msg.setSeq(6);
+        assertEquals(5, frames.getChatEvent().getMessage().getSeq());
+    }
+}
@@ -0,0 +1,91 @@
+package sbrt.preppy.server.dispatch;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentHistoryCacheTest {
+    private final AtomicLong now = new AtomicLong();
+    private final RecentHistoryCache cache = new RecentHistoryCache(4, 2, 2, Duration.ofMillis(100), now::get);
+    private long seq;
+
+    private Message add(String sender, String receiver, long date) {
+        Message msg = receiver == null
+                ? new Message(new User(sender), MessageType.BROADCAST, "m" + (seq + 1))
+                : new Message(new User(sender), MessageType.PRIVATE, "m" + (seq + 1), receiver);
+        msg.setSeq(++seq);
+        msg.setTimestamp(new Timestamp(date));
+        cache.add(msg);
+        return msg;
+    }
+
+    //Страницы из кэша идут по номерам, так что сообщения одной миллисекунды на границе страниц не теряются
+    @Test
+    void pagesContinueBySequenceNumber() {
+        add("bob", null, 10);
+        add("bob", null, 20);
+        add("bob", null, 20);
+        add("bob", null, 30);
+
+        List<Message> page = cache.page("alice", "", Long.MAX_VALUE, Long.MAX_VALUE, 2);
+        assertEquals(List.of(4L, 3L), page.stream().map(Message::getSeq).toList());
+        List<Message> next = cache.page("alice", "", Long.MAX_VALUE, page.get(1).getSeq(), 2);
+        assertEquals(List.of(2L, 1L), next.stream().map(Message::getSeq).toList());
+        List<Message> fromDate = cache.page("alice", "", 20, Long.MAX_VALUE, 2);
+        assertEquals(List.of(1L), fromDate.stream().map(Message::getSeq).toList());
+        assertEquals(3, cache.getHits());
+    }
+
+    //Страница, которой может не хватить вытесненных сообщений, читается из хранилища
+    @Test
+    void pageBeyondEvictedMessagesIsMiss() {
+        for (int i = 1; i <= 6; i++) {
+            add("bob", null, i);
+        }
+
+        assertNull(cache.page("alice", "", Long.MAX_VALUE, Long.MAX_VALUE, 10));
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    //Приватные сообщения доступны только участникам, а курсор учитывает вытесненные
+    @Test
+    void privateConversationIsKeptForBothParticipants() {
+        add("bob", null, 1);
+        add("alice", "bob", 2);
+        add("bob", "alice", 3);
+        add("alice", "bob", 4);
+
+        assertEquals(List.of(1L, 3L, 4L), cache.messagesAfter("bob", List.of(), 0).stream().map(Message::getSeq).toList());
+        assertEquals(List.of(1L), cache.messagesAfter("carol", List.of(), 0).stream().map(Message::getSeq).toList());
+        assertEquals(2, cache.evictedSeq("bob", List.of()));
+        assertEquals(0, cache.evictedSeq("carol", List.of()));
+        assertNull(cache.page("bob", "alice", Long.MAX_VALUE, Long.MAX_VALUE, 10));
+    }
+
+    //Простаивающий и лишний разговоры вытесняются целиком
+    @Test
+    void idleConversationsAreEvicted() {
+        add("alice", "bob", 1);
+        now.set(50);
+        add("carol", "dave", 2);
+        now.set(120);
+        add("erin", "frank", 3);
+
+        assertEquals(2, cache.getConversationCount());
+        assertEquals(1, cache.evictedSeq("dave", List.of()));
+        assertNull(cache.page("alice", "bob", Long.MAX_VALUE, Long.MAX_VALUE, 10));
+        add("gina", "hank", 4);
+        add("ivan", "judy", 5);
+        assertEquals(2, cache.getConversationCount());
+        assertEquals(3, cache.getEvictions());
+    }
+}
@@ -0,0 +1,46 @@
+package sbrt.preppy.server.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.server.dispatch.ExecutionMode;
+import sbrt.preppy.server.dispatch.MessageDispatcher;
+import sbrt.preppy.server.dispatch.MessageHistory;
+import sbrt.preppy.server.dispatch.RecentHistoryCache;
+import sbrt.preppy.server.exception.DuplicateUsernameException;
+import sbrt.preppy.server.messages.Message;
+import sbrt.preppy.server.messages.MessageType;
+import sbrt.preppy.server.users.User;
+import sbrt.preppy.server.users.UserManager;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatMetricsTest {
+
+    //Опубликованное и доставленное сообщение видно в счётчиках, задержка доставки записана, онлайн-клиенты считаются без сервера
+    @Test
+    void publishedAndDeliveredMessagesAreCounted() throws DuplicateUsernameException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ChatMetrics metrics = new ChatMetrics(registry);
+        UserManager userManager = new UserManager();
+        MessageDispatcher dispatcher = new MessageDispatcher(ExecutionMode.DIRECT.createExecutor(1), userManager,
+                new RecentHistoryCache(16, 16, 100, Duration.ofMinutes(1)), MessageHistory.EMPTY);
+        dispatcher.setMetrics(metrics);
+        metrics.bindUsers(userManager);
+        metrics.bindDispatcher(dispatcher);
+        userManager.connectUser("alice");
+        userManager.connectUser("bob");
+        dispatcher.subscribe("alice", msg -> {});
+        dispatcher.subscribe("bob", msg -> {});
+
+        dispatcher.publish(new Message(new User("alice"), MessageType.BROADCAST, "hi"));
+
+        assertEquals(1, registry.get("chat.messages.published").tag("type", "BROADCAST").counter().count());
+        assertEquals(2, registry.get("chat.messages.delivered").tag("type", "BROADCAST").counter().count());
+        assertEquals(2, registry.get("chat.delivery.lag").timer().count());
+        assertEquals(2, registry.get("chat.users.online").gauge().value());
+        assertEquals(2, registry.get("chat.streams.open").gauge().value());
+        assertEquals(0, registry.get("chat.streams.backlog").tag("statistic", "max").gauge().value());
+    }
+}
@@ -0,0 +1,100 @@
+package sbrt.preppy.server.users;
+
+import org.junit.jupiter.api.Test;
+import sbrt.preppy.ProfileDescriptorOuterClass.PresenceEvent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceFeedTest {
+
+    //Новый поток получает снимок, затем только дельты с номерами версий подряд
+    @Test
+    void snapshotThenVersionedDeltas() {
+        PresenceFeed feed = new PresenceFeed(Runnable::run, 16);
+        feed.joined("alice");
+        List<PresenceEvent> events = new ArrayList<>();
+        feed.subscribe(events::add);
+
+        feed.joined("bob");
+        feed.left("alice");
+        feed.left("alice");
+
+        assertEquals(3, events.size());
+        assertEquals(PresenceEvent.Kind.SNAPSHOT, events.get(0).getKind());
+        assertEquals(List.of("alice"), events.get(0).getUsersList());
+        assertEquals(1, events.get(0).getVersion());
+        assertEquals(PresenceEvent.Kind.JOINED, events.get(1).getKind());
+        assertEquals(List.of("bob"), events.get(1).getUsersList());
+        assertEquals(2, events.get(1).getVersion());
+        assertEquals(PresenceEvent.Kind.LEFT, events.get(2).getKind());
+        assertEquals(3, events.get(2).getVersion());
+    }
+
+    //Отставший поток вместо очереди дельт получает свежий снимок
+    @Test
+    void laggingStreamIsResnapshotted() {
+        List<Runnable> tasks = new ArrayList<>();
+        PresenceFeed feed = new PresenceFeed(tasks::add, 2);
+        List<PresenceEvent> events = new ArrayList<>();
+        feed.subscribe(events::add);
+
+        for (int i = 0; i < 10; i++) {
+            feed.joined("user" + i);
+        }
+        tasks.forEach(Runnable::run);
+
+        PresenceEvent last = events.get(events.size() - 1);
+        assertTrue(events.size() <= 3);
+        assertEquals(PresenceEvent.Kind.SNAPSHOT, last.getKind());
+        assertEquals(10, last.getUsersCount());
+        assertEquals(10, last.getVersion());
+    }
+
+    //Изменения за один тик публикуются одной дельтой, а вошедший и вышедший за тик клиент не публикуется
+    @Test
+    void changesWithinTickAreCoalesced() {
+        PresenceFeed feed = new PresenceFeed(Runnable::run, 16, Duration.ofHours(1));
+        List<PresenceEvent> events = new ArrayList<>();
+        List<List<String>> announced = new ArrayList<>();
+        feed.subscribe(events::add);
+        feed.setListener((joined, left) -> {
+            announced.add(joined);
+            announced.add(left);
+        });
+
+        feed.joined("alice");
+        feed.joined("bob");
+        feed.joined("carol");
+        feed.left("alice");
+        feed.flush();
+
+        assertEquals(2, events.size());
+        assertEquals(PresenceEvent.Kind.JOINED, events.get(1).getKind());
+        assertEquals(List.of("bob", "carol"), events.get(1).getUsersList());
+        assertEquals(1, events.get(1).getVersion());
+        assertEquals(List.of(List.of("bob", "carol"), List.of()), announced);
+        feed.close();
+    }
+
+    //После закрытия тик больше не публикует изменения
+    @Test
+    void closedFeedStopsTicking() throws InterruptedException {
+        PresenceFeed feed = new PresenceFeed(Runnable::run, 16, Duration.ofMillis(10));
+        List<PresenceEvent> events = new CopyOnWriteArrayList<>();
+        feed.subscribe(events::add);
+        feed.joined("alice");
+        Thread.sleep(200);
+        assertEquals(2, events.size());
+
+        feed.close();
+        feed.joined("bob");
+        Thread.sleep(200);
+
+        assertEquals(2, events.size());
+    }
+}